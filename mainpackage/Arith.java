@@ -8,14 +8,14 @@ public class Arith {
     /**
      * The register that holds the value of the rhs of this arithmatic operation.
      */
-    public final String rhs;
+    public final Atom.Operand rhs;
 
     /**
      * @brief Constructs an Arith with the given operator and right hand side operand.
      * @param operator The operator of the Arith.
      * @param rhs The right hand side operand of the Arith.
      */
-    public Arith(Atom.Opcode operator, String rhs) {
+    public Arith(Atom.Opcode operator, Atom.Operand rhs) {
         this.operator = operator;
         this.rhs = rhs;
     }
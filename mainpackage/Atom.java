@@ -20,12 +20,26 @@ public class Atom {
 
     /**
      * Constructs an Atom with the given opcode and operands.
+     * @param symbols The table that variable and label names are interned in.
      * @param opcode The opcode of the Atom.
      * @param operands The operands of the Atom.
      */
-    public Atom(Opcode opcode, String... operands) {
+    public Atom(SymbolTable symbols, Opcode opcode, String... operands) {
         this.opcode = opcode;
-        this.operands = parseOperands(opcode, operands);
+        this.operands = parseOperands(symbols, opcode, operands);
+    }
+
+    /**
+     * Constructs an Atom from operands that are already classified, e.g. by
+     * the factories of Operand. They go in the same positions as the String
+     * constructor takes them, and operands the opcode does not use are ignored.
+     * @param opcode The opcode of the Atom.
+     * @param operands The operands of the Atom.
+     * @throws IllegalArgumentException If an operand the opcode uses is missing or of the wrong type.
+     */
+    public Atom(Opcode opcode, Operand... operands) {
+        this.opcode = opcode;
+        this.operands = layOutOperands(opcode, operands);
     }
 
     /**
@@ -103,7 +117,16 @@ public class Atom {
          * @return The opcode that corresponds to the token.
          */
         public static Opcode arithToOpcode(Token token) {
-            switch (token.type) {
+            return arithToOpcode(token.type);
+        }
+
+        /**
+         * Takes in an arithmetic operator token type and returns an opcode.
+         * @param tokenType the integer value representing the token type
+         * @return The opcode that corresponds to the token type.
+         */
+        public static Opcode arithToOpcode(int tokenType) {
+            switch (tokenType) {
                 case Token.Type.PLUS: return ADD;
                 case Token.Type.MINUS: return SUB;
                 case Token.Type.MULT: return MUL;
@@ -127,69 +150,132 @@ public class Atom {
          * @return a string of the number that corresponds to that operator in TST's cmp field.
          */
         public static String compToNumber(int tokenType) {
+            return Integer.toString(compToCmp(tokenType));
+        }
+
+        /**
+         * @brief Takes in a comparison operator token type and returns that operator's cmp number.
+         * @param tokenType the integer value representing the token type
+         * @return the number that corresponds to that operator in TST's cmp field.
+         */
+        public static int compToCmp(int tokenType) {
             switch (tokenType) {
-                case Token.Type.DOUBLE_EQUAL: return "1";
-                case Token.Type.LESS: return "2";
-                case Token.Type.MORE: return "3";
-                case Token.Type.LEQ: return "4";
-                case Token.Type.GEQ: return "5";
-                case Token.Type.NEQ: return "6";
+                case Token.Type.DOUBLE_EQUAL: return 1;
+                case Token.Type.LESS: return 2;
+                case Token.Type.MORE: return 3;
+                case Token.Type.LEQ: return 4;
+                case Token.Type.GEQ: return 5;
+                case Token.Type.NEQ: return 6;
                 default: throw new IllegalArgumentException();
             }
         }
 
         public static String compNumToOpposite(String compNum) {
-            return Integer.toString(7 - Integer.parseInt(compNum));
+            return Integer.toString(oppositeCmp(Integer.parseInt(compNum)));
+        }
+
+        /**
+         * @brief Returns the cmp number of the opposite comparison, e.g. 3 (>) for 4 (<=).
+         */
+        public static int oppositeCmp(int cmp) {
+            return 7 - cmp;
         }
     }
 
     /**
      * Returns a list of operands.
      */
-    private static Operand[] parseOperands(Opcode opcode, String[] operands) {
+    private static Operand[] parseOperands(SymbolTable symbols, Opcode opcode, String[] operands) {
         switch (opcode) {
             case ADD:
             case SUB:
             case MUL:
             case DIV:
                 return new Operand[] {
-                    new Operand(Operand.CONSTANT_OR_VARIABLE, operands[0]), // lhs
-                    new Operand(Operand.CONSTANT_OR_VARIABLE, operands[1]), // rhs
-                    new Operand(Operand.VARIABLE, operands[2]) // result
+                    new Operand(symbols, Operand.CONSTANT_OR_VARIABLE, operands[0]), // lhs
+                    new Operand(symbols, Operand.CONSTANT_OR_VARIABLE, operands[1]), // rhs
+                    new Operand(symbols, Operand.VARIABLE, operands[2]) // result
                 };
 
             case JMP:
-                return new Operand[] {null, null, null, null, new Operand(Operand.LABEL_USE, operands[4])};
+                return new Operand[] {null, null, null, null, new Operand(symbols, Operand.LABEL_USE, operands[4])};
             case LBL:
-                return new Operand[] {null, null, null, null, new Operand(Operand.LABEL_DEFINITION, operands[4])}; // label name
+                return new Operand[] {null, null, null, null, new Operand(symbols, Operand.LABEL_DEFINITION, operands[4])}; // label name
 
             case NEG:
                 return new Operand[] {
-                    new Operand(Operand.CONSTANT_OR_VARIABLE, operands[0]), // value to negate
+                    new Operand(symbols, Operand.CONSTANT_OR_VARIABLE, operands[0]), // value to negate
                     null,
-                    new Operand(Operand.VARIABLE, operands[2]) // result
+                    new Operand(symbols, Operand.VARIABLE, operands[2]) // result
                 };
 
             case MOV:
                 return new Operand[] {
-                    new Operand(Operand.CONSTANT_OR_VARIABLE, operands[0]), // source
+                    new Operand(symbols, Operand.CONSTANT_OR_VARIABLE, operands[0]), // source
                     null,
-                    new Operand(Operand.VARIABLE, operands[2]) // destination
+                    new Operand(symbols, Operand.VARIABLE, operands[2]) // destination
                 };
                 
             case TST:
                 return new Operand[] {
-                    new Operand(Operand.CONSTANT_OR_VARIABLE, operands[0]),
-                    new Operand(Operand.CONSTANT_OR_VARIABLE, operands[1]),
+                    new Operand(symbols, Operand.CONSTANT_OR_VARIABLE, operands[0]),
+                    new Operand(symbols, Operand.CONSTANT_OR_VARIABLE, operands[1]),
                     null,
-                    new Operand(Operand.CMP, operands[3]),
-                    new Operand(Operand.LABEL_USE, operands[4])};
+                    new Operand(symbols, Operand.CMP, operands[3]),
+                    new Operand(symbols, Operand.LABEL_USE, operands[4])};
         
             default:
                 throw new RuntimeException();
         }
     }
 
+    /**
+     * Returns the operands of an atom in the layout parseOperands() gives them.
+     */
+    private static Operand[] layOutOperands(Opcode opcode, Operand[] operands) {
+        switch (opcode) {
+            case ADD:
+            case SUB:
+            case MUL:
+            case DIV:
+                return new Operand[] {
+                    value(operands, 0), value(operands, 1), operand(operands, 2, Operand.VARIABLE)};
+
+            case JMP:
+                return new Operand[] {null, null, null, null, operand(operands, 4, Operand.LABEL_USE)};
+            case LBL:
+                return new Operand[] {null, null, null, null, operand(operands, 4, Operand.LABEL_DEFINITION)};
+
+            case NEG:
+            case MOV:
+                return new Operand[] {value(operands, 0), null, operand(operands, 2, Operand.VARIABLE)};
+
+            case TST:
+                return new Operand[] {
+                    value(operands, 0), value(operands, 1), null,
+                    operand(operands, 3, Operand.CMP), operand(operands, 4, Operand.LABEL_USE)};
+
+            default:
+                throw new RuntimeException();
+        }
+    }
+
+    // Returns operands[index] if it is a variable or a constant
+    private static Operand value(Operand[] operands, int index) {
+        Operand op = index < operands.length ? operands[index] : null;
+        if (op == null || (op.type != Operand.VARIABLE && op.type != Operand.CONSTANT))
+            throw new IllegalArgumentException("Operand " + index + " must be a variable or a constant.");
+        return op;
+    }
+
+    // Returns operands[index] if it has the given type
+    private static Operand operand(Operand[] operands, int index, int type) {
+        Operand op = index < operands.length ? operands[index] : null;
+        if (op == null || op.type != type)
+            throw new IllegalArgumentException("Operand " + index + " must be of type " + Operand.typeToString(type) + ".");
+        return op;
+    }
+
     public static class Operand {
         public static final int VARIABLE = 0;
         public static final int LABEL_DEFINITION = 1;
@@ -197,14 +283,112 @@ public class Atom {
         public static final int CONSTANT = 3;
         public static final int CMP = 4;
         public static final int CONSTANT_OR_VARIABLE = 5;
+
+        // The names of the operand types, indexed by type
+        private static final String[] typeNames = new String[] {
+            "VARIABLE", "LABEL_DEFINITION", "LABEL_USE", "CONSTANT", "CMP", "CONSTANT_OR_VARIABLE"
+        };
+
         public final int type;
         private final Object value;
+        // The SymbolTable id of a VARIABLE, LABEL_DEFINITION or LABEL_USE operand, else -1.
+        public final int id;
+
+        private Operand(int type, Object value, int id) {
+            this.type = type;
+            this.value = value;
+            this.id = id;
+        }
 
-        public Operand(int type, String value) {
+        /**
+         * @brief Returns a variable operand, interning its name.
+         */
+        public static Operand variable(SymbolTable symbols, String name) {
+            return new Operand(VARIABLE, name, symbols.intern(name));
+        }
+
+        /**
+         * @brief Returns a variable operand for a name that is already interned.
+         */
+        public static Operand variable(SymbolTable symbols, int id) {
+            return new Operand(VARIABLE, symbols.name(id), id);
+        }
+
+        /**
+         * @brief Returns a constant operand.
+         */
+        public static Operand constant(float value) {
+            return new Operand(CONSTANT, value, -1);
+        }
+
+        /**
+         * @brief Returns the operand of an LBL, interning the label's name.
+         */
+        public static Operand labelDefinition(SymbolTable symbols, String name) {
+            return new Operand(LABEL_DEFINITION, name, symbols.intern(name));
+        }
+
+        /**
+         * @brief Returns the operand of an LBL for a label that is already interned.
+         */
+        public static Operand labelDefinition(SymbolTable symbols, int id) {
+            return new Operand(LABEL_DEFINITION, symbols.name(id), id);
+        }
+
+        /**
+         * @brief Returns the destination of a JMP or TST, interning the label's name.
+         */
+        public static Operand labelUse(SymbolTable symbols, String name) {
+            return new Operand(LABEL_USE, name, symbols.intern(name));
+        }
+
+        /**
+         * @brief Returns the destination of a JMP or TST for a label that is already interned.
+         */
+        public static Operand labelUse(SymbolTable symbols, int id) {
+            return new Operand(LABEL_USE, symbols.name(id), id);
+        }
+
+        /**
+         * @brief Returns the cmp operand of a TST.
+         */
+        public static Operand cmp(int cmp) {
+            return new Operand(CMP, cmp, -1);
+        }
+
+        /**
+         * @brief Returns the operand for a token the Parser consumed: a
+         * constant for a literal, which the Scanner has already checked is a
+         * valid number, and a variable named by its text for anything else.
+         * @param symbols The table to intern variable names in.
+         * @param tokenType The Token.Type of the token.
+         * @param text The text of the token.
+         */
+        public static Operand fromToken(SymbolTable symbols, int tokenType, String text) {
+            if (tokenType == Token.Type.INT_LITERAL || tokenType == Token.Type.FLOAT_LITERAL)
+                return constant(Float.parseFloat(text));
+            return variable(symbols, text);
+        }
+
+        /**
+         * @brief Classifies and interns an operand given as text.
+         * Text that starts like an identifier is not a number unless it
+         * starts with NaN or Infinity, so names are told apart without
+         * parsing; the typed factories above avoid the text altogether.
+         */
+        public Operand(SymbolTable symbols, int type, String value) {
+            if ((type == CONSTANT_OR_VARIABLE || type == VARIABLE || type == LABEL_DEFINITION || type == LABEL_USE)
+                    && isName(value)) {
+                this.value = value;
+                this.type = type == CONSTANT_OR_VARIABLE ? VARIABLE : type;
+                this.id = symbols.intern(value);
+                return;
+            }
             if (type == CMP) {
                 try {
                     this.value = Integer.parseInt(value);
                     this.type = CMP;
+                    this.id = -1;
                     return;
                 } catch (NumberFormatException e) {
                     throw new IllegalArgumentException("Cannot give cmp operand a symbol value.");
@@ -217,10 +401,12 @@ public class Atom {
                 } catch (NumberFormatException e) {
                     this.value = value;
                     this.type = VARIABLE;
+                    this.id = symbols.intern(value);
                     return;
                 }
                 this.type = CONSTANT;
                 this.value = numerical;
+                this.id = -1;
             }
             else if (type == VARIABLE || type == LABEL_DEFINITION || type == LABEL_USE) {
                 try {
@@ -229,12 +415,14 @@ public class Atom {
                 } catch (NumberFormatException e) {
                     this.value = value;
                     this.type = type;
+                    this.id = symbols.intern(value);
                 }
             }
             else if (type == CONSTANT) {
                 try {
                     this.value = Float.parseFloat(value);
                     this.type = CONSTANT;
+                    this.id = -1;
                 } catch (NumberFormatException e) {
                     throw new IllegalArgumentException("Cannot give a constant a non-numerical value.");
                 }
@@ -243,6 +431,12 @@ public class Atom {
             }
         }
 
+        // Whether Float.parseFloat() would reject a value; false means it has to be tried
+        private static boolean isName(String value) {
+            return !value.isEmpty() && Character.isJavaIdentifierStart(value.charAt(0))
+                && !value.startsWith("NaN") && !value.startsWith("Infinity");
+        }
+
         public String getSymbol() {
             return (String)value;
         }
@@ -255,6 +449,13 @@ public class Atom {
             return (Integer)value;
         }
 
+        /**
+         * @brief Converts an operand type to its name, as in the constants above.
+         */
+        public static String typeToString(int type) {
+            return typeNames[type];
+        }
+
         @Override
         public String toString() {
             return value.toString();
@@ -0,0 +1,284 @@
+package mainpackage;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.function.Consumer;
+
+import mainpackage.Atom.Operand;
+
+/**
+ * @brief A compact list of atoms.
+ * Stores every atom as a row of parallel primitive arrays instead of as an
+ * Atom with an array of Operand objects: its opcode, and for each of its
+ * five operand slots a kind and an int. The kind is the Operand type, or
+ * NONE for an empty slot. The int is the SymbolTable id of a variable or
+ * label, the raw bits of a constant, or the number of a cmp.
+ * It is a Consumer, so the Parser and ConstantFolding can append to it, and
+ * CodeGen, RegisterAllocator, GlobalOptimization and the printers read the
+ * rows directly. Passes that work on Atom objects can use asList().
+ */
+public class AtomBuffer implements Consumer<Atom> {
+    // The kind of an operand slot the atom does not use
+    public static final int NONE = -1;
+    // Operand slots per atom, as in Atom.operands
+    public static final int SLOTS = 5;
+
+    private static final Atom.Opcode[] OPCODES = Atom.Opcode.values();
+
+    // The table the names of the atoms are interned in
+    private final SymbolTable names;
+    // Parallel arrays: one opcode ordinal per atom, and SLOTS kinds and values per atom
+    private byte[] opcodes;
+    private byte[] kinds;
+    private int[] values;
+    // The number of atoms.
+    private int size = 0;
+
+    /**
+     * @brief Constructs an empty AtomBuffer.
+     * @param names The table the atoms' names are interned in.
+     */
+    public AtomBuffer(SymbolTable names) {
+        this(names, 256);
+    }
+
+    /**
+     * @brief Constructs an empty AtomBuffer with room for a number of atoms.
+     * @param names The table the atoms' names are interned in. May be null
+     * if the atoms are only read by index, since only get() and toString() look names up.
+     * @param capacity The number of atoms to make room for.
+     */
+    public AtomBuffer(SymbolTable names, int capacity) {
+        this.names = names;
+        capacity = Math.max(capacity, 1);
+        opcodes = new byte[capacity];
+        kinds = new byte[capacity * SLOTS];
+        values = new int[capacity * SLOTS];
+    }
+
+    /**
+     * @brief Returns an AtomBuffer holding the atoms of a list.
+     * @param atoms The atoms to copy.
+     * @param names The table the atoms' names are interned in.
+     */
+    public static AtomBuffer of(List<Atom> atoms, SymbolTable names) {
+        AtomBuffer buffer = new AtomBuffer(names, atoms.size());
+        for (Atom atom : atoms)
+            buffer.add(atom);
+        return buffer;
+    }
+
+    /**
+     * @brief Appends an atom. Same as add().
+     */
+    @Override
+    public void accept(Atom atom) {
+        add(atom);
+    }
+
+    /**
+     * @brief Appends an atom.
+     * @param atom The atom to append. Its names must be interned in this buffer's table.
+     */
+    public void add(Atom atom) {
+        ensureCapacity(size + 1);
+        opcodes[size] = (byte) atom.opcode.ordinal();
+        final int base = size * SLOTS;
+        for (int k = 0; k < SLOTS; k++) {
+            Operand op = atom.getOperand(k);
+            if (op == null) {
+                kinds[base + k] = NONE;
+                values[base + k] = 0;
+                continue;
+            }
+            kinds[base + k] = (byte) op.type;
+            switch (op.type) {
+                case Operand.CONSTANT: values[base + k] = Float.floatToRawIntBits(op.getConstant()); break;
+                case Operand.CMP: values[base + k] = op.getCmp(); break;
+                default: values[base + k] = op.id; break;
+            }
+        }
+        size++;
+    }
+
+    /**
+     * @brief Appends a copy of an atom of another buffer with the same SymbolTable.
+     * @param other The buffer to copy from.
+     * @param index The index of the atom in other.
+     */
+    public void add(AtomBuffer other, int index) {
+        other.check(index);
+        ensureCapacity(size + 1);
+        opcodes[size] = other.opcodes[index];
+        System.arraycopy(other.kinds, index * SLOTS, kinds, size * SLOTS, SLOTS);
+        System.arraycopy(other.values, index * SLOTS, values, size * SLOTS, SLOTS);
+        size++;
+    }
+
+    /**
+     * @brief Removes every atom, keeping the arrays for reuse.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * @brief Returns the number of atoms.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @brief Returns the table the atoms' names are interned in.
+     */
+    public SymbolTable names() {
+        return names;
+    }
+
+    /**
+     * @brief Returns the opcode of an atom.
+     * @param index The index of the atom.
+     */
+    public Atom.Opcode opcode(int index) {
+        check(index);
+        return OPCODES[opcodes[index]];
+    }
+
+    /**
+     * @brief Returns the kind of an operand: its Operand type, or NONE if the atom does not use the slot.
+     * @param index The index of the atom.
+     * @param slot The operand's index in Atom.operands.
+     */
+    public int kind(int index, int slot) {
+        check(index);
+        return kinds[index * SLOTS + slot];
+    }
+
+    /**
+     * @brief Returns the SymbolTable id of a variable or label operand.
+     * @param index The index of the atom.
+     * @param slot The operand's index in Atom.operands.
+     */
+    public int id(int index, int slot) {
+        check(index);
+        return values[index * SLOTS + slot];
+    }
+
+    /**
+     * @brief Returns the value of a constant operand.
+     * @param index The index of the atom.
+     * @param slot The operand's index in Atom.operands.
+     */
+    public float constant(int index, int slot) {
+        check(index);
+        return Float.intBitsToFloat(values[index * SLOTS + slot]);
+    }
+
+    /**
+     * @brief Returns the number of a cmp operand, as in Instruction.Cmp.
+     * @param index The index of the atom.
+     * @param slot The operand's index in Atom.operands.
+     */
+    public int cmp(int index, int slot) {
+        check(index);
+        return values[index * SLOTS + slot];
+    }
+
+    /**
+     * @brief Builds an Atom object for an atom.
+     * @param index The index of the atom.
+     */
+    public Atom get(int index) {
+        final Atom.Opcode opcode = opcode(index);
+        Operand[] operands = new Operand[SLOTS];
+        for (int k = 0; k < SLOTS; k++)
+            operands[k] = operand(index, k);
+        return new Atom(opcode, operands);
+    }
+
+    private Operand operand(int index, int slot) {
+        final int value = values[index * SLOTS + slot];
+        switch (kinds[index * SLOTS + slot]) {
+            case Operand.VARIABLE: return Operand.variable(names, value);
+            case Operand.LABEL_DEFINITION: return Operand.labelDefinition(names, value);
+            case Operand.LABEL_USE: return Operand.labelUse(names, value);
+            case Operand.CONSTANT: return Operand.constant(Float.intBitsToFloat(value));
+            case Operand.CMP: return Operand.cmp(value);
+            default: return null;
+        }
+    }
+
+    /**
+     * @brief Returns a read-only view of the atoms as a List, for passes
+     * that work on Atom objects. Each get() builds a new Atom.
+     */
+    public List<Atom> asList() {
+        return new View();
+    }
+
+    /**
+     * @brief Returns the text of an atom, the same as Atom.toString().
+     * @param index The index of the atom.
+     */
+    public String toString(int index) {
+        final Atom.Opcode opcode = opcode(index);
+        final int slots = slotsOf(opcode);
+        StringBuilder sb = new StringBuilder();
+        sb.append('(').append(opcode);
+        for (int k = 0; k < slots; k++) {
+            sb.append(", ");
+            final int value = values[index * SLOTS + k];
+            switch (kinds[index * SLOTS + k]) {
+                case Operand.CONSTANT: sb.append(Float.intBitsToFloat(value)); break;
+                case Operand.CMP: sb.append(value); break;
+                case NONE: break;
+                default: sb.append(names.name(value)); break;
+            }
+        }
+        sb.append(')');
+        return sb.toString();
+    }
+
+    /**
+     * @brief Returns the number of operand slots Atom.toString() shows for an opcode.
+     */
+    private static int slotsOf(Atom.Opcode opcode) {
+        switch (opcode) {
+            case JMP:
+            case LBL:
+            case TST:
+                return SLOTS;
+            default:
+                return 3;
+        }
+    }
+
+    private void check(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index " + index + " of " + size);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= opcodes.length)
+            return;
+        final int length = Math.max(capacity, opcodes.length * 2);
+        opcodes = Arrays.copyOf(opcodes, length);
+        kinds = Arrays.copyOf(kinds, length * SLOTS);
+        values = Arrays.copyOf(values, length * SLOTS);
+    }
+
+    private class View extends AbstractList<Atom> implements RandomAccess {
+        @Override
+        public Atom get(int index) {
+            return AtomBuffer.this.get(index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
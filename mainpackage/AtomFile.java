@@ -0,0 +1,347 @@
+package mainpackage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import mainpackage.Atom.Operand;
+
+/**
+ * @brief A compact binary format for atoms, so the frontend and the backend
+ * can run as separate processes.
+ * A file starts with MAGIC and holds a sequence of records, each starting
+ * with a tag byte:
+ * - An opcode's ordinal starts an atom. For atoms with value operands, a
+ *   byte follows with bit k set if operand k is a constant. Then come the
+ *   operands in order: constants as their raw float bits, variables and
+ *   labels as the varint id of their symbol, and a TST's cmp as one byte.
+ * - SYMBOL or TEMPORARY_SYMBOL defines a name: the varint id it is written
+ *   as, then the name in modified UTF-8. A name is defined right before the
+ *   first atom that uses it.
+ * - END ends the file.
+ * The ids in a file are the writer's SymbolTable ids; the reader interns the
+ * names in its own table and translates them. A file whose JMPs or TSTs go
+ * to a label no LBL defines is malformed.
+ */
+public class AtomFile {
+    // "ATM" and the format version
+    public static final int MAGIC = 0x41544D01;
+
+    private static final int SYMBOL = 0x80;
+    private static final int TEMPORARY_SYMBOL = 0x81;
+    private static final int END = 0xFF;
+
+    private static final Atom.Opcode[] OPCODES = Atom.Opcode.values();
+
+    private AtomFile() {}
+
+    /**
+     * @brief Returns whether a file starts with MAGIC.
+     * @param path The file to look at.
+     * @throws IOException If the file cannot be read.
+     */
+    public static boolean isAtomFile(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+            return in.readInt() == MAGIC;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @brief Returns the number of operands an atom with this opcode has before
+     * its result, destination or cmp, which are the ones that can be constants.
+     */
+    private static int valueOperands(Atom.Opcode opcode) {
+        switch (opcode) {
+            case ADD:
+            case SUB:
+            case MUL:
+            case DIV:
+            case TST:
+                return 2;
+            case NEG:
+            case MOV:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @brief Writes atoms to a stream as they are made. It can take the
+     * place of any other Consumer of the Parser's atoms.
+     */
+    public static class Writer implements Consumer<Atom>, Closeable {
+        private final DataOutputStream out;
+        private final SymbolTable names;
+        // Holds the atom given to write(Atom) while it is written
+        private final AtomBuffer single;
+        // Whether each symbol id has been defined in the file yet
+        private boolean[] defined = new boolean[64];
+
+        /**
+         * @brief Starts a file by writing its header.
+         * @param out The stream to write to. It is buffered here, and closed by close().
+         * @param names The table the atoms' names are interned in.
+         * @throws IOException If the header cannot be written.
+         */
+        public Writer(OutputStream out, SymbolTable names) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(out));
+            this.names = names;
+            this.single = new AtomBuffer(names, 1);
+            this.out.writeInt(MAGIC);
+        }
+
+        /**
+         * @brief Writes an atom, defining any names it uses for the first time.
+         * @throws UncheckedIOException If the stream cannot be written, since accept() cannot throw IOException.
+         */
+        @Override
+        public void accept(Atom atom) {
+            try {
+                write(atom);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * @brief Writes an atom, defining any names it uses for the first time.
+         * @param atom The atom to write.
+         * @throws IOException If the stream cannot be written.
+         */
+        public void write(Atom atom) throws IOException {
+            single.clear();
+            single.add(atom);
+            write(single, 0);
+        }
+
+        /**
+         * @brief Writes an atom of a buffer, defining any names it uses for the first time.
+         * @param atoms The buffer holding the atom. Its names must be interned in this writer's table.
+         * @param i The index of the atom.
+         * @throws IOException If the stream cannot be written.
+         */
+        public void write(AtomBuffer atoms, int i) throws IOException {
+            for (int k = 0; k < AtomBuffer.SLOTS; k++) {
+                final int kind = atoms.kind(i, k);
+                if (kind == Operand.VARIABLE || kind == Operand.LABEL_DEFINITION || kind == Operand.LABEL_USE)
+                    define(atoms.id(i, k));
+            }
+
+            final Atom.Opcode opcode = atoms.opcode(i);
+            out.writeByte(opcode.ordinal());
+            final int values = valueOperands(opcode);
+            int constants = 0;
+            for (int k = 0; k < values; k++)
+                if (atoms.kind(i, k) == Operand.CONSTANT)
+                    constants |= 1 << k;
+            if (values > 0)
+                out.writeByte(constants);
+
+            for (int k = 0; k < AtomBuffer.SLOTS; k++) {
+                switch (atoms.kind(i, k)) {
+                    case AtomBuffer.NONE: break;
+                    case Operand.CONSTANT: out.writeInt(Float.floatToRawIntBits(atoms.constant(i, k))); break;
+                    case Operand.CMP: out.writeByte(atoms.cmp(i, k)); break;
+                    default: writeVarint(atoms.id(i, k)); break;
+                }
+            }
+        }
+
+        private void define(int id) throws IOException {
+            if (id >= defined.length) {
+                boolean[] bigger = new boolean[Math.max(defined.length * 2, id + 1)];
+                System.arraycopy(defined, 0, bigger, 0, defined.length);
+                defined = bigger;
+            }
+            if (defined[id])
+                return;
+            defined[id] = true;
+            out.writeByte(names.isTemporary(id) ? TEMPORARY_SYMBOL : SYMBOL);
+            writeVarint(id);
+            out.writeUTF(names.name(id));
+        }
+
+        private void writeVarint(int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                out.writeByte(value & 0x7F | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte(value);
+        }
+
+        /**
+         * @brief Ends the file and closes the stream.
+         * @throws IOException If the stream cannot be written.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                out.writeByte(END);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * @brief Reads atoms from a stream one at a time.
+     */
+    public static class Reader implements Closeable {
+        private static final byte LABEL_DEFINED = 1;
+        private static final byte LABEL_USED = 2;
+
+        private final DataInputStream in;
+        private final SymbolTable names;
+        // The id in names of each id in the file, or -1 if it has not been defined
+        private int[] ids = new int[64];
+        // LABEL_DEFINED and LABEL_USED bits of each label, by its id in names
+        private byte[] labels = new byte[64];
+        private boolean ended = false;
+
+        /**
+         * @brief Starts reading a file by checking its header.
+         * @param in The stream to read from. It is buffered here, and closed by close().
+         * @param names The table to intern the file's names in.
+         * @throws IOException If the stream cannot be read or does not start with MAGIC.
+         */
+        public Reader(InputStream in, SymbolTable names) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(in));
+            this.names = names;
+            Arrays.fill(ids, -1);
+            if (this.in.readInt() != MAGIC)
+                throw new IOException("Not an atom file.");
+        }
+
+        /**
+         * @brief Reads the next atom.
+         * @return The atom, or null at the end of the file.
+         * @throws IOException If the stream cannot be read, ends early or is
+         * malformed, including at the end if a label is used but never defined.
+         */
+        public Atom read() throws IOException {
+            while (!ended) {
+                final int tag = in.readUnsignedByte();
+                if (tag == END) {
+                    ended = true;
+                    checkLabels();
+                } else if (tag == SYMBOL || tag == TEMPORARY_SYMBOL) {
+                    final int fileId = readVarint();
+                    final String name = in.readUTF();
+                    grow(fileId);
+                    ids[fileId] = tag == TEMPORARY_SYMBOL ? names.internTemporary(name) : names.intern(name);
+                } else if (tag < OPCODES.length) {
+                    return readAtom(OPCODES[tag]);
+                } else {
+                    throw new IOException("Unknown record " + tag + " in atom file.");
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @brief Reads every remaining atom.
+         * @param output The Consumer to pass the atoms to, e.g. a CodeGen.
+         * @throws IOException If the stream cannot be read, ends early or is malformed.
+         */
+        public void readAll(Consumer<Atom> output) throws IOException {
+            for (Atom atom = read(); atom != null; atom = read())
+                output.accept(atom);
+        }
+
+        private Atom readAtom(Atom.Opcode opcode) throws IOException {
+            final int values = valueOperands(opcode);
+            final int constants = values > 0 ? in.readUnsignedByte() : 0;
+            Operand[] operands = new Operand[5];
+            for (int k = 0; k < values; k++)
+                operands[k] = (constants & 1 << k) != 0
+                    ? Operand.constant(Float.intBitsToFloat(in.readInt()))
+                    : Operand.variable(names, symbol());
+
+            switch (opcode) {
+                case ADD:
+                case SUB:
+                case MUL:
+                case DIV:
+                case NEG:
+                case MOV:
+                    operands[2] = Operand.variable(names, symbol());
+                    break;
+                case TST:
+                    operands[3] = Operand.cmp(in.readUnsignedByte());
+                    operands[4] = Operand.labelUse(names, label(LABEL_USED));
+                    break;
+                case JMP:
+                    operands[4] = Operand.labelUse(names, label(LABEL_USED));
+                    break;
+                case LBL:
+                    operands[4] = Operand.labelDefinition(names, label(LABEL_DEFINED));
+                    break;
+                default:
+                    throw new IOException("Unknown opcode " + opcode + " in atom file.");
+            }
+            return new Atom(opcode, operands);
+        }
+
+        // Reads a symbol id from the file and returns its id in names
+        private int symbol() throws IOException {
+            final int fileId = readVarint();
+            if (fileId >= ids.length || ids[fileId] < 0)
+                throw new IOException("Symbol " + fileId + " used before it is defined in atom file.");
+            return ids[fileId];
+        }
+
+        // Reads a label's symbol id from the file, records that it is defined or used, and returns its id in names
+        private int label(byte use) throws IOException {
+            final int id = symbol();
+            if (id >= labels.length)
+                labels = Arrays.copyOf(labels, Math.max(labels.length * 2, id + 1));
+            labels[id] |= use;
+            return id;
+        }
+
+        private void checkLabels() throws IOException {
+            for (int id = 0; id < labels.length; id++)
+                if (labels[id] == LABEL_USED)
+                    throw new IOException("Malformed atom file: label " + names.name(id) + " is used but never defined.");
+        }
+
+        private void grow(int fileId) {
+            if (fileId < ids.length)
+                return;
+            int[] bigger = new int[Math.max(ids.length * 2, fileId + 1)];
+            Arrays.fill(bigger, ids.length, bigger.length, -1);
+            System.arraycopy(ids, 0, bigger, 0, ids.length);
+            ids = bigger;
+        }
+
+        private int readVarint() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                final int b = in.readUnsignedByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IOException("Malformed id in atom file.");
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
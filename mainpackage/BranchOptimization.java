@@ -0,0 +1,105 @@
+package mainpackage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import mainpackage.Atom.Operand;
+
+/**
+ * @brief Cleans up the jumps that the Parser's if, else and loop lowering leaves.
+ * - A jump to a label that is followed by (JMP, dest) goes straight to dest.
+ *   Chains are followed to their end, and jumps that loop forever are kept.
+ * - Blocks that are no longer reached after that are dropped by GlobalOptimization.
+ * - A JMP or TST to a label right after it, with only labels in between, is removed.
+ * Each removed JMP saves CodeGen's CMP ALWAYS and JMP pair.
+ */
+public class BranchOptimization {
+    private static final int UNRESOLVED = -1;
+    private static final int RESOLVING = -2;
+
+    private BranchOptimization() {}
+
+    /**
+     * @brief Threads jump chains and removes jumps to the next atom.
+     * @param input The atoms of the program. This function does not change this list.
+     * @param names The table the atoms' names were interned in.
+     * @return A new list of atoms that runs the same way with fewer jumps.
+     */
+    public static List<Atom> optimize(List<Atom> input, SymbolTable names) {
+        final Atom[] atoms = input.toArray(new Atom[0]);
+        final int n = atoms.length;
+        final int ids = names.size();
+
+        int[] labelAt = new int[ids];
+        Arrays.fill(labelAt, -1);
+        for (int i = 0; i < n; i++)
+            if (atoms[i].opcode == Atom.Opcode.LBL)
+                labelAt[atoms[i].getOperand(4).id] = i;
+
+        // Send every jump to the end of its chain
+        int[] destination = new int[ids];
+        Arrays.fill(destination, UNRESOLVED);
+        List<Atom> threaded = new ArrayList<>(n);
+        for (Atom atom : atoms) {
+            if (atom.opcode == Atom.Opcode.JMP || atom.opcode == Atom.Opcode.TST) {
+                int label = atom.getOperand(4).id;
+                int dest = resolve(label, atoms, labelAt, destination);
+                if (dest != label)
+                    atom = retarget(atom, Operand.labelUse(names, dest));
+            }
+            threaded.add(atom);
+        }
+
+        Atom[] reachable = GlobalOptimization.optimize(threaded).toArray(new Atom[0]);
+
+        // Walk backwards, remembering which labels start the code kept so far
+        int[] leadingRun = new int[ids];
+        int run = 1;
+        Atom[] kept = new Atom[reachable.length];
+        int first = reachable.length;
+        for (int i = reachable.length - 1; i >= 0; i--) {
+            Atom atom = reachable[i];
+            if (atom.opcode == Atom.Opcode.LBL) {
+                leadingRun[atom.getOperand(4).id] = run;
+            } else if ((atom.opcode == Atom.Opcode.JMP || atom.opcode == Atom.Opcode.TST)
+                    && leadingRun[atom.getOperand(4).id] == run) {
+                continue;
+            } else {
+                run++;
+            }
+            kept[--first] = atom;
+        }
+        return new ArrayList<>(Arrays.asList(kept).subList(first, kept.length));
+    }
+
+    /**
+     * @brief Returns the label a jump to the given label ends up at.
+     */
+    private static int resolve(int label, Atom[] atoms, int[] labelAt, int[] destination) {
+        if (destination[label] >= 0)
+            return destination[label];
+        if (destination[label] == RESOLVING || labelAt[label] < 0)
+            return label; // A cycle of jumps, or a label that is never defined
+
+        destination[label] = RESOLVING;
+        int i = labelAt[label];
+        while (i < atoms.length && atoms[i].opcode == Atom.Opcode.LBL)
+            i++;
+        int dest = label;
+        if (i < atoms.length && atoms[i].opcode == Atom.Opcode.JMP) {
+            dest = resolve(atoms[i].getOperand(4).id, atoms, labelAt, destination);
+            // Inside a cycle the inner call stopped at this label; so does everything that leads into it
+            if (destination[dest] == RESOLVING)
+                dest = label;
+        }
+        destination[label] = dest;
+        return dest;
+    }
+
+    private static Atom retarget(Atom atom, Operand dest) {
+        if (atom.opcode == Atom.Opcode.JMP)
+            return new Atom(Atom.Opcode.JMP, null, null, null, null, dest);
+        return new Atom(Atom.Opcode.TST, atom.getOperand(0), atom.getOperand(1), null, atom.getOperand(3), dest);
+    }
+}
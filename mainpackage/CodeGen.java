@@ -7,10 +7,9 @@ package mainpackage;
  * @date 12/04/2024
  */
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map.Entry;
-import java.util.Optional;
 import java.util.Stack;
 import java.util.function.Consumer;
 
@@ -20,8 +19,13 @@ import mainpackage.Instruction.Opcode;
 
 /**
  * @brief Parses Atoms From Scanner Into Binary
+ * Atoms can either be given as an AtomBuffer or a list to generate(), or
+ * streamed in one at a time through accept() and finish(); in both cases the
+ * code is produced in a single pass over the atoms. The code is generated
+ * from the rows of an AtomBuffer, so a program given as one is read without
+ * making an Atom or Operand object per atom.
  */
-public class CodeGen {
+public class CodeGen implements Consumer<Atom> {
     // We will only ever use reg0 because there are no instructions
     // that can utilize more than one register anyways.
     private static final int REG = 0;
@@ -32,147 +36,430 @@ public class CodeGen {
     private Symbols symbols = null;
 
     // Parser to Read Atoms From
-    private final List<Atom> input;
+    private final AtomBuffer input;
+    // Holds the atom given to accept() while its code is generated
+    private final AtomBuffer streamed;
 
-    // Consumer to Handle Binary
-    private final Consumer<Integer> output;
+    // Names of the variables and labels used by the atoms
+    private final SymbolTable names;
+
+    // Sink to Handle Binary
+    private final IntSink output;
 
     // Stack Holding Captured Output for Deferred Handling.
-    private Stack<List<Integer>> capturedOutput = new Stack<List<Integer>>();
+    private Stack<IntList> capturedOutput = new Stack<IntList>();
+
+    // Addresses of the constants and variables seen so far. Variables are indexed by id, -1 when not seen
+    private final HashMap<Float, Integer> constantTable = new HashMap<>();
+    private int[] variableAddresses = new int[0];
+    private int variableCount = 0;
+    // Points to the next memory address to be allocated to a variable or constant.
+    private int memoryCounter = 1; //  (starts at 1 because we include the address of the beginning of our code segment here)
+    // Offsets of the labels from the first instruction, indexed by id, -1 when not defined yet
+    private int[] labelOffsets = new int[0];
+
+    // Whether generate() should keep temporaries in registers
+    private final boolean allocateRegisters;
+    // Register of each id, -1 for ids in memory. Null when everything is in memory
+    private int[] registers = null;
+
+    // Code generated so far, and where its jumps are and which labels they go to
+    private final IntList code = new IntList();
+    private final IntList jumpPositions = new IntList();
+    private final IntList jumpLabels = new IntList();
+
+    // Whether the VM's flag is known to be set where the next instruction runs, and whether the
+    // code so far can fall into it. MiniVM starts with the flag clear.
+    private boolean flagSet = false;
+    private boolean fallsThrough = true;
+
+    /**
+     * @brief Constructs Code Generator Object
+     * @param input The Parser Object Providing Atoms
+     * @param names The Table the Atoms' Names Were Interned In
+     * @param output The Sink to Accept Outputs, e.g. an IntList
+     */
+    public CodeGen(List<Atom> input, SymbolTable names, IntSink output) {
+        this(input, names, output, true);
+    }
 
     /**
      * @brief Constructs Code Generator Object
      * @param input The Parser Object Providing Atoms
-     * @param output The Consumer Object to Accept Outputs
+     * @param names The Table the Atoms' Names Were Interned In
+     * @param output The Sink to Accept Outputs, e.g. an IntList
+     * @param allocateRegisters False to Keep Every Variable in Memory and Only Use Register 0
      */
-    public CodeGen(List<Atom> input, Consumer<Integer> output) {
+    public CodeGen(List<Atom> input, SymbolTable names, IntSink output, boolean allocateRegisters) {
+        this(AtomBuffer.of(input, names), names, output, allocateRegisters);
+    }
+
+    /**
+     * @brief Constructs Code Generator Object
+     * @param input The Atoms of the Program
+     * @param output The Sink to Accept Outputs, e.g. an IntList
+     * @param allocateRegisters False to Keep Every Variable in Memory and Only Use Register 0
+     */
+    public CodeGen(AtomBuffer input, IntSink output, boolean allocateRegisters) {
+        this(input, input.names(), output, allocateRegisters);
+    }
+
+    private CodeGen(AtomBuffer input, SymbolTable names, IntSink output, boolean allocateRegisters) {
         this.input = input;
+        this.streamed = new AtomBuffer(names, 1);
+        this.names = names;
         this.output = output;
+        this.allocateRegisters = allocateRegisters;
     }
 
     /**
-     * @brief Serves as our first pass, filling in the label table
-     * 
-     * @return initialized symbol object
+     * @brief Constructs a Code Generator that is fed one atom at a time,
+     * e.g. as the Parser's output, instead of generating from a list.
+     * @param names The Table the Atoms' Names Are Interned In
+     * @param output The Sink to Accept Outputs, e.g. an IntList
      */
-    private Symbols generateTables() {
-        Symbols symbols = new Symbols();
-        //program counter
-        int pc = 1; //  (starts at 1 because we include the address of the beginning of our code segment here)
-        // Points to the next memory address to be allocated to a variable or constant.
-        int memoryCounter = 1; //  (starts at 1 because we include the address of the beginning of our code segment here)
-
-        //iterate through generated atoms
-        for (Atom atom : input) {
-            for (Operand o : atom.operands) {
-                if (o == null)
-                    continue;
-                // add memory address to appropriate table if necessary
-                switch (o.type) {
-                    case Operand.CONSTANT:
-                        if (symbols.constantTable.putIfAbsent(o.getConstant(), memoryCounter) == null)
-                            memoryCounter += 1;
-                        break;
-                    case Operand.VARIABLE:
-                        if (symbols.variableTable.putIfAbsent(o.getSymbol(), memoryCounter) == null)
-                            memoryCounter += 1;
-                        break;
-                    case Operand.LABEL_DEFINITION:
-                        symbols.labelTable.putIfAbsent(o.getSymbol(), pc);
-                        break;
-                    default: break;
+    public CodeGen(SymbolTable names, IntSink output) {
+        this((AtomBuffer) null, names, output, false);
+    }
+
+    /**
+     * @brief Starts Parsing Input
+     * @throws CodeGenException If Invalid Input
+     */
+    public void generate() {
+        if (input == null)
+            throw new IllegalStateException("This code generator was not given an atom list; feed it with accept() and finish().");
+
+        // Registers need to know every use of a variable, so only the list form can have them
+        if (allocateRegisters)
+            registers = RegisterAllocator.allocate(input);
+
+        for (int i = 0; i < input.size(); i++)
+            generate(input, i);
+        finish();
+    }
+
+    /**
+     * @brief Generates the code of one atom. Used to stream atoms straight
+     * from the Parser; call finish() after the last one.
+     * Variables and constants get their addresses the first time they are
+     * seen. Jumps are emitted with an empty address and patched in finish(),
+     * once the size of the data segment and every label is known.
+     * @param atom The next atom of the program
+     */
+    @Override
+    public void accept(Atom atom) {
+        streamed.clear();
+        streamed.add(atom);
+        generate(streamed, 0);
+    }
+
+    /**
+     * @brief Generates the code of the atom at an index of a buffer.
+     */
+    private void generate(AtomBuffer atoms, int i) {
+        if (symbols != null)
+            throw new IllegalStateException("Cannot accept atoms after the code has been generated.");
+
+        // Give new variables, constants and labels their addresses
+        for (int k = 0; k < AtomBuffer.SLOTS; k++) {
+            switch (atoms.kind(i, k)) {
+                case Operand.CONSTANT:
+                    if (constantTable.putIfAbsent(atoms.constant(i, k), memoryCounter) == null)
+                        memoryCounter += 1;
+                    break;
+                case Operand.VARIABLE: {
+                    int id = atoms.id(i, k);
+                    variableAddresses = ensureId(variableAddresses, id);
+                    if (variableAddresses[id] < 0 && registerOf(atoms, i, k) < 0) {
+                        variableAddresses[id] = memoryCounter;
+                        variableCount++;
+                        memoryCounter += 1;
+                    }
+                    break;
                 }
+                case Operand.LABEL_DEFINITION: {
+                    int id = atoms.id(i, k);
+                    labelOffsets = ensureId(labelOffsets, id);
+                    if (labelOffsets[id] < 0)
+                        labelOffsets[id] = code.size();
+                    break;
+                }
+                default: break;
             }
+        }
+
+        final Atom.Opcode opcode = atoms.opcode(i);
+
+        // A jump is only taken with the flag set, so it is set at a label that nothing falls into
+        if (opcode == Atom.Opcode.LBL) {
+            flagSet |= !fallsThrough;
+            fallsThrough = true;
+        }
+
+        if (registers != null) {
+            generateAllocated(atoms, i);
+            return;
+        }
+
+        switch (opcode) {
+            case ADD:
+            case SUB:
+            case MUL:
+            case DIV:
+                emit(
+                    Instruction.create(Opcode.LOD, 0, REG, dataAddr(atoms, i, 0)), // LOAD LHS
+                    Instruction.create(Opcode.fromAtomOpcode(opcode), 0, REG, dataAddr(atoms, i, 1)), // ADD RHS
+                    Instruction.create(Opcode.STO, 0, REG, dataAddr(atoms, i, 2)) // STORE RESULT
+                    );
+                break;
+            case JMP:
+                emitAlwaysJump(atoms, i); // jump to the label
+                break;
+
+            case TST:
+                emit(
+                    Instruction.create(Opcode.LOD, 0, REG, dataAddr(atoms, i, 0)), // Load the lhs
+                    Instruction.create(Opcode.CMP, atoms.cmp(i, 3), REG, dataAddr(atoms, i, 1)) // lhs cmp rhs
+                    );
+                emitJump(atoms, i); // jump if flag is true
+                break;
+
+            case NEG:
+                emit(
+                    Instruction.create(Opcode.LOD, 0, REG, dataAddr(atoms, i, 0)), // Load lhs
+                    Instruction.create(Opcode.SUB, 0, REG, dataAddr(atoms, i, 0)), // Handling the main Sub instruction //gets number to be 0
+                    Instruction.create(Opcode.SUB, 0, REG, dataAddr(atoms, i, 0)), // Handling the main Sub instruction //gets number to be negative version of itself
+                    Instruction.create(Opcode.STO, 0, REG, dataAddr(atoms, i, 2)) // Store result
+                    );
+                break;
+
+            case LBL: // handled above
+                // Dont increment pc because this is not generating any instructions
+                break;
+
+            case MOV:
+                emit(
+                    Instruction.create(Opcode.LOD, 0, REG, dataAddr(atoms, i, 0)), // Handling the initial Load Instruction
+                    Instruction.create(Opcode.STO, 0, REG, dataAddr(atoms, i, 2)) // Handling the Store instruction
+                    );
+                break;
+
+            default:
+                throw new RuntimeException("Unknown Atom");
+        }
+    }
 
-            // Inc pc
-            switch (atom.opcode) {
-                case LBL: break; // Dont inc pc cause this generates no instructions
-                case ADD: pc += 3; break;
-                case SUB: pc += 3; break;
-                case MUL: pc += 3; break;
-                case DIV: pc += 3; break;
-                case JMP: pc += 2; break;
-                case NEG: pc += 4; break;
-                case TST: pc += 3; break;
-                case MOV: pc += 2; break;
-                default: throw new RuntimeException();
+    /**
+     * @brief Generates the code of one atom when some variables live in registers.
+     * The register the atom works in is the one its register operand is in,
+     * or else the one its result goes to, or else register 0. A register
+     * operand needs no LOD and a register result needs no STO.
+     * See RegisterAllocator for which operands can be in registers.
+     */
+    private void generateAllocated(AtomBuffer atoms, int i) {
+        final Atom.Opcode opcode = atoms.opcode(i);
+        // Operand slots of the left side, right side and result
+        int lhs = 0;
+        int rhs = 1;
+        final int result = 2;
+
+        switch (opcode) {
+            case ADD:
+            case SUB:
+            case MUL:
+            case DIV: {
+                // ADD and MUL may have their register operand on the right
+                if (registerOf(atoms, i, rhs) >= 0) {
+                    lhs = 1;
+                    rhs = 0;
+                }
+                int r = workRegister(atoms, i, lhs, result);
+                load(r, atoms, i, lhs);
+                emit(Instruction.create(Opcode.fromAtomOpcode(opcode), 0, r, dataAddr(atoms, i, rhs)));
+                store(r, atoms, i, result);
+                break;
+            }
+            case JMP:
+                emitAlwaysJump(atoms, i); // jump to the label
+                break;
+
+            case TST: {
+                int r = workRegister(atoms, i, lhs, -1);
+                load(r, atoms, i, lhs);
+                emit(Instruction.create(Opcode.CMP, atoms.cmp(i, 3), r, dataAddr(atoms, i, rhs))); // lhs cmp rhs
+                emitJump(atoms, i); // jump if flag is true
+                break;
+            }
+            case NEG: {
+                int r = workRegister(atoms, i, -1, result);
+                emit(
+                    Instruction.create(Opcode.LOD, 0, r, dataAddr(atoms, i, lhs)),
+                    Instruction.create(Opcode.SUB, 0, r, dataAddr(atoms, i, lhs)),
+                    Instruction.create(Opcode.SUB, 0, r, dataAddr(atoms, i, lhs))
+                    );
+                store(r, atoms, i, result);
+                break;
+            }
+            case LBL:
+                break;
+
+            case MOV: {
+                int r = workRegister(atoms, i, lhs, result);
+                load(r, atoms, i, lhs);
+                store(r, atoms, i, result);
+                break;
             }
+            default:
+                throw new RuntimeException("Unknown Atom");
         }
+    }
 
-        int firstInstructionAddress = symbols.getMemConsumed();
-        // Add base addresses to labelTable
-        for (HashMap.Entry<String, Integer> e : symbols.labelTable.entrySet())
-            e.setValue(e.getValue() + firstInstructionAddress);
+    /**
+     * @brief Returns the register an atom works in, given the slots of the operand it loads
+     * and the operand it stores, -1 for none
+     */
+    private int workRegister(AtomBuffer atoms, int i, int loaded, int stored) {
+        if (loaded >= 0 && registerOf(atoms, i, loaded) >= 0)
+            return registerOf(atoms, i, loaded);
+        if (stored >= 0 && registerOf(atoms, i, stored) >= 0)
+            return registerOf(atoms, i, stored);
+        return REG;
+    }
 
-        return symbols;
+    // LOD an operand unless it is already in the register
+    private void load(int register, AtomBuffer atoms, int i, int slot) {
+        if (registerOf(atoms, i, slot) < 0)
+            emit(Instruction.create(Opcode.LOD, 0, register, dataAddr(atoms, i, slot)));
+    }
+
+    // STO a result unless it lives in the register
+    private void store(int register, AtomBuffer atoms, int i, int slot) {
+        if (registerOf(atoms, i, slot) < 0)
+            emit(Instruction.create(Opcode.STO, 0, register, dataAddr(atoms, i, slot)));
     }
 
     /**
-     * @brief Starts Parsing Input
-     * @throws CodeGenException If Invalid Input
+     * @brief Returns the register a variable operand lives in, or -1 if it is in memory
      */
-    public void generate() {
-        //getting the Label Table
-        Symbols symbols = generateTables();
+    private int registerOf(AtomBuffer atoms, int i, int slot) {
+        if (registers == null || atoms.kind(i, slot) != Operand.VARIABLE)
+            return -1;
+        int id = atoms.id(i, slot);
+        return id < registers.length ? registers[id] : -1;
+    }
+
+    /**
+     * @brief Ends the program: builds the symbol tables, back-patches the
+     * jumps and sends the data segment followed by the code to the output.
+     * @throws RuntimeException If a jump goes to a label that was never defined
+     */
+    public void finish() {
+        if (symbols != null)
+            throw new IllegalStateException("The code has already been generated.");
+
+        // Stop the VM at the end of the program instead of letting it run off into memory
+        emit(Instruction.create(Opcode.HLT, 0, 0, 0));
+
+        // Every name has been interned by now, so the tables can be sized
+        Symbols symbols = new Symbols(names);
+        symbols.constantTable.putAll(constantTable);
+        System.arraycopy(variableAddresses, 0, symbols.variableAddresses, 0, Math.min(variableAddresses.length, names.size()));
+        symbols.variableCount = variableCount;
+        int firstInstructionAddress = symbols.getMemConsumed();
+        // Add base addresses to labelAddresses
+        for (int id = 0; id < labelOffsets.length && id < names.size(); id++)
+            if (labelOffsets[id] >= 0)
+                symbols.labelAddresses[id] = labelOffsets[id] + firstInstructionAddress;
+
+        // Back-patch the jumps
+        final int[] words = code.array();
+        for (int i = 0; i < jumpPositions.size(); i++) {
+            int id = jumpLabels.get(i);
+            if (symbols.labelAddresses[id] < 0)
+                throw new RuntimeException("Undefined label: " + names.name(id));
+            words[jumpPositions.get(i)] = Instruction.withA(words[jumpPositions.get(i)], symbols.labelAddresses[id]);
+        }
+
         this.symbols = symbols;
-        // Output constants and variables
-        output(symbols.getBeginningOfMemory());
-        codeSegmentBeginning = symbols.getMemConsumed();
-
-        //iterating through the atom list
-        for (Atom atom : input) {
-            switch (atom.opcode) {
-                case ADD:
-                case SUB:
-                case MUL:
-                case DIV:
-                    output(
-                        Instruction.create(Opcode.LOD, 0, REG, symbols.opToAddr(atom.getOperand(0))), // LOAD LHS
-                        Instruction.create(Opcode.fromAtomOpcode(atom.opcode), 0, REG, symbols.opToAddr(atom.getOperand(1))), // ADD RHS
-                        Instruction.create(Opcode.STO, 0, REG, symbols.opToAddr(atom.getOperand(2))) // STORE RESULT
-                        );
-                    break;
-                case JMP:
-                    output(
-                        Instruction.create(Opcode.CMP, Cmp.ALWAYS, 0, 0), // Set flag to true so that we can jump
-                        Instruction.create(Opcode.JMP, 0, 0, symbols.opToAddr(atom.getOperand(4))) // jump to the label
-                        );
-                    break;
+        codeSegmentBeginning = firstInstructionAddress;
 
-                case TST:
-                    output(
-                        Instruction.create(Opcode.LOD, 0, REG, symbols.opToAddr(atom.getOperand(0))), // Load the lhs
-                        Instruction.create(Opcode.CMP, atom.getOperand(3).getCmp(), REG, symbols.opToAddr(atom.getOperand(1))), // lhs cmp rhs
-                        Instruction.create(Opcode.JMP, 0, 0, symbols.opToAddr(atom.getOperand(4))) // jump if flag is true
-                        );
-                    break;
+        // Output constants and variables, then the code
+        output(symbols.getBeginningOfMemory());
+        for (int i = 0; i < code.size(); i++)
+            output(words[i]);
+    }
 
-                case NEG:
-                    output(
-                        Instruction.create(Opcode.LOD, 0, REG, symbols.opToAddr(atom.getOperand(0))), // Load lhs
-                        Instruction.create(Opcode.SUB, 0, REG, symbols.opToAddr(atom.getOperand(0))), // Handling the main Sub instruction //gets number to be 0
-                        Instruction.create(Opcode.SUB, 0, REG, symbols.opToAddr(atom.getOperand(0))), // Handling the main Sub instruction //gets number to be negative version of itself
-                        Instruction.create(Opcode.STO, 0, REG, symbols.opToAddr(atom.getOperand(2))) // Store result
-                        );
-		            break;
-
-                case LBL: //handled in generateLabelTable()
-                    // Dont increment pc because this is not generating any instructions
-                    break;
-                
-                case MOV:
-                    output(
-                        Instruction.create(Opcode.LOD, 0, REG, symbols.opToAddr(atom.getOperand(0))), // Handling the initial Load Instruction
-                        Instruction.create(Opcode.STO, 0, REG, symbols.opToAddr(atom.getOperand(2))) // Handling the Store instruction
-                        );
-		            break;
-
-                default:
-                    throw new RuntimeException("Unknown Atom");
-            }
+    /**
+     * @brief Returns the address of a constant or variable operand
+     */
+    private int dataAddr(AtomBuffer atoms, int i, int slot) {
+        switch (atoms.kind(i, slot)) {
+            case Operand.CONSTANT: return constantTable.get(atoms.constant(i, slot));
+            case Operand.VARIABLE: return variableAddresses[atoms.id(i, slot)];
+            default: throw new RuntimeException();
         }
     }
 
+    /**
+     * @brief Emits a JMP to the label of a JMP or TST atom, leaving its address to be patched by finish()
+     * The code after it only runs when the jump was not taken, i.e. with the flag clear.
+     */
+    private void emitJump(AtomBuffer atoms, int i) {
+        if (atoms.kind(i, 4) != Operand.LABEL_USE)
+            throw new RuntimeException();
+        jumpPositions.add(code.size());
+        jumpLabels.add(atoms.id(i, 4));
+        emit(Instruction.create(Opcode.JMP, 0, 0, 0));
+        flagSet = false;
+    }
+
+    /**
+     * @brief Emits an unconditional jump to the label of a JMP atom. The CMP ALWAYS that sets
+     * the flag for it is left out when the flag is known to be set already.
+     */
+    private void emitAlwaysJump(AtomBuffer atoms, int i) {
+        if (!flagSet)
+            emit(Instruction.create(Opcode.CMP, Cmp.ALWAYS, 0, 0)); // Set flag to true so that we can jump
+        emitJump(atoms, i);
+        flagSet = true;
+        fallsThrough = false;
+    }
+
+    /**
+     * @brief Grows an array indexed by symbol id so that it holds id, filling new entries with -1
+     */
+    private static int[] ensureId(int[] array, int id) {
+        if (id < array.length)
+            return array;
+        int[] bigger = Arrays.copyOf(array, Math.max(id + 1, array.length * 2));
+        Arrays.fill(bigger, array.length, bigger.length, -1);
+        return bigger;
+    }
+
+    // Code of the atoms seen so far, waiting for the data segment to be known
+    private void emit(int instruction) {
+        code.add(instruction);
+    }
+
+    private void emit(int first, int second) {
+        code.add(first);
+        code.add(second);
+    }
+
+    private void emit(int first, int second, int third) {
+        code.add(first);
+        code.add(second);
+        code.add(third);
+    }
+
+    private void emit(int first, int second, int third, int fourth) {
+        code.add(first);
+        code.add(second);
+        code.add(third);
+        code.add(fourth);
+    }
+
     /**
      * @brief Returns the beginning of the code segment
      */
@@ -216,20 +503,36 @@ public class CodeGen {
      * @brief Class relevant to auxiliary tables for code generation
      */
     public static class Symbols {
-        //initializing label table
-        public final HashMap<String, Integer> labelTable = new HashMap<>();
+        // Names of the variables and labels; the arrays below are indexed by their ids
+        public final SymbolTable names;
+        // Maps label ids to addresses, -1 for ids that are not labels
+        public final int[] labelAddresses;
         // Maps constant integer values to their locations in memory
         // because for some reason this assembly language has no immediate instructions :|
         public final HashMap<Float, Integer> constantTable = new HashMap<>();
-        // Maps variables to addresses
-        public final HashMap<String, Integer> variableTable = new HashMap<>();
+        // Maps variable ids to addresses, -1 for ids that are not variables
+        public final int[] variableAddresses;
+        // The number of ids that have a variable address
+        int variableCount = 0;
+
+        /**
+         * @brief Creates empty tables for the names of a SymbolTable.
+         * @param names The table whose ids index the address arrays.
+         */
+        public Symbols(SymbolTable names) {
+            this.names = names;
+            labelAddresses = new int[names.size()];
+            variableAddresses = new int[names.size()];
+            Arrays.fill(labelAddresses, -1);
+            Arrays.fill(variableAddresses, -1);
+        }
 
         /**
          * @brief Returns the memory that is consumed by constants and variables in number of integers consumed (4 bytes / intenger).
          * @return size of memory consumed by constant and variable tables.
          */
         public int getMemConsumed() {
-            return constantTable.size() + variableTable.size() + 1; // + 1 for jump instruction to jump over data segment
+            return constantTable.size() + variableCount + 1; // + 1 for jump instruction to jump over data segment
         }
 
         /**
@@ -241,9 +544,9 @@ public class CodeGen {
             if (op.type == Operand.CONSTANT) {
                 return constantTable.get(op.getConstant());
             } else if (op.type == Operand.VARIABLE) {
-                return variableTable.get(op.getSymbol());
+                return variableAddresses[op.id];
             } else if (op.type == Operand.LABEL_USE) {
-                return labelTable.get(op.getSymbol());
+                return labelAddresses[op.id];
             } else {
                 throw new RuntimeException();
             }
@@ -264,6 +567,30 @@ public class CodeGen {
             return toReturn;
         }
 
+        /**
+         * @brief Returns the id of the variable at an address
+         * @param address The address to look up
+         * @return The id, or -1 if no variable lives there
+         */
+        private int variableAt(int address) {
+            for (int id = 0; id < variableAddresses.length; id++)
+                if (variableAddresses[id] == address)
+                    return id;
+            return -1;
+        }
+
+        /**
+         * @brief Returns the id of the label at an address
+         * @param address The address to look up
+         * @return The id, or -1 if no label points there
+         */
+        private int labelAt(int address) {
+            for (int id = 0; id < labelAddresses.length; id++)
+                if (labelAddresses[id] == address)
+                    return id;
+            return -1;
+        }
+
         /**
          * @brief Returns the symbol of the address
          * @param address The address to get the symbol of
@@ -271,37 +598,31 @@ public class CodeGen {
          * @throws RuntimeException If the address is not found in any table
          */
         public String getSymbolOf(int address) {
-            Optional<Entry<String, Integer>> o =
-                variableTable.entrySet().stream().filter((e) -> e.getValue() == address).findFirst();
-            if (o.isPresent())
-                return "VARIABLE<" + o.get().getKey() + ">";
+            int id = variableAt(address);
+            if (id >= 0)
+                return "VARIABLE<" + names.name(id) + ">";
             
-            Optional<Entry<Float, Integer>> o1 =
-                constantTable.entrySet().stream().filter((e) -> e.getValue() == address).findFirst();
-            if (o1.isPresent())
+            if (constantTable.containsValue(address))
                 return "CONSTANT";
 
-            o = labelTable.entrySet().stream().filter((e) -> e.getValue() == address).findFirst();
-            if (o.isPresent())
-                return "LABEL<" + o.get().getKey() + ">";
+            id = labelAt(address);
+            if (id >= 0)
+                return "LABEL<" + names.name(id) + ">";
 
             throw new RuntimeException("Symbol does not ");
         }
 
         public String getRawSymbolOf(int address) {
-            Optional<Entry<String, Integer>> o =
-                variableTable.entrySet().stream().filter((e) -> e.getValue() == address).findFirst();
-            if (o.isPresent())
-                return o.get().getKey();
+            int id = variableAt(address);
+            if (id >= 0)
+                return names.name(id);
             
-            Optional<Entry<Float, Integer>> o1 =
-                constantTable.entrySet().stream().filter((e) -> e.getValue() == address).findFirst();
-            if (o1.isPresent())
+            if (constantTable.containsValue(address))
                 return "CONSTANT";
 
-            o = labelTable.entrySet().stream().filter((e) -> e.getValue() == address).findFirst();
-            if (o.isPresent())
-                return o.get().getKey();
+            id = labelAt(address);
+            if (id >= 0)
+                return names.name(id);
 
             throw new RuntimeException();
         }
@@ -313,20 +634,21 @@ public class CodeGen {
          * @throws IllegalArgumentException If the address is not found in any table
          */
         public int getTypeOfSymbol(int address) {
-            if (variableTable.containsValue(address))
+            if (variableAt(address) >= 0)
                 return Atom.Operand.VARIABLE;
             if (constantTable.containsValue(address))
                 return Atom.Operand.CONSTANT;
-            if (labelTable.containsValue(address))
+            if (labelAt(address) >= 0)
                 return Atom.Operand.LABEL_DEFINITION;
             throw new IllegalArgumentException();
         }
 
         public Symbols Duplicate() {
-            Symbols toReturn = new Symbols();
+            Symbols toReturn = new Symbols(names);
             constantTable.entrySet().forEach((e) -> toReturn.constantTable.put(e.getKey(), e.getValue()));
-            variableTable.entrySet().forEach((e) -> toReturn.variableTable.put(e.getKey(), e.getValue()));
-            labelTable.entrySet().forEach((e) -> toReturn.labelTable.put(e.getKey(), e.getValue()));
+            System.arraycopy(variableAddresses, 0, toReturn.variableAddresses, 0, variableAddresses.length);
+            System.arraycopy(labelAddresses, 0, toReturn.labelAddresses, 0, labelAddresses.length);
+            toReturn.variableCount = variableCount;
             
             return toReturn;
         }
@@ -9,32 +9,60 @@ package mainpackage;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.LinkedList;
+import java.nio.IntBuffer;
+import java.nio.file.Paths;
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
- * -s <source_file>
- * -t <token_dest_file> // cannot be used with -a
- * -a <atom_dest_file> // cannot be used with -t
+ * Run without arguments for the interactive prompt, or with options to
+ * compile one source file through every stage and exit:
+ * -s <source_file> // or an atom file written by -ir or the frontend command, to run only the backend
+ * -o <binary_dest_file> // default: the source file with its extension replaced by .bin
+ * -t <token_dest_file>
+ * -a <atom_dest_file> // as text, one per line
+ * -ir <atom_ir_dest_file> // in the binary format of AtomFile
+ * -f bin|text // machine code as big-endian ints, or one instruction per line in binary digits
+ * -O0 | -O1 | -O2 // no optimization (default); constant folding and peephole rules; every optimizer
+ * -singlereg // keep every variable in memory instead of allocating registers
+ * -run // run the program on MiniVM after compiling it
+ * -cycles <max_cycles> // cycle budget for -run, 0 for none
+ * -jit // let -run compile the program to JVM bytecode
+ * -time // print how long each stage took
+ *
+ * The exit status is one of the EXIT_ constants.
  */
 public class Compiler {
     private static final String SOURCE_FILE_OPTION = "-s";
+    private static final String BINARY_DEST_FILE_OPTION = "-o";
     private static final String TOKEN_DEST_FILE_OPTION = "-t";
     private static final String ATOM_DEST_FILE_OPTION = "-a";
+    private static final String IR_DEST_FILE_OPTION = "-ir";
+    private static final String FORMAT_OPTION = "-f";
+    private static final String SINGLE_REGISTER_OPTION = "-singlereg";
+    private static final String RUN_OPTION = "-run";
+    private static final String MAX_CYCLES_OPTION = "-cycles";
+    private static final String JIT_OPTION = "-jit";
+    private static final String TIME_OPTION = "-time";
 
-    private static int pc = 0;
+    public static final int EXIT_OK = 0;
+    public static final int EXIT_COMPILE_ERROR = 1;
+    public static final int EXIT_USAGE_ERROR = 2;
+    public static final int EXIT_IO_ERROR = 3;
+    // The program was run and failed, or did not halt within its cycle budget
+    public static final int EXIT_RUN_ERROR = 4;
 
     public static void main(String[] args) {
+        if (args.length > 0)
+            System.exit(runBatch(args));
+
         String sourceFile = "sourcecode.myc";
-        String tokenDest = null; // !null: Scanner -> Parser, null: Scanner -> File
-        String atomDest = null; // TODO !null: Parser -> Code Generator, null: Parser -> File
 
         // try {
         //     SourceStream ss = SourceStream.fromString(
@@ -54,41 +82,26 @@ public class Compiler {
         // }
         // if (true) return;
 
-        int i = 0;
-        while (i < args.length) {
-            String option = args[i++];
-
-            if (option.equals(SOURCE_FILE_OPTION)) {
-                sourceFile = args[i++];
-            } else if (option.equals(TOKEN_DEST_FILE_OPTION)) {
-                tokenDest = args[i++];
-            } else if (option.equals(ATOM_DEST_FILE_OPTION)) {
-                atomDest = args[i++];
-            } else {
-                throw new RuntimeException("Invalid option: " + option);
-            }
-        }
-
         System.out.println("Starting...");
 
         try {
             // Collect User Input
             BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
             String input = "";
-            int frontendDone = 0;
             int backendDone = 0;
-            List<Atom> atoms = new LinkedList<>();
 
             // Read Input Until "stop"
             while(!input.equalsIgnoreCase("stop")) {
                 input = "";
                 System.out.println("Command Options Are:\n");
                 System.out.println("\tFrontend: \t\tfrontend <inputFile> <outputFile> <optimize>");
-                System.out.println("\tBackend: \t\tbackend  <inputFile> <outputFile> <optimize>");
+                System.out.println("\tBackend: \t\tbackend  <inputFile> <outputFile> <optimize> [singlereg]");
+                System.out.println("\tCompile (Streaming): \tcompile  <inputFile> <outputFile> <optimize>");
                 System.out.println("\tVirtual Machine: \tvirtualmachine <inputFile> mini vm");
                 System.out.println("\tStop System: \t\tstop\n");
                 System.out.println("Please Enter Command In Above Format.");
                 System.out.println("Enter \"optimize\" in <optimize> for optional optimization. Enter \"no\" otherwise.");
+                System.out.println("Add \"singlereg\" to the backend to keep every variable in memory instead of allocating registers.");
                 input = in.readLine().trim();
                 String[] parts = input.split("\\s+");
 
@@ -106,33 +119,33 @@ public class Compiler {
                     String outputString = parts[2];
                     File outputFile = new File(outputString);
                     String optimize = parts[3];
+                    boolean singleRegister = parts.length > 4 && parts[4].equals("singlereg");
 
                     switch(command.toLowerCase()) {
                         case "frontend":
                             // Make Sure Input File Exists
                             if (inputFile.exists()) {
-                                // Scan Source Code
-                                Scanner s = new Scanner(SourceStream.fromFile(inputString));
+                                // Scan Source Code Into A Compact Token Buffer
+                                Scanner s = new Scanner(TokenBuffer.tokenize(SourceStream.fromFile(inputString)));
+                                SymbolTable names = new SymbolTable();
+                                AtomBuffer atoms = new AtomBuffer(names);
 
-                                // Generate Atoms
-                                new Parser(s, atoms::add).parse();
+                                // Generate Atoms, folding constant arithmetic as they are made when optimizing
+                                Consumer<Atom> parsed = atoms;
+                                if (optimize.equals("optimize"))
+                                    parsed = new ConstantFolding(names, parsed);
+                                new Parser(s, parsed, names).parse();
 
-                                // Optional Global Optimization
-                                if (optimize.equals("optimize")) {
-                                    atoms = GlobalOptimization.optimize(atoms);
-                                }
+                                // Optional Global Optimization, followed by the SSA optimizer, loop-invariant code motion and jump threading
+                                if (optimize.equals("optimize"))
+                                    atoms = optimizeAtoms(atoms);
 
-                                // Output Atoms
-                                try (BufferedWriter writer = new BufferedWriter(new FileWriter(outputString))) {
-                                    for (Atom a : atoms) {
-                                        writer.write(a.toString());
-                                        writer.newLine();
-                                    }
+                                // Output Atoms in the binary format the backend reads
+                                try (AtomFile.Writer writer = new AtomFile.Writer(new FileOutputStream(outputString), names)) {
+                                    for (int i = 0; i < atoms.size(); i++)
+                                        writer.write(atoms, i);
                                 }
-                                catch (IOException e) {}
 
-                                // Mark Completion of Frontend
-                                frontendDone = 1;
                                 System.out.println("\nFrontend complete!\n\n");
                             }
     
@@ -143,45 +156,77 @@ public class Compiler {
                             break;
     
                         case "backend":
-                            // Must Run Frontend First
-                            if (frontendDone != 1) {
-                                System.out.println("\nMust run frontend command first.\n\n");
-                            }
+                            // Make Sure Input File Exists
+                            if (inputFile.exists()) {
+                                // Read Atoms
+                                SymbolTable names = new SymbolTable();
+                                AtomBuffer atoms = new AtomBuffer(names);
+                                try (AtomFile.Reader reader = new AtomFile.Reader(new FileInputStream(inputFile), names)) {
+                                    reader.readAll(atoms);
+                                }
+
+                                // Generate Instructions
+                                IntList code = new IntList();
+                                CodeGen gen = new CodeGen(atoms, code, !singleRegister);
+                                gen.generate();
     
-                            // Run Backend
-                            else {
-                                // Make Sure Input File Exists
-                                if (inputFile.exists()) {
-                                    // Generate Instructions
-                                    List<Integer> code = new ArrayList<>();
-                                    CodeGen gen = new CodeGen(atoms, code::add);
-                                    gen.generate();
+                                // Optional Local Optimization
+                                if (optimize.equals("optimize")) {
+                                    LocalOptimization.OptimizeResult optRes = LocalOptimization.Optimize(code, gen.getSymbols());
+                                    code = optRes.output;
+                                    System.out.println("Peephole rule hits: " + optRes.ruleHits);
+                                }
     
-                                    // Optional Local Optimization
-                                    if (optimize.equals("optimize")) {
-                                        LocalOptimization.OptimizeResult optRes = LocalOptimization.Optimize(code, gen.getSymbols());
-                                        code = optRes.output;
-                                    }
+                                // Output Instructions
+                                writeBinary(code, outputString);
     
-                                    // Output Instructions
-                                    try (DataOutputStream f = new DataOutputStream(new FileOutputStream(outputString))) {
-                                        for (Integer instruction : code)
-                                            f.writeInt(instruction);
-                                    }
-                                    catch (IOException e) {}
+                                // Mark Completion of Backend
+                                backendDone = 1;
+                                System.out.println("\nBackend complete!\n\n");
+                            }
+        
+                            // Input File Does Not Exist
+                            else {
+                                System.out.println("\nInput file does not exist.\n\n");
+                            }
+                            break;
     
-                                    // Mark Completion of Backend
-                                    backendDone = 1;
-                                    System.out.println("\nBackend complete!\n\n");
+                        case "compile":
+                            // Make Sure Input File Exists
+                            if (inputFile.exists()) {
+                                // Stream Atoms From The Parser Straight Into The Code Generator
+                                SymbolTable streamNames = new SymbolTable();
+                                IntList code = new IntList();
+                                CodeGen gen = new CodeGen(streamNames, code);
+                                Consumer<Atom> parsed = gen;
+                                if (optimize.equals("optimize"))
+                                    parsed = new ConstantFolding(streamNames, parsed);
+                                try (SourceStream source = SourceStream.fromFile(inputString)) {
+                                    new Parser(new Scanner(source), parsed, streamNames).parse();
                                 }
-        
-                                // Input File Does Not Exist
-                                else {
-                                    System.out.println("\nInput file does not exist.\n\n");
+                                gen.finish();
+
+                                // Optional Local Optimization (global optimization needs the whole atom list)
+                                if (optimize.equals("optimize")) {
+                                    LocalOptimization.OptimizeResult optRes = LocalOptimization.Optimize(code, gen.getSymbols());
+                                    code = optRes.output;
+                                    System.out.println("Peephole rule hits: " + optRes.ruleHits);
                                 }
+
+                                // Output Instructions
+                                writeBinary(code, outputString);
+
+                                // Mark Completion of Both Stages
+                                backendDone = 1;
+                                System.out.println("\nCompile complete!\n\n");
+                            }
+
+                            // Input File Does Not Exist
+                            else {
+                                System.out.println("\nInput file does not exist.\n\n");
                             }
                             break;
-    
+
                         case "virtualmachine":
                             // Must Run Backend First
                             if (backendDone != 1) {
@@ -215,4 +260,298 @@ public class Compiler {
         
         System.out.println("Finished!");
     }
+
+    /**
+     * @brief Compiles one source file as the command line options say, without prompting.
+     * @param args The command line options, see the class comment.
+     * @return The exit status, one of the EXIT_ constants.
+     */
+    public static int runBatch(String[] args) {
+        BatchOptions options;
+        try {
+            options = BatchOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: Compiler -s <source_file> [-o <binary_dest_file>] [-t <token_dest_file>] [-a <atom_dest_file>] [-ir <atom_ir_dest_file>]"
+                + " [-f bin|text] [-O0|-O1|-O2] [-singlereg] [-run] [-cycles <max_cycles>] [-jit] [-time]");
+            return EXIT_USAGE_ERROR;
+        }
+
+        Timer timer = new Timer(options.time);
+        IntList code;
+        try {
+            code = compile(options, timer);
+            if (options.textFormat)
+                writeText(code, options.binaryDest);
+            else
+                writeBinary(code, options.binaryDest);
+            timer.lap("write");
+        } catch (IOException e) {
+            System.err.print(describeFailure(options.sourceFile, e));
+            return EXIT_IO_ERROR;
+        } catch (RuntimeException e) {
+            // Scanner and parse errors, and anything else a bad source makes
+            // the compiler throw instead of reporting it as one of those
+            System.err.print(describeFailure(options.sourceFile, e));
+            return EXIT_COMPILE_ERROR;
+        }
+
+        if (!options.run)
+            return EXIT_OK;
+        MiniVM.RunResult result;
+        try {
+            MiniVM.RunConfig config = options.maxCycles > 0
+                ? MiniVM.RunConfig.defaults().withMaxCycles(options.maxCycles)
+                : MiniVM.RunConfig.unlimited();
+            config = config.withJit(options.jit);
+            result = new MiniVM(IntBuffer.wrap(code.array(), 0, code.size())).execute(config);
+        } catch (RuntimeException e) {
+            System.err.printf("%s: %s\n", options.sourceFile, e.getCause() != null ? e.getCause() : e);
+            return EXIT_RUN_ERROR;
+        }
+        timer.lap("run");
+        System.out.println(result);
+        return result.halted ? EXIT_OK : EXIT_RUN_ERROR;
+    }
+
+    /**
+     * @brief Runs the source file of a batch compile through the frontend and backend.
+     * Also writes the tokens and atoms if the options ask for them. If the
+     * source file is an atom file, the frontend is skipped.
+     * @param options What to compile and how.
+     * @param timer Records how long each stage takes.
+     * @return The machine code, data segment included.
+     */
+    static IntList compile(BatchOptions options, Timer timer) throws IOException {
+        SymbolTable names = new SymbolTable();
+        AtomBuffer atoms = new AtomBuffer(names);
+        Consumer<Atom> parsed = atoms;
+        if (options.optimizationLevel >= 1)
+            parsed = new ConstantFolding(names, parsed);
+
+        if (AtomFile.isAtomFile(Paths.get(options.sourceFile))) {
+            // The frontend already ran; there are no tokens to write
+            try (AtomFile.Reader reader = new AtomFile.Reader(new FileInputStream(options.sourceFile), names)) {
+                reader.readAll(parsed);
+            }
+            timer.lap("read atoms");
+        } else {
+            TokenBuffer tokens;
+            try (SourceStream source = SourceStream.fromFile(options.sourceFile)) {
+                tokens = TokenBuffer.tokenize(source);
+            }
+            timer.lap("scan");
+            if (options.tokenDest != null) {
+                try (BufferedWriter writer = new BufferedWriter(new FileWriter(options.tokenDest))) {
+                    for (int i = 0; i < tokens.size(); i++) {
+                        writer.write(tokens.token(i).toString());
+                        writer.newLine();
+                    }
+                }
+            }
+
+            new Parser(new Scanner(tokens), parsed, names).parse();
+            timer.lap("parse");
+        }
+
+        if (options.optimizationLevel >= 2) {
+            atoms = optimizeAtoms(atoms);
+            timer.lap("optimize atoms");
+        }
+        if (options.atomDest != null) {
+            try (BufferedWriter writer = new BufferedWriter(new FileWriter(options.atomDest))) {
+                for (int i = 0; i < atoms.size(); i++) {
+                    writer.write(atoms.toString(i));
+                    writer.newLine();
+                }
+            }
+        }
+        if (options.irDest != null) {
+            try (AtomFile.Writer writer = new AtomFile.Writer(new FileOutputStream(options.irDest), names)) {
+                for (int i = 0; i < atoms.size(); i++)
+                    writer.write(atoms, i);
+            }
+        }
+
+        IntList code = new IntList();
+        CodeGen gen = new CodeGen(atoms, code, !options.singleRegister);
+        gen.generate();
+        timer.lap("generate code");
+
+        if (options.optimizationLevel >= 1) {
+            code = LocalOptimization.Optimize(code, gen.getSymbols()).output;
+            timer.lap("optimize code");
+        }
+        return code;
+    }
+
+    /**
+     * @brief Runs the SSA optimizer, loop-invariant code motion and jump threading over a program.
+     * These passes work on Atom objects, so the atoms are only made for the
+     * length of the passes and the result is stored compactly again.
+     * @param atoms The program.
+     * @return The optimized program, with the same SymbolTable.
+     */
+    static AtomBuffer optimizeAtoms(AtomBuffer atoms) {
+        SymbolTable names = atoms.names();
+        List<Atom> optimized = SSAOptimization.optimize(atoms.asList(), names);
+        optimized = LoopOptimization.optimize(optimized, names);
+        optimized = BranchOptimization.optimize(optimized, names);
+        return AtomBuffer.of(optimized, names);
+    }
+
+    /**
+     * @brief Formats why compile() failed for the user.
+     * @param sourceFile The file that was being compiled.
+     * @param e What compile() threw.
+     * @return The message, ending in a newline.
+     */
+    static String describeFailure(String sourceFile, Exception e) {
+        if (e instanceof Scanner.ScannerException) {
+            Scanner.ScannerException se = (Scanner.ScannerException) e;
+            return String.format("%s: %s\n\tNext Scanner Character: %s\n", sourceFile, se.getMessage(), se.scannerPos);
+        }
+        if (e instanceof Parser.ParseException) {
+            Parser.ParseException pe = (Parser.ParseException) e;
+            return String.format("%s: Compilation failed. %s\n\tNext Scanner Character: %s\n\tRecently Consumed Token: %s\n\tNext Token: %s\n",
+                sourceFile, pe.msg, pe.scannerPos, pe.recentlyConsumedToken, pe.nextToken != null ? pe.nextToken : "END OF INPUT");
+        }
+        return String.format("%s: %s\n", sourceFile, e);
+    }
+
+    /**
+     * @brief The command line options of a batch compile.
+     */
+    static class BatchOptions {
+        String sourceFile = null;
+        String binaryDest = null;
+        String tokenDest = null;
+        String atomDest = null;
+        String irDest = null;
+        boolean textFormat = false;
+        int optimizationLevel = 0;
+        boolean singleRegister = false;
+        boolean run = false;
+        long maxCycles = 0;
+        boolean jit = false;
+        boolean time = false;
+
+        /**
+         * @brief Reads the options from the command line.
+         * @throws IllegalArgumentException If an option is unknown, lacks its value or has a bad one.
+         */
+        static BatchOptions parse(String[] args) {
+            BatchOptions options = new BatchOptions();
+            int i = 0;
+            while (i < args.length) {
+                String option = args[i++];
+                switch (option) {
+                    case SOURCE_FILE_OPTION: options.sourceFile = value(args, i++, option); break;
+                    case BINARY_DEST_FILE_OPTION: options.binaryDest = value(args, i++, option); break;
+                    case TOKEN_DEST_FILE_OPTION: options.tokenDest = value(args, i++, option); break;
+                    case ATOM_DEST_FILE_OPTION: options.atomDest = value(args, i++, option); break;
+                    case IR_DEST_FILE_OPTION: options.irDest = value(args, i++, option); break;
+                    case FORMAT_OPTION:
+                        String format = value(args, i++, option);
+                        if (!format.equals("bin") && !format.equals("text"))
+                            throw new IllegalArgumentException("Invalid format: " + format);
+                        options.textFormat = format.equals("text");
+                        break;
+                    case "-O0": options.optimizationLevel = 0; break;
+                    case "-O1": options.optimizationLevel = 1; break;
+                    case "-O2": options.optimizationLevel = 2; break;
+                    case SINGLE_REGISTER_OPTION: options.singleRegister = true; break;
+                    case RUN_OPTION: options.run = true; break;
+                    case MAX_CYCLES_OPTION:
+                        String cycles = value(args, i++, option);
+                        try {
+                            options.maxCycles = Long.parseLong(cycles);
+                        } catch (NumberFormatException e) {
+                            options.maxCycles = -1;
+                        }
+                        if (options.maxCycles < 0)
+                            throw new IllegalArgumentException("Invalid cycle budget: " + cycles);
+                        break;
+                    case JIT_OPTION: options.jit = true; break;
+                    case TIME_OPTION: options.time = true; break;
+                    default: throw new IllegalArgumentException("Invalid option: " + option);
+                }
+            }
+
+            if (options.sourceFile == null)
+                throw new IllegalArgumentException("No source file given.");
+            if (options.binaryDest == null) {
+                String source = options.sourceFile;
+                int dot = source.lastIndexOf('.');
+                if (dot <= source.lastIndexOf(File.separatorChar))
+                    dot = source.length();
+                options.binaryDest = source.substring(0, dot) + ".bin";
+            }
+            return options;
+        }
+
+        /**
+         * @brief Returns the same options for another source file, without the token and atom files.
+         */
+        BatchOptions forFile(String sourceFile, String binaryDest) {
+            BatchOptions options = new BatchOptions();
+            options.sourceFile = sourceFile;
+            options.binaryDest = binaryDest;
+            options.textFormat = textFormat;
+            options.optimizationLevel = optimizationLevel;
+            options.singleRegister = singleRegister;
+            return options;
+        }
+
+        private static String value(String[] args, int i, String option) {
+            if (i >= args.length)
+                throw new IllegalArgumentException("Missing value for " + option);
+            return args[i];
+        }
+    }
+
+    /**
+     * @brief Prints how long each stage of a batch compile took, if asked to.
+     */
+    static class Timer {
+        private final boolean enabled;
+        private long last = System.nanoTime();
+
+        Timer(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        /**
+         * @brief Prints the time since the previous lap under the given name.
+         */
+        void lap(String stage) {
+            long now = System.nanoTime();
+            if (enabled)
+                System.err.printf("%-14s %9.3f ms\n", stage, (now - last) / 1e6);
+            last = now;
+        }
+    }
+
+    /**
+     * @brief Writes machine code to a binary file, one big-endian int per instruction.
+     * @param code The machine code
+     * @param fileName The file to write
+     */
+    static void writeBinary(IntList code, String fileName) throws IOException {
+        ObjectFile.write(code, Paths.get(fileName));
+    }
+
+    /**
+     * @brief Writes machine code as text, one instruction per line in binary digits.
+     * @param code The machine code
+     * @param fileName The file to write
+     */
+    static void writeText(IntList code, String fileName) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(fileName))) {
+            for (int i = 0; i < code.size(); i++) {
+                writer.write(new Instruction(code.get(i)).toString());
+                writer.newLine();
+            }
+        }
+    }
 }
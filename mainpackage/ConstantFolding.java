@@ -0,0 +1,256 @@
+package mainpackage;
+
+import java.util.function.Consumer;
+
+import mainpackage.Atom.Operand;
+
+/**
+ * @brief Folds constant arithmetic out of a stream of atoms before passing
+ * it on, so it can sit between the Parser and CodeGen.
+ * An atom whose operands are all known is evaluated at compile time. If it
+ * writes a temporary, the atom is dropped and the constant is used in place
+ * of the temporary from then on; this relies on the Parser writing each
+ * temporary once. A program variable gets a MOV of the constant instead.
+ * A TST with a known outcome becomes a JMP or disappears.
+ * The identities x*1, 1*x, x/1, x-0, x+(-0) and (-0)+x become MOVs, and a
+ * division by a power of two becomes a multiplication by its inverse. All of
+ * these give the same bits as MiniVM would. x+0 and x*0 are left alone,
+ * since -0.0 + 0 is 0.0 and infinity * 0 is NaN.
+ */
+public class ConstantFolding implements Consumer<Atom> {
+    private static final int NEGATIVE_ZERO = Float.floatToRawIntBits(-0f);
+    private static final int POSITIVE_ZERO = Float.floatToRawIntBits(0f);
+    private static final int ONE = Float.floatToRawIntBits(1f);
+
+    // Interns the names of the atoms that are rewritten
+    private final SymbolTable names;
+    // Receives the folded atoms
+    private final Consumer<Atom> output;
+    // The value of each temporary known to hold a constant, by symbol id
+    private float[] constants = new float[64];
+    private boolean[] known = new boolean[64];
+
+    /**
+     * @brief Constructs a ConstantFolding stage.
+     * @param names The table the atoms' names are interned in.
+     * @param output The Consumer to pass the folded atoms on to.
+     */
+    public ConstantFolding(SymbolTable names, Consumer<Atom> output) {
+        this.names = names;
+        this.output = output;
+    }
+
+    /**
+     * @brief Folds an atom and passes on whatever is left of it.
+     * @param atom The next atom of the program.
+     */
+    @Override
+    public void accept(Atom atom) {
+        switch (atom.opcode) {
+            case ADD:
+            case SUB:
+            case MUL:
+            case DIV:
+            case NEG:
+                arithmetic(atom);
+                break;
+            case MOV:
+                if (isKnown(atom.getOperand(0)))
+                    assign(atom.getOperand(2), valueOf(atom.getOperand(0)));
+                else
+                    emit(atom, atom.opcode, atom.getOperand(0), null, atom.getOperand(2));
+                break;
+            case TST:
+                test(atom);
+                break;
+            default:
+                output.accept(atom);
+                break;
+        }
+    }
+
+    private void arithmetic(Atom atom) {
+        final Atom.Opcode opcode = atom.opcode;
+        final Operand lhs = atom.getOperand(0);
+        final Operand rhs = atom.getOperand(1);
+        final Operand result = atom.getOperand(2);
+        final boolean unary = opcode == Atom.Opcode.NEG;
+
+        if (isKnown(lhs) && (unary || isKnown(rhs))) {
+            assign(result, fold(opcode, valueOf(lhs), unary ? 0f : valueOf(rhs)));
+            return;
+        }
+        if (unary) {
+            emit(atom, opcode, lhs, null, result);
+            return;
+        }
+
+        // Identities that hold for every float, including -0.0, infinities and NaN
+        int lhsBits = isKnown(lhs) ? Float.floatToRawIntBits(valueOf(lhs)) : -1;
+        int rhsBits = isKnown(rhs) ? Float.floatToRawIntBits(valueOf(rhs)) : -1;
+        switch (opcode) {
+            case ADD:
+                if (rhsBits == NEGATIVE_ZERO) {
+                    emit(atom, Atom.Opcode.MOV, lhs, null, result);
+                    return;
+                }
+                if (lhsBits == NEGATIVE_ZERO) {
+                    emit(atom, Atom.Opcode.MOV, rhs, null, result);
+                    return;
+                }
+                break;
+            case SUB:
+                if (rhsBits == POSITIVE_ZERO) {
+                    emit(atom, Atom.Opcode.MOV, lhs, null, result);
+                    return;
+                }
+                break;
+            case MUL:
+                if (rhsBits == ONE) {
+                    emit(atom, Atom.Opcode.MOV, lhs, null, result);
+                    return;
+                }
+                if (lhsBits == ONE) {
+                    emit(atom, Atom.Opcode.MOV, rhs, null, result);
+                    return;
+                }
+                break;
+            case DIV:
+                if (rhsBits == ONE) {
+                    emit(atom, Atom.Opcode.MOV, lhs, null, result);
+                    return;
+                }
+                // x / 2^k and x * 2^-k round the same exact value
+                if (isKnown(rhs) && hasExactInverse(valueOf(rhs))) {
+                    emit(atom, Atom.Opcode.MUL, lhs, Operand.constant(1f / valueOf(rhs)), result);
+                    return;
+                }
+                break;
+            default:
+                break;
+        }
+        emit(atom, opcode, lhs, rhs, result);
+    }
+
+    private void test(Atom atom) {
+        final Operand lhs = atom.getOperand(0);
+        final Operand rhs = atom.getOperand(1);
+        final Operand dest = atom.getOperand(4);
+
+        if (isKnown(lhs) && isKnown(rhs)) {
+            if (compare(atom.getOperand(3).getCmp(), valueOf(lhs), valueOf(rhs)))
+                output.accept(new Atom(Atom.Opcode.JMP, null, null, null, null, dest));
+            return;
+        }
+        if (isFolded(lhs) || isFolded(rhs))
+            atom = new Atom(Atom.Opcode.TST, resolve(lhs), resolve(rhs), null, atom.getOperand(3), dest);
+        output.accept(atom);
+    }
+
+    /**
+     * @brief Records that a variable now holds a constant, or emits a MOV of
+     * the constant if the variable belongs to the program.
+     */
+    private void assign(Operand result, float value) {
+        if (names.isTemporary(result.id)) {
+            grow(result.id);
+            constants[result.id] = value;
+            known[result.id] = true;
+        } else {
+            output.accept(new Atom(Atom.Opcode.MOV, Operand.constant(value), null, result));
+        }
+    }
+
+    /**
+     * @brief Passes on an atom whose result is not a constant, built from the
+     * given parts, or the original atom if nothing about it changed.
+     */
+    private void emit(Atom atom, Atom.Opcode opcode, Operand lhs, Operand rhs, Operand result) {
+        if (opcode != atom.opcode || lhs != atom.getOperand(0) || rhs != atom.getOperand(1)
+                || isFolded(atom.getOperand(0)) || isFolded(atom.getOperand(1)))
+            atom = new Atom(opcode, resolve(lhs), resolve(rhs), result);
+        forget(result);
+        output.accept(atom);
+    }
+
+    private void forget(Operand result) {
+        if (result.id < known.length)
+            known[result.id] = false;
+    }
+
+    private void grow(int id) {
+        if (id < known.length)
+            return;
+        int length = Math.max(known.length * 2, id + 1);
+        float[] biggerConstants = new float[length];
+        System.arraycopy(constants, 0, biggerConstants, 0, constants.length);
+        constants = biggerConstants;
+        boolean[] biggerKnown = new boolean[length];
+        System.arraycopy(known, 0, biggerKnown, 0, known.length);
+        known = biggerKnown;
+    }
+
+    /**
+     * @brief Returns whether an operand is a temporary that holds a folded constant.
+     */
+    private boolean isFolded(Operand op) {
+        return op != null && op.type == Operand.VARIABLE && op.id < known.length && known[op.id];
+    }
+
+    private boolean isKnown(Operand op) {
+        return op != null && (op.type == Operand.CONSTANT || isFolded(op));
+    }
+
+    private float valueOf(Operand op) {
+        return op.type == Operand.CONSTANT ? op.getConstant() : constants[op.id];
+    }
+
+    /**
+     * @brief Returns an operand for a new atom, with a folded temporary replaced by its value.
+     */
+    private Operand resolve(Operand op) {
+        return isFolded(op) ? Operand.constant(constants[op.id]) : op;
+    }
+
+    /**
+     * @brief Returns whether 1 / value is exact, so that dividing by value is
+     * the same as multiplying by its inverse.
+     */
+    private static boolean hasExactInverse(float value) {
+        if (value == 0f || Float.isInfinite(value) || Float.isNaN(value))
+            return false;
+        // A power of two has no mantissa bits, and its inverse must not be subnormal
+        boolean powerOfTwo = (Float.floatToRawIntBits(value) & 0x007FFFFF) == 0
+            && Math.getExponent(value) >= Float.MIN_EXPONENT;
+        return powerOfTwo && Math.getExponent(1f / value) >= Float.MIN_EXPONENT;
+    }
+
+    /**
+     * @brief Evaluates an arithmetic atom the way MiniVM does.
+     */
+    static float fold(Atom.Opcode opcode, float lhs, float rhs) {
+        switch (opcode) {
+            case ADD: return lhs + rhs;
+            case SUB: return lhs - rhs;
+            case MUL: return lhs * rhs;
+            case DIV: return lhs / rhs;
+            case NEG: return lhs - lhs - lhs; // LOD, SUB, SUB
+            default: throw new IllegalArgumentException();
+        }
+    }
+
+    /**
+     * @brief Evaluates a TST comparison the way MiniVM's CMP does.
+     */
+    static boolean compare(int cmp, float lhs, float rhs) {
+        switch (cmp) {
+            case Instruction.Cmp.EQUAL: return lhs == rhs;
+            case Instruction.Cmp.LESSER: return lhs < rhs;
+            case Instruction.Cmp.GREATER: return lhs > rhs;
+            case Instruction.Cmp.LESSER_OR_EQUAL: return lhs <= rhs;
+            case Instruction.Cmp.GREATER_OR_EQUAL: return lhs >= rhs;
+            case Instruction.Cmp.UNEQUAL: return lhs != rhs;
+            default: return true;
+        }
+    }
+}
@@ -8,6 +8,7 @@ package mainpackage;
  */
 
  import java.util.ArrayList;
+ import java.util.Arrays;
  import java.util.Collections;
  import java.util.List;
 
@@ -21,27 +22,110 @@ public class GlobalOptimization{
 		output = optimize(input);
 	}
 
+ /**
+  * @brief Removes every atom that cannot be reached from the start of the program.
+  * @param input The atoms of the program. This function does not change this list.
+  * @return A new list holding the reachable atoms in their original order.
+  */
  public static List<Atom> optimize(List<Atom> input) {
-        List<Atom> optimizedList = new ArrayList<>(input); // Create a modifiable copy of the list
-        int index = 0;
-
-        while (index < optimizedList.size()) {
-            Atom atom = optimizedList.get(index);
-            if (atom.opcode.toString().equals("JMP")) { // Ensure proper comparison for "JMP"
-                index++;
-                while (index < optimizedList.size()) {
-                    Atom nextAtom = optimizedList.get(index);
-                    if (!nextAtom.opcode.toString().equals("LBL")) { // Ensure proper comparison for "LBL"
-                        optimizedList.remove(nextAtom); // Safe removal while iterating
-                    } else {
-                        break; // Exit the loop when an LBL is found
-                    }
+        boolean[] reachable = reachableAtoms(AtomBuffer.of(input, null));
+        List<Atom> optimizedList = new ArrayList<>(input.size());
+        for (int i = 0; i < reachable.length; i++)
+            if (reachable[i])
+                optimizedList.add(input.get(i));
+        return optimizedList;
+    }
+
+ /**
+  * @brief Removes every atom that cannot be reached from the start of the program.
+  * @param input The atoms of the program. This function does not change this buffer.
+  * @return A new buffer holding the reachable atoms in their original order.
+  */
+ public static AtomBuffer optimize(AtomBuffer input) {
+        boolean[] reachable = reachableAtoms(input);
+        AtomBuffer optimized = new AtomBuffer(input.names(), input.size());
+        for (int i = 0; i < reachable.length; i++)
+            if (reachable[i])
+                optimized.add(input, i);
+        return optimized;
+    }
+
+ /**
+  * @brief Finds the atoms that can be reached from the start of the program.
+  * The atoms are split into basic blocks, which start at a LBL or after a
+  * JMP or TST, and the blocks reachable from the first one are found by
+  * following fall-throughs and jumps.
+  * @return Whether each atom is reachable.
+  */
+ private static boolean[] reachableAtoms(AtomBuffer atoms) {
+        int n = atoms.size();
+
+        // Number the basic blocks and find the block each label starts
+        int[] blockOf = new int[n];
+        int[] labelBlock = new int[16];
+        Arrays.fill(labelBlock, -1);
+        int blocks = 0;
+        boolean startsBlock = true;
+        for (int i = 0; i < n; i++) {
+            Atom.Opcode opcode = atoms.opcode(i);
+            if (opcode == Atom.Opcode.LBL)
+                startsBlock = true;
+            if (startsBlock)
+                blocks++;
+            blockOf[i] = blocks - 1;
+            startsBlock = opcode == Atom.Opcode.JMP || opcode == Atom.Opcode.TST;
+
+            if (opcode == Atom.Opcode.LBL) {
+                int id = atoms.id(i, 4);
+                if (id >= labelBlock.length) {
+                    int oldLength = labelBlock.length;
+                    labelBlock = Arrays.copyOf(labelBlock, Math.max(id + 1, oldLength * 2));
+                    Arrays.fill(labelBlock, oldLength, labelBlock.length, -1);
                 }
-            } else {
-                index++;
+                if (labelBlock[id] < 0)
+                    labelBlock[id] = blocks - 1;
             }
         }
-        return optimizedList;
+
+        // The last atom of each block decides where control goes next
+        int[] lastAtom = new int[blocks];
+        for (int i = 0; i < n; i++)
+            lastAtom[blockOf[i]] = i;
+
+        // Walk the graph from the first block
+        boolean[] reachable = new boolean[blocks];
+        int[] worklist = new int[blocks];
+        int pending = 0;
+        if (blocks > 0) {
+            reachable[0] = true;
+            worklist[pending++] = 0;
+        }
+        while (pending > 0) {
+            int block = worklist[--pending];
+            int last = lastAtom[block];
+            Atom.Opcode opcode = atoms.opcode(last);
+
+            // Jump target
+            if (opcode == Atom.Opcode.JMP || opcode == Atom.Opcode.TST) {
+                int id = atoms.id(last, 4);
+                int target = id < labelBlock.length ? labelBlock[id] : -1;
+                if (target >= 0 && !reachable[target]) {
+                    reachable[target] = true;
+                    worklist[pending++] = target;
+                }
+            }
+            // Fall-through
+            if (opcode != Atom.Opcode.JMP && block + 1 < blocks && !reachable[block + 1]) {
+                reachable[block + 1] = true;
+                worklist[pending++] = block + 1;
+            }
+        }
+
+        // An atom is reachable if its block is
+        boolean[] reachableAtom = new boolean[n];
+        for (int i = 0; i < n; i++)
+            reachableAtom[i] = reachable[blockOf[i]];
+        return reachableAtom;
     }
 
 	public List<Atom> getOutput() {
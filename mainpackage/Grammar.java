@@ -0,0 +1,333 @@
+package mainpackage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import mainpackage.Token.Type;
+
+/**
+ * @brief The grammar the Parser accepts, and the LL(1) parse table generated from it.
+ * Symbols are ints. Token types are the terminals, with END for the end of
+ * the input; nonterminals start at NONTERMINAL and semantic actions at
+ * ACTION. An action is part of a right hand side like any other symbol, and
+ * the Parser performs it when it comes off the parse stack. Actions derive
+ * the empty string, so they do not change the FIRST and FOLLOW sets.
+ *
+ * The FIRST and FOLLOW sets are computed as bitmasks, one bit per terminal,
+ * when the class loads, and from them the table of which production to
+ * expand for each nonterminal and lookahead. A grammar that is not LL(1)
+ * fails to load.
+ *
+ * This is the language the recursive descent Parser accepted, which is not
+ * quite the one in "Context-Free Grammar.pdf": comparisons only appear in
+ * the condition of an if, for or while, and the for loop's increment is an
+ * EXPR. Its quirks are kept so that programs compile to the same atoms,
+ * e.g. a TERM's value is its last token and VALUE ends with an OPEN_P.
+ *
+ * STMT     -> int DECL STMT | float DECL STMT | EXPR ; STMT
+ *           | if ( EXPR CMP EXPR ) BLOCK ELSE STMT
+ *           | for ( PRE EXPR CMP EXPR ; EXPR ) BLOCK STMT
+ *           | while ( EXPR CMP EXPR ) BLOCK STMT | (empty)
+ * DECL     -> identifier = EXPR ;
+ * PRE      -> int DECL | float DECL
+ * BLOCK    -> { STMT }
+ * ELSE     -> else BLOCK | (empty)
+ * CMP      -> == | < | > | <= | >= | !=
+ * EXPR     -> PRIMARY FACTORS TERMS ASSIGNS
+ * ASSIGNS  -> = ASSIGN ASSIGNS | (empty)
+ * ASSIGN   -> PRIMARY FACTORS TERMS
+ * TERMS    -> + TERM TERMS | - TERM TERMS | (empty)
+ * TERM     -> PRIMARY FACTORS
+ * FACTORS  -> * FACTOR FACTORS | / FACTOR FACTORS | (empty)
+ * FACTOR   -> ( EXPR ) | - VALUE | identifier | int | float
+ * VALUE    -> ( EXPR ( | identifier | int | float
+ * PRIMARY  -> ( EXPR ) | identifier | int | float
+ */
+final class Grammar {
+    // The end of the input, as a terminal. Token types start above it.
+    static final int END = 0;
+    static final int NONTERMINAL = 64;
+    static final int ACTION = 128;
+
+    // Nonterminals
+    static final int STMT = NONTERMINAL;
+    static final int DECL = NONTERMINAL + 1;
+    static final int PRE = NONTERMINAL + 2;
+    static final int BLOCK = NONTERMINAL + 3;
+    static final int ELSE = NONTERMINAL + 4;
+    static final int CMP = NONTERMINAL + 5;
+    static final int EXPR = NONTERMINAL + 6;
+    static final int ASSIGNS = NONTERMINAL + 7;
+    static final int ASSIGN = NONTERMINAL + 8;
+    static final int TERMS = NONTERMINAL + 9;
+    static final int TERM = NONTERMINAL + 10;
+    static final int FACTORS = NONTERMINAL + 11;
+    static final int FACTOR = NONTERMINAL + 12;
+    static final int VALUE = NONTERMINAL + 13;
+    static final int PRIMARY = NONTERMINAL + 14;
+    private static final int NONTERMINALS = 15;
+
+    // Semantic actions. See Parser.perform() for what each does.
+    static final int PUSH_OPERAND = ACTION;
+    static final int PUSH_NAME = ACTION + 1;
+    static final int PUSH_OPCODE = ACTION + 2;
+    static final int PUSH_CMP = ACTION + 3;
+    static final int PUSH_NULL = ACTION + 4;
+    static final int POP = ACTION + 5;
+    static final int DECLARE = ACTION + 6;
+    static final int APPLY_ARITH = ACTION + 7;
+    static final int MAKE_ARITH = ACTION + 8;
+    static final int LAST_TOKEN = ACTION + 9;
+    static final int ASSIGN_TO = ACTION + 10;
+    static final int IF_LABEL = ACTION + 11;
+    static final int TEST = ACTION + 12;
+    static final int CAPTURE = ACTION + 13;
+    static final int END_CAPTURE = ACTION + 14;
+    static final int ELSE_PRESENT = ACTION + 15;
+    static final int NO_ELSE = ACTION + 16;
+    static final int END_IF = ACTION + 17;
+    static final int FOR_LABELS = ACTION + 18;
+    static final int FOR_TEST = ACTION + 19;
+    static final int FOR_END = ACTION + 20;
+    static final int WHILE_LABELS = ACTION + 21;
+    static final int WHILE_END = ACTION + 22;
+
+    // Terminals have one bit each in a long
+    private static final int TERMINALS = 64;
+
+    // The productions: left hand side, and right hand side in order
+    private static final int[] lhs;
+    private static final int[][] rhs;
+    // Production to expand for [nonterminal * TERMINALS + lookahead], -1 for none
+    private static final short[] table;
+    // Production to expand when the table has none, -1 to report an error instead
+    private static final int[] fallback = new int[NONTERMINALS];
+    // Message of the error for a lookahead the table and fallback have no production for
+    private static final String[] errors = new String[NONTERMINALS];
+
+    static {
+        Arrays.fill(fallback, -1);
+        Builder g = new Builder();
+        g.add(STMT, Type.INT, DECL, STMT);
+        g.add(STMT, Type.FLOAT, DECL, STMT);
+        g.add(STMT, EXPR, POP, Type.SEMICOLON, STMT);
+        g.add(STMT, Type.IF, IF_LABEL, Type.OPEN_P, EXPR, CMP, EXPR, Type.CLOSE_P, TEST,
+            BLOCK, CAPTURE, ELSE, END_IF, STMT);
+        g.add(STMT, Type.FOR, FOR_LABELS, Type.OPEN_P, PRE, CAPTURE, EXPR, CMP, EXPR, END_CAPTURE,
+            Type.SEMICOLON, CAPTURE, EXPR, POP, END_CAPTURE, Type.CLOSE_P, FOR_TEST, BLOCK, FOR_END, STMT);
+        g.add(STMT, Type.WHILE, WHILE_LABELS, Type.OPEN_P, EXPR, CMP, EXPR, Type.CLOSE_P, TEST,
+            BLOCK, WHILE_END, STMT);
+        g.add(STMT);
+        errors[STMT - NONTERMINAL] = "";
+
+        g.add(DECL, Type.IDENTIFIER, PUSH_NAME, Type.EQUAL, EXPR, DECLARE, Type.SEMICOLON);
+        fallback[DECL - NONTERMINAL] = g.last();
+
+        g.add(PRE, Type.INT, DECL);
+        g.add(PRE, Type.FLOAT, DECL);
+        errors[PRE - NONTERMINAL] = "Syntax error: expected type";
+
+        g.add(BLOCK, Type.OPEN_B, STMT, Type.CLOSE_B);
+        fallback[BLOCK - NONTERMINAL] = g.last();
+
+        g.add(ELSE, Type.ELSE, BLOCK, ELSE_PRESENT);
+        g.add(ELSE, NO_ELSE);
+        errors[ELSE - NONTERMINAL] = "";
+
+        for (int cmp : new int[] {Type.DOUBLE_EQUAL, Type.LESS, Type.MORE, Type.LEQ, Type.GEQ, Type.NEQ})
+            g.add(CMP, cmp, PUSH_CMP);
+        errors[CMP - NONTERMINAL] = "Expected not present. Expected = {DOUBLE_EQUAL, LESS, MORE, LEQ, GEQ, NEQ}";
+
+        g.add(EXPR, PRIMARY, FACTORS, APPLY_ARITH, TERMS, APPLY_ARITH, ASSIGNS, ASSIGN_TO);
+        fallback[EXPR - NONTERMINAL] = g.last();
+
+        g.add(ASSIGNS, Type.EQUAL, ASSIGN, ASSIGNS, ASSIGN_TO);
+        g.add(ASSIGNS, PUSH_NULL);
+        fallback[ASSIGNS - NONTERMINAL] = g.last();
+
+        g.add(ASSIGN, PRIMARY, FACTORS, APPLY_ARITH, TERMS, APPLY_ARITH);
+        fallback[ASSIGN - NONTERMINAL] = g.last();
+
+        g.add(TERMS, Type.PLUS, PUSH_OPCODE, TERM, TERMS, APPLY_ARITH, MAKE_ARITH);
+        g.add(TERMS, Type.MINUS, PUSH_OPCODE, TERM, TERMS, APPLY_ARITH, MAKE_ARITH);
+        g.add(TERMS, PUSH_NULL);
+        fallback[TERMS - NONTERMINAL] = g.last();
+
+        g.add(TERM, PRIMARY, FACTORS, APPLY_ARITH, LAST_TOKEN);
+        fallback[TERM - NONTERMINAL] = g.last();
+
+        g.add(FACTORS, Type.MULT, PUSH_OPCODE, FACTOR, FACTORS, APPLY_ARITH, MAKE_ARITH);
+        g.add(FACTORS, Type.DIV, PUSH_OPCODE, FACTOR, FACTORS, APPLY_ARITH, MAKE_ARITH);
+        g.add(FACTORS, PUSH_NULL);
+        fallback[FACTORS - NONTERMINAL] = g.last();
+
+        g.add(FACTOR, Type.OPEN_P, EXPR, Type.CLOSE_P);
+        g.add(FACTOR, Type.MINUS, VALUE);
+        g.add(FACTOR, Type.IDENTIFIER, PUSH_OPERAND);
+        g.add(FACTOR, Type.INT_LITERAL, PUSH_OPERAND);
+        g.add(FACTOR, Type.FLOAT_LITERAL, PUSH_OPERAND);
+        errors[FACTOR - NONTERMINAL] = "";
+
+        g.add(VALUE, Type.OPEN_P, EXPR, Type.OPEN_P);
+        g.add(VALUE, Type.IDENTIFIER, PUSH_OPERAND);
+        g.add(VALUE, Type.INT_LITERAL, PUSH_OPERAND);
+        g.add(VALUE, Type.FLOAT_LITERAL, PUSH_OPERAND);
+        errors[VALUE - NONTERMINAL] = "";
+
+        g.add(PRIMARY, Type.OPEN_P, EXPR, Type.CLOSE_P);
+        g.add(PRIMARY, Type.IDENTIFIER, PUSH_OPERAND);
+        g.add(PRIMARY, Type.INT_LITERAL, PUSH_OPERAND);
+        g.add(PRIMARY, Type.FLOAT_LITERAL, PUSH_OPERAND);
+        errors[PRIMARY - NONTERMINAL] = "";
+
+        lhs = g.lhs.stream().mapToInt(Integer::intValue).toArray();
+        rhs = g.rhs.toArray(new int[0][]);
+        table = buildTable();
+    }
+
+    private Grammar() {}
+
+    /**
+     * @brief Returns the production to expand for a nonterminal.
+     * @param nonterminal The nonterminal on top of the parse stack.
+     * @param lookahead The type of the next token, or Token.Type.INVALID at the end of the input.
+     * @return The production, or -1 if the lookahead cannot start it.
+     */
+    static int predict(int nonterminal, int lookahead) {
+        final int n = nonterminal - NONTERMINAL;
+        final int production = table[n * TERMINALS + (lookahead == Type.INVALID ? END : lookahead)];
+        return production >= 0 ? production : fallback[n];
+    }
+
+    /**
+     * @brief Returns the right hand side of a production. The array must not be changed.
+     */
+    static int[] rhs(int production) {
+        return rhs[production];
+    }
+
+    /**
+     * @brief Returns the message of the error for a nonterminal that cannot start with the lookahead.
+     */
+    static String error(int nonterminal) {
+        return errors[nonterminal - NONTERMINAL];
+    }
+
+    /**
+     * @brief Computes the FIRST and FOLLOW sets and fills in the parse table.
+     * @throws IllegalStateException If two productions of a nonterminal can start with the same terminal.
+     */
+    private static short[] buildTable() {
+        // FIRST of each nonterminal and whether it derives the empty string, to a fixed point
+        long[] first = new long[NONTERMINALS];
+        boolean[] nullable = new boolean[NONTERMINALS];
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int p = 0; p < lhs.length; p++) {
+                final int n = lhs[p] - NONTERMINAL;
+                final long added = firstOf(rhs[p], 0, first, nullable) & ~first[n];
+                if (added != 0) {
+                    first[n] |= added;
+                    changed = true;
+                }
+                if (!nullable[n] && isNullable(rhs[p], 0, nullable)) {
+                    nullable[n] = true;
+                    changed = true;
+                }
+            }
+        }
+
+        // FOLLOW of each nonterminal: what can come after it, including END after STMT
+        long[] follow = new long[NONTERMINALS];
+        follow[STMT - NONTERMINAL] = 1L << END;
+        changed = true;
+        while (changed) {
+            changed = false;
+            for (int p = 0; p < lhs.length; p++) {
+                for (int k = 0; k < rhs[p].length; k++) {
+                    final int symbol = rhs[p][k];
+                    if (symbol < NONTERMINAL || symbol >= ACTION)
+                        continue;
+                    long set = firstOf(rhs[p], k + 1, first, nullable);
+                    if (isNullable(rhs[p], k + 1, nullable))
+                        set |= follow[lhs[p] - NONTERMINAL];
+                    final long added = set & ~follow[symbol - NONTERMINAL];
+                    if (added != 0) {
+                        follow[symbol - NONTERMINAL] |= added;
+                        changed = true;
+                    }
+                }
+            }
+        }
+
+        // A production is expanded on the terminals that can start it, and on
+        // the terminals that can follow its nonterminal if it can be empty
+        short[] table = new short[NONTERMINALS * TERMINALS];
+        Arrays.fill(table, (short) -1);
+        for (int p = 0; p < lhs.length; p++) {
+            final int n = lhs[p] - NONTERMINAL;
+            long predicts = firstOf(rhs[p], 0, first, nullable);
+            if (isNullable(rhs[p], 0, nullable))
+                predicts |= follow[n];
+            for (int t = 0; t < TERMINALS; t++) {
+                if ((predicts & 1L << t) == 0)
+                    continue;
+                if (table[n * TERMINALS + t] >= 0)
+                    throw new IllegalStateException("The grammar is not LL(1): productions "
+                        + table[n * TERMINALS + t] + " and " + p + " both start with terminal " + t + ".");
+                table[n * TERMINALS + t] = (short) p;
+            }
+        }
+        return table;
+    }
+
+    // FIRST of the symbols of a right hand side from an index on
+    private static long firstOf(int[] symbols, int from, long[] first, boolean[] nullable) {
+        long set = 0;
+        for (int k = from; k < symbols.length; k++) {
+            final int symbol = symbols[k];
+            if (symbol >= ACTION)
+                continue;
+            if (symbol < NONTERMINAL)
+                return set | 1L << symbol;
+            set |= first[symbol - NONTERMINAL];
+            if (!nullable[symbol - NONTERMINAL])
+                return set;
+        }
+        return set;
+    }
+
+    // Whether the symbols of a right hand side from an index on can derive the empty string
+    private static boolean isNullable(int[] symbols, int from, boolean[] nullable) {
+        for (int k = from; k < symbols.length; k++) {
+            final int symbol = symbols[k];
+            if (symbol >= ACTION)
+                continue;
+            if (symbol < NONTERMINAL || !nullable[symbol - NONTERMINAL])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @brief Collects the productions while the grammar is written out.
+     */
+    private static final class Builder {
+        final List<Integer> lhs = new ArrayList<>();
+        final List<int[]> rhs = new ArrayList<>();
+
+        void add(int nonterminal, int... symbols) {
+            for (int symbol : symbols)
+                if (symbol < NONTERMINAL && (symbol <= END || symbol >= TERMINALS))
+                    throw new IllegalStateException("Token type " + symbol + " does not fit in a terminal bitmask.");
+            lhs.add(nonterminal);
+            rhs.add(symbols);
+        }
+
+        int last() {
+            return lhs.size() - 1;
+        }
+    }
+}
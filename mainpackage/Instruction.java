@@ -130,7 +130,37 @@ public class Instruction {
     }
 
     public static int create(int opcode, int cmp, int r, int a) {
-        return new Instruction(opcode, cmp, r, a).value;
+        if (opcode < 0 || opcode > 9)
+            throw new IllegalArgumentException("Opcode must be greater than or equal to 0 and less than or equal to 9.");
+        if (cmp < 0 || cmp > 6 || r < 0 || r > 15 || a < 0 || a > 0xFFFFF)
+            throw new IllegalArgumentException();
+
+        return opcode << 28 | cmp << 24 | r << 20 | a;
+    }
+
+    // Static versions of the getters and setters, for code that keeps
+    // instructions as plain ints instead of Instruction objects.
+
+    public static int opcodeOf(int instruction) {
+        return instruction >>> 28;
+    }
+
+    public static int cmpOf(int instruction) {
+        return (instruction & CMP_MASK) >>> 24;
+    }
+
+    public static int rOf(int instruction) {
+        return (instruction & R_MASK) >>> 20;
+    }
+
+    public static int aOf(int instruction) {
+        return instruction & A_MASK;
+    }
+
+    public static int withA(int instruction, int a) {
+        if (a < 0 || a > 0xFFFFF)
+            throw new IllegalArgumentException();
+        return (instruction & ~A_MASK) | a;
     }
     
     public static class Opcode {
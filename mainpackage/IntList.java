@@ -0,0 +1,111 @@
+package mainpackage;
+
+import java.util.Arrays;
+
+/**
+ * @brief A growable array of ints, used to hold machine code without boxing
+ * every word in an Integer.
+ */
+public class IntList implements IntSink {
+    // The values. Only the first size entries are used.
+    private int[] values;
+    // The number of values.
+    private int size;
+
+    /**
+     * @brief Constructs an empty IntList.
+     */
+    public IntList() {
+        this(256);
+    }
+
+    /**
+     * @brief Constructs an empty IntList with room for a number of values.
+     * @param capacity The number of values to make room for.
+     */
+    public IntList(int capacity) {
+        values = new int[Math.max(capacity, 1)];
+        size = 0;
+    }
+
+    /**
+     * @brief Constructs an IntList holding a copy of an array.
+     * @param values The values to copy.
+     */
+    public IntList(int[] values) {
+        this.values = Arrays.copyOf(values, Math.max(values.length, 1));
+        size = values.length;
+    }
+
+    /**
+     * @brief Appends a value. Same as add().
+     */
+    @Override
+    public void accept(int value) {
+        add(value);
+    }
+
+    /**
+     * @brief Appends a value.
+     * @param value The value to append.
+     */
+    public void add(int value) {
+        if (size == values.length)
+            values = Arrays.copyOf(values, values.length * 2);
+        values[size++] = value;
+    }
+
+    /**
+     * @brief Returns the value at an index.
+     * @param index The index.
+     * @return The value.
+     */
+    public int get(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index " + index + " of " + size);
+        return values[index];
+    }
+
+    /**
+     * @brief Replaces the value at an index.
+     * @param index The index.
+     * @param value The new value.
+     */
+    public void set(int index, int value) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index " + index + " of " + size);
+        values[index] = value;
+    }
+
+    /**
+     * @brief Returns the number of values.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @brief Drops every value at or after an index.
+     * @param newSize The number of values to keep.
+     */
+    public void truncate(int newSize) {
+        if (newSize < 0 || newSize > size)
+            throw new IndexOutOfBoundsException("Size " + newSize + " of " + size);
+        size = newSize;
+    }
+
+    /**
+     * @brief Returns the backing array without copying it. Only the first
+     * size() entries are values, and the array is replaced when the list grows.
+     */
+    public int[] array() {
+        return values;
+    }
+
+    /**
+     * @brief Returns a copy of the values as an array of exactly size() entries.
+     */
+    public int[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+}
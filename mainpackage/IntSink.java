@@ -0,0 +1,14 @@
+package mainpackage;
+
+/**
+ * @brief Receives a stream of ints without boxing them.
+ * Used by CodeGen to emit machine code words.
+ */
+@FunctionalInterface
+public interface IntSink {
+    /**
+     * @brief Accepts the next value.
+     * @param value The value.
+     */
+    void accept(int value);
+}
@@ -7,76 +7,248 @@ package mainpackage;
  * @date 12/20/2024
  */
 
-import java.util.LinkedList;
+import static mainpackage.Instruction.aOf;
+import static mainpackage.Instruction.opcodeOf;
+import static mainpackage.Instruction.withA;
+
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map.Entry;
-import java.util.stream.Collectors;
+import java.util.Map;
+
 import mainpackage.CodeGen.Symbols;
 import mainpackage.Instruction.Opcode;
 
+/**
+ * @brief A peephole optimizer over machine code.
+ * Each Rule looks at a window of consecutive instructions and may rewrite or
+ * remove some of them. The rules are tried at every instruction until none
+ * of them changes anything. Removed instructions are only marked while the
+ * rules run, so addresses stay put; the code is compacted and every label
+ * and jump is relocated once at the end.
+ * See PeepholeRules for the rules used by default.
+ */
 public class LocalOptimization {
     /**
-     * Optimizes machine code by removing unecessary loads/stores.
+     * Optimizes machine code with the default peephole rules.
+     * @param input The input machine code. This function does not change this list.
+     * @param inputSymbols The input symbols. This function does not change this object.
+     * @return An object containing a new list of machine code and a new Symbols object that have been optimized.
+     */
+    public static OptimizeResult Optimize(IntList input, Symbols inputSymbols) {
+        return Optimize(input, inputSymbols, PeepholeRules.DEFAULT);
+    }
+
+    /**
+     * Optimizes machine code with the given peephole rules.
      * @param input The input machine code. This function does not change this list.
      * @param inputSymbols The input symbols. This function does not change this object.
+     * @param rules The rules to apply, tried in order at each instruction.
      * @return An object containing a new list of machine code and a new Symbols object that have been optimized.
      */
-    public static OptimizeResult Optimize(List<Integer> input, Symbols inputSymbols) {
-        List<Instruction> instr = (List<Instruction>)input.stream().map((i) -> { return new Instruction(i); }).collect(Collectors.toList());
-        List<Integer> toRemove = new LinkedList<>();
-        Instruction cur;
-        Instruction nxt;
-
-        // Find LOD followed by STO or STO followed by LOD instructions
-        for (int i = inputSymbols.getMemConsumed(); i < instr.size() - 1; i++) {
-            cur = instr.get(i);
-            nxt = instr.get(i+1);
-            if (
-                ((cur.getOpcode() == Opcode.LOD && nxt.getOpcode() == Opcode.STO) || (cur.getOpcode() == Opcode.STO && nxt.getOpcode() == Opcode.LOD))
-                && cur.getR() == nxt.getR()
-                && cur.getA() == nxt.getA()
-               )
-               // Remove the second instruction
-               toRemove.add(i+1);
+    public static OptimizeResult Optimize(IntList input, Symbols inputSymbols, List<Rule> rules) {
+        final int n = input.size();
+        final int codeStart = inputSymbols.getMemConsumed();
+        int maxWindow = 1;
+        for (Rule rule : rules)
+            maxWindow = Math.max(maxWindow, rule.window());
+
+        Window window = new Window(input.toArray(), codeStart, maxWindow);
+
+        // Instructions that can be jumped to, where the previous instruction may not have run
+        for (int addr : inputSymbols.labelAddresses)
+            if (addr >= 0 && addr <= n)
+                window.jumpedTo[addr] = true;
+        for (int i = codeStart; i < n; i++)
+            if (opcodeOf(window.code[i]) == Opcode.JMP && aOf(window.code[i]) <= n)
+                window.jumpedTo[aOf(window.code[i])] = true;
+
+        // Try every rule at every instruction until nothing changes
+        int[] hits = new int[rules.size()];
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = codeStart; i < n; i++) {
+                if (window.removed[i])
+                    continue;
+                for (int r = 0; r < rules.size(); r++) {
+                    Rule rule = rules.get(r);
+                    if (!window.moveTo(i, rule.window()) || !rule.apply(window))
+                        continue;
+                    hits[r]++;
+                    changed = true;
+                    if (window.removed[i])
+                        break;
+                }
+            }
         }
 
         // Create a duplicate symbols file to modify
         Symbols outputSymbols = inputSymbols.Duplicate();
 
-        // Remove the instructions, starting from the end
-        toRemove.sort((c, n) -> n - c);
-        for (int remove : toRemove)
-            instr.remove(remove);
-
-        // For each removed instruction...
-        for (int removed : toRemove) {
-            // Look at every label...
-            for (Entry<String, Integer> e : outputSymbols.labelTable.entrySet()) {
-                // If it's address is after the removed instruction...
-                int oldAddr = e.getValue();
-                if (removed < oldAddr) {
-                    // Move its address back one and adjust other references to it.
-                    e.setValue(oldAddr - 1);
-                    for (Instruction i : instr)
-                        if (i.getA() == oldAddr)
-                            i.setA(oldAddr - 1);
-                }
-            }
+        // Remove the instructions in one pass, copying everything else.
+        // newAddress[i] is where the instruction at address i ends up, which is
+        // i minus the number of instructions removed before it. A removed
+        // instruction's address becomes that of the next one that is kept.
+        IntList output = new IntList(n);
+        int[] newAddress = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            newAddress[i] = output.size();
+            if (!window.removed[i])
+                output.add(window.code[i]);
         }
+        newAddress[n] = output.size();
+        final int[] out = output.array();
+
+        // Move every label to its new address
+        for (int id = 0; id < outputSymbols.labelAddresses.length; id++) {
+            int oldAddr = outputSymbols.labelAddresses[id];
+            if (oldAddr >= 0 && oldAddr <= n)
+                outputSymbols.labelAddresses[id] = newAddress[oldAddr];
+        }
+
+        // Jumps are the only instructions that refer to labels; point them at the new addresses
+        if (output.size() < n)
+            for (int i = outputSymbols.getMemConsumed(); i < output.size(); i++)
+                if (opcodeOf(out[i]) == Opcode.JMP && aOf(out[i]) <= n)
+                    out[i] = withA(out[i], newAddress[aOf(out[i])]);
+
+        Map<String, Integer> ruleHits = new LinkedHashMap<>();
+        for (int r = 0; r < rules.size(); r++)
+            ruleHits.merge(rules.get(r).name(), hits[r], Integer::sum);
 
         // Return optimized code and symbols
-        return new OptimizeResult(
-            instr.stream().map((i) -> i.getValue()).collect(Collectors.toList()),
-            outputSymbols);
+        return new OptimizeResult(output, outputSymbols, ruleHits);
+    }
+
+    /**
+     * @brief A peephole rewrite over a few consecutive instructions.
+     */
+    public interface Rule {
+        /**
+         * @brief Returns the name the rule's hits are reported under.
+         */
+        String name();
+
+        /**
+         * @brief Returns how many instructions the rule looks at.
+         */
+        int window();
+
+        /**
+         * @brief Rewrites the instructions in the window if the rule matches them.
+         * @param window The next window() instructions that have not been removed.
+         * @return Whether anything was changed.
+         */
+        boolean apply(Window window);
+    }
+
+    /**
+     * @brief The instructions a Rule looks at: the one it is tried at and the
+     * ones that follow it, skipping those that were removed already.
+     */
+    public static class Window {
+        // The whole program, with removed instructions still in place
+        private final int[] code;
+        private final boolean[] removed;
+        private final boolean[] jumpedTo;
+        private final int codeStart;
+        // Addresses of the instructions in the window
+        private final int[] positions;
+        private int size = 0;
+
+        private Window(int[] code, int codeStart, int maxWindow) {
+            this.code = code;
+            this.codeStart = codeStart;
+            removed = new boolean[code.length];
+            jumpedTo = new boolean[code.length + 1];
+            positions = new int[maxWindow];
+        }
+
+        // Fills the window from the instruction at address i; false if the program ends first
+        private boolean moveTo(int i, int length) {
+            size = 0;
+            for (int a = i; a < code.length && size < length; a++)
+                if (!removed[a])
+                    positions[size++] = a;
+            return size == length;
+        }
+
+        /**
+         * @brief Returns the number of instructions in the window.
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @brief Returns the k-th instruction of the window.
+         */
+        public int get(int k) {
+            return code[position(k)];
+        }
+
+        /**
+         * @brief Returns the address of the k-th instruction of the window, as it was before any were removed.
+         */
+        public int address(int k) {
+            return position(k);
+        }
+
+        /**
+         * @brief Replaces the k-th instruction of the window.
+         */
+        public void set(int k, int instruction) {
+            code[position(k)] = instruction;
+        }
+
+        /**
+         * @brief Removes the k-th instruction of the window. Jumps to it go to
+         * the instruction after it instead, so a rule may only remove an
+         * instruction that has no effect on any path through it.
+         */
+        public void remove(int k) {
+            int a = position(k);
+            removed[a] = true;
+            if (jumpedTo[a]) {
+                int next = a + 1;
+                while (next < code.length && removed[next])
+                    next++;
+                jumpedTo[next] = true;
+            }
+        }
+
+        /**
+         * @brief Returns whether the k-th instruction can be reached by a jump,
+         * in which case the instructions before it in the window may not have run.
+         */
+        public boolean isJumpTarget(int k) {
+            return jumpedTo[position(k)];
+        }
+
+        /**
+         * @brief Returns the address the code segment starts at.
+         */
+        public int codeStart() {
+            return codeStart;
+        }
+
+        private int position(int k) {
+            if (k < 0 || k >= size)
+                throw new IndexOutOfBoundsException("Instruction " + k + " of a window of " + size);
+            return positions[k];
+        }
     }
 
     public static class OptimizeResult {
-        public final List<Integer> output;
+        public final IntList output;
         public final Symbols outputSymbols;
+        // How many times each rule rewrote the code, by rule name
+        public final Map<String, Integer> ruleHits;
 
-        public OptimizeResult(List<Integer> output, Symbols outputSymbols) {
+        public OptimizeResult(IntList output, Symbols outputSymbols, Map<String, Integer> ruleHits) {
             this.output = output;
             this.outputSymbols = outputSymbols;
+            this.ruleHits = ruleHits;
         }
     }
 }
@@ -0,0 +1,245 @@
+package mainpackage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import mainpackage.Atom.Operand;
+
+/**
+ * @brief Moves loop-invariant computations out of loops.
+ * The Parser lowers for and while loops to (LBL, loop) ... (JMP, loop), with
+ * the condition and the body in between. Such a range is a natural loop when
+ * nothing outside it jumps to a label inside it, so the LBL can only be
+ * entered by falling into it. Atoms placed right before that LBL then run
+ * once instead of on every iteration.
+ * An atom is hoisted when it writes a temporary that nothing else writes,
+ * every read of that temporary follows it in the same basic block, and its
+ * operands are constants, variables the loop never writes, or temporaries
+ * that were hoisted themselves. It goes to the outermost loop it is invariant
+ * in. Program variables are never hoisted, since a loop that runs zero times
+ * must leave them alone.
+ */
+public class LoopOptimization {
+    private LoopOptimization() {}
+
+    /**
+     * @brief Hoists the loop-invariant computations of a program.
+     * @param input The atoms of the program. This function does not change this list.
+     * @param names The table the atoms' names were interned in.
+     * @return A new list of atoms that computes the same variables.
+     */
+    public static List<Atom> optimize(List<Atom> input, SymbolTable names) {
+        final Atom[] atoms = input.toArray(new Atom[0]);
+        final int n = atoms.length;
+        final int ids = names.size();
+
+        // Where each label is defined, and the range of atoms that jump to it
+        int[] labelAt = new int[ids];
+        int[] firstJump = new int[ids];
+        int[] lastJump = new int[ids];
+        Arrays.fill(labelAt, -1);
+        Arrays.fill(firstJump, Integer.MAX_VALUE);
+        Arrays.fill(lastJump, -1);
+        for (int i = 0; i < n; i++) {
+            Atom atom = atoms[i];
+            if (atom.opcode == Atom.Opcode.LBL) {
+                labelAt[atom.getOperand(4).id] = i;
+            } else if (isJump(atom)) {
+                int label = atom.getOperand(4).id;
+                firstJump[label] = Math.min(firstJump[label], i);
+                lastJump[label] = i;
+            }
+        }
+
+        // Natural loops, by the index of their LBL: the loop ends at the last jump back to it
+        int[] loopEnd = new int[n];
+        Arrays.fill(loopEnd, -1);
+        for (int i = 0; i < n; i++) {
+            if (atoms[i].opcode != Atom.Opcode.LBL)
+                continue;
+            int label = atoms[i].getOperand(4).id;
+            int end = lastJump[label];
+            if (end > i && firstJump[label] > i && atoms[end].opcode == Atom.Opcode.JMP
+                    && isSingleEntry(atoms, i, end, labelAt, firstJump, lastJump))
+                loopEnd[i] = end;
+        }
+
+        // The innermost loop around each atom, and the loop around each loop.
+        // Loops that overlap without nesting are ignored.
+        int[] loopOf = new int[n];
+        int[] parent = new int[n];
+        int[] stack = new int[n + 1];
+        int depth = 0;
+        for (int i = 0; i < n; i++) {
+            while (depth > 0 && loopEnd[stack[depth - 1]] < i)
+                depth--;
+            if (loopEnd[i] >= 0) {
+                if (depth > 0 && loopEnd[i] > loopEnd[stack[depth - 1]]) {
+                    loopEnd[i] = -1;
+                } else {
+                    parent[i] = depth > 0 ? stack[depth - 1] : -1;
+                    stack[depth++] = i;
+                }
+            }
+            loopOf[i] = depth > 0 ? stack[depth - 1] : -1;
+        }
+
+        // Basic blocks, and the writes and reads of every variable
+        int[] block = new int[n];
+        int[] writes = new int[ids];
+        int[] writeStart = new int[ids + 1];
+        int blocks = 0;
+        for (int i = 0; i < n; i++) {
+            Atom atom = atoms[i];
+            if (atom.opcode == Atom.Opcode.LBL)
+                blocks++;
+            block[i] = blocks;
+            if (isJump(atom))
+                blocks++;
+            Operand result = resultOf(atom);
+            if (result != null)
+                writes[result.id]++;
+        }
+        for (int id = 0; id < ids; id++)
+            writeStart[id + 1] = writeStart[id] + writes[id];
+        int[] writeAt = new int[writeStart[ids]];
+        int[] filled = Arrays.copyOf(writeStart, ids);
+        boolean[] readElsewhere = new boolean[ids];
+        int[] writtenAt = new int[ids];
+        for (int i = 0; i < n; i++) {
+            Atom atom = atoms[i];
+            for (int o = 0; o < 2; o++) {
+                Operand op = atom.getOperand(o);
+                if (isVariable(op)) {
+                    int id = op.id;
+                    // A read counts as local when it comes after the only write, in the same block
+                    if (writes[id] != 1 || filled[id] == writeStart[id] || block[writtenAt[id]] != block[i])
+                        readElsewhere[id] = true;
+                }
+            }
+            Operand result = resultOf(atom);
+            if (result != null) {
+                writeAt[filled[result.id]++] = i;
+                writtenAt[result.id] = i;
+            }
+        }
+
+        // Pick the atoms to hoist and the loop each one goes in front of
+        int[] hoistedTo = new int[ids];
+        Arrays.fill(hoistedTo, -1);
+        int[] target = new int[n];
+        Arrays.fill(target, -1);
+        int hoisted = 0;
+        for (int i = 0; i < n; i++) {
+            Atom atom = atoms[i];
+            Operand result = resultOf(atom);
+            if (loopOf[i] < 0 || result == null)
+                continue;
+            int t = result.id;
+            if (!names.isTemporary(t) || writes[t] != 1 || readElsewhere[t])
+                continue;
+
+            int to = -1;
+            for (int loop = loopOf[i]; loop >= 0; loop = parent[loop]) {
+                if (!isInvariant(atom.getOperand(0), loop, loopEnd, parent, hoistedTo, writeAt, writeStart)
+                        || !isInvariant(atom.getOperand(1), loop, loopEnd, parent, hoistedTo, writeAt, writeStart))
+                    break;
+                to = loop;
+            }
+            if (to >= 0) {
+                target[i] = to;
+                hoistedTo[t] = to;
+                hoisted++;
+            }
+        }
+        if (hoisted == 0)
+            return new ArrayList<>(input);
+
+        // Gather the hoisted atoms of each loop in their original order
+        int[] preheaderStart = new int[n + 1];
+        for (int i = 0; i < n; i++)
+            if (target[i] >= 0)
+                preheaderStart[target[i] + 1]++;
+        for (int i = 0; i < n; i++)
+            preheaderStart[i + 1] += preheaderStart[i];
+        Atom[] preheaders = new Atom[hoisted];
+        int[] next = Arrays.copyOf(preheaderStart, n);
+        for (int i = 0; i < n; i++)
+            if (target[i] >= 0)
+                preheaders[next[target[i]]++] = atoms[i];
+
+        List<Atom> output = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            for (int k = preheaderStart[i]; k < preheaderStart[i + 1]; k++)
+                output.add(preheaders[k]);
+            if (target[i] < 0)
+                output.add(atoms[i]);
+        }
+        return output;
+    }
+
+    /**
+     * @brief Returns whether the loop from the LBL at start to the JMP at end
+     * can only be entered through that LBL.
+     */
+    private static boolean isSingleEntry(Atom[] atoms, int start, int end, int[] labelAt, int[] firstJump, int[] lastJump) {
+        for (int i = start + 1; i <= end; i++) {
+            if (atoms[i].opcode != Atom.Opcode.LBL)
+                continue;
+            int label = atoms[i].getOperand(4).id;
+            if (labelAt[label] != i)
+                return false;
+            if (lastJump[label] >= 0 && (firstJump[label] < start || lastJump[label] > end))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @brief Returns whether an operand has the same value on every iteration of a loop.
+     */
+    private static boolean isInvariant(Operand op, int loop, int[] loopEnd, int[] parent, int[] hoistedTo,
+            int[] writeAt, int[] writeStart) {
+        if (!isVariable(op))
+            return true;
+        int id = op.id;
+        if (hoistedTo[id] >= 0) {
+            // Hoisted in front of this loop or one around it
+            for (int l = loop; l >= 0; l = parent[l])
+                if (l == hoistedTo[id])
+                    return true;
+            return false;
+        }
+        // Not written between the LBL and the JMP; the write positions are sorted
+        int k = Arrays.binarySearch(writeAt, writeStart[id], writeStart[id + 1], loop);
+        if (k < 0)
+            k = -k - 1;
+        return k == writeStart[id + 1] || writeAt[k] > loopEnd[loop];
+    }
+
+    private static boolean isJump(Atom atom) {
+        return atom.opcode == Atom.Opcode.JMP || atom.opcode == Atom.Opcode.TST;
+    }
+
+    private static boolean isVariable(Operand op) {
+        return op != null && op.type == Operand.VARIABLE;
+    }
+
+    /**
+     * @brief Returns the variable an atom writes, or null if it writes none
+     */
+    private static Operand resultOf(Atom atom) {
+        switch (atom.opcode) {
+            case ADD:
+            case SUB:
+            case MUL:
+            case DIV:
+            case NEG:
+            case MOV:
+                return atom.getOperand(2);
+            default:
+                return null;
+        }
+    }
+}
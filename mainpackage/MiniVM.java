@@ -3,10 +3,12 @@ package mainpackage;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
+import mainpackage.Instruction.Cmp;
+import mainpackage.Instruction.Opcode;
+
 /**
  * @author original by S. Bergmann
  * @author translation by Andrew B.
@@ -18,6 +20,7 @@ public class MiniVM {
 	private static final int MAX_CYCLES = 1000;
 	private static final int START_ADDRESS = 0;
 	private static final int PC_REGISTER = 1;
+	private static final int DEADLINE_CHECK_INTERVAL = 1 << 16;
 
 	private final int[] reg = new int[MAX_REGISTERS];
 	private final float[] fpreg = new float[MAX_REGISTERS];
@@ -26,18 +29,55 @@ public class MiniVM {
 	private boolean flag = false;
 	private boolean halt = false;
 	private int load;
-	private int cycle;
-
+	private long cycle;
+
+	// Pre-decoded view of mem used by the fast engine, one slot per word.
+	// decBase holds the displacement register, or -1 for absolute addressing.
+	private int[] decOp;
+	private int[] decR1;
+	private int[] decBase;
+	private int[] decAddr;
+	private int[] decCmp;
+	// What the engine dispatches on at each word: its opcode, or the
+	// superinstruction that starts there. See fuse().
+	private int[] decKind;
+
+	// Superinstructions: the fixed sequences CodeGen emits, run in one dispatch.
+	// They are numbered after the opcodes so one switch handles both.
+	private static final int FUSED_LOD_ADD_STO = 10;
+	private static final int FUSED_LOD_SUB_STO = 11;
+	private static final int FUSED_LOD_MUL_STO = 12;
+	private static final int FUSED_LOD_DIV_STO = 13;
+	private static final int FUSED_LOD_STO = 14;
+	private static final int FUSED_LOD_CMP_JMP = 15;
+	private static final int FUSED_CMP_JMP = 16;
+	// The most instructions a superinstruction stands for
+	private static final int MAX_FUSED_LENGTH = 3;
+
+	/**
+	 * Runs a machine code file, input.src unless another is named. It is
+	 * traced one keypress at a time, or with -jit run to completion on the
+	 * JIT and its RunResult printed.
+	 */
 	public static void main(String[] args) throws IOException {
-		Path input = args.length > 0
-			? Paths.get(args[0])
+		final boolean jit = args.length > 0 && args[0].equals("-jit");
+		final int file = jit ? 1 : 0;
+		Path input = args.length > file
+			? Paths.get(args[file])
 			: Paths.get("input.src");
 
-		new MiniVM(input).execute(true, true);
+		if (jit)
+			System.out.println(new MiniVM(input).execute(RunConfig.unlimited().withJit(true)));
+		else
+			new MiniVM(input).execute(true, true);
 	}
 
+	/**
+	 * Loads a machine code file by mapping it into memory and copying the
+	 * words straight into the VM's memory.
+	 */
 	public MiniVM(Path input) throws IOException {
-		this(Files.readAllBytes(input));
+		this(ObjectFile.map(input, MAX_MEMORY));
 	}
 
 	public MiniVM(String input) throws IOException {
@@ -45,8 +85,16 @@ public class MiniVM {
 	}
 
 	public MiniVM(ByteBuffer buf) {
-		load = Math.min(buf.array().length / 4, MAX_MEMORY);
-		buf.asIntBuffer().get(mem, 0, load);
+		this(buf.asIntBuffer());
+	}
+
+	/**
+	 * Loads the remaining words of a buffer, which may be a mapped file.
+	 * The buffer's position is not changed.
+	 */
+	public MiniVM(IntBuffer words) {
+		load = Math.min(words.remaining(), MAX_MEMORY);
+		words.duplicate().get(mem, 0, load);
 	}
 
 	public MiniVM(byte[] bytes) {
@@ -60,56 +108,381 @@ public class MiniVM {
 	}
 
 	public void execute(boolean verbose, boolean stepwise) {
+		execute(RunConfig.defaults().withTrace(verbose, stepwise));
+	}
+
+	/**
+	 * Runs the loaded program until it halts or the config's cycle budget or
+	 * time limit runs out.
+	 * @param config How long to run and whether to trace.
+	 * @return What the run did.
+	 */
+	public RunResult execute(RunConfig config) {
+		final long start = System.nanoTime();
+		final long deadline = config.timeLimitMillis > 0
+			? start + config.timeLimitMillis * 1_000_000L
+			: Long.MAX_VALUE;
+		long executed;
+
 		try {
 			reg[PC_REGISTER] = mem[START_ADDRESS];
 
+			// Tracing needs the Instr object for every cycle, so only the
+			// quiet mode can use the pre-decoded engine.
+			if (config.verbose || config.stepwise)
+				executed = runTraced(config, deadline);
+			else
+				executed = runPredecoded(config, deadline);
+		}
+		catch (Exception e) {
+			throw new RuntimeException("Fatal exception", e);
+		}
+
+		// Anything short of a halt or a spent budget was the time limit.
+		final boolean timedOut = !halt && (config.isUnlimited() || executed < config.maxCycles);
+		return new RunResult(executed, halt, timedOut, System.nanoTime() - start);
+	}
+
+	/**
+	 * Runs on the original Instr-based engine, printing the machine state as
+	 * requested by the config.
+	 * @return The number of instructions executed.
+	 */
+	private long runTraced(RunConfig config, long deadline) throws IOException {
+		final boolean verbose = config.verbose;
+
+		if (verbose) {
+			System.out.println("================================================================");
+			System.out.println("BOOT");
+			System.out.println("================================================================");
+			System.out.println();
+
+			dumpRegisters();
+			dumpMemory(0, load);
+		}
+
+		for (cycle = 0; config.isUnlimited() || cycle < config.maxCycles; cycle++) {
+			if (config.stepwise) {
+				System.out.println("Press any key...");
+				System.in.read();
+				System.out.println();
+			}
+
+			ir = new Instr(mem[reg[PC_REGISTER]]);
+			executeInstr();
+
 			if (verbose) {
 				System.out.println("================================================================");
-				System.out.println("BOOT");
+				System.out.println("CYCLE = " + cycle);
 				System.out.println("================================================================");
 				System.out.println();
 
+				dumpTrace(3, 7);
 				dumpRegisters();
 				dumpMemory(0, load);
 			}
 
-			for (cycle = 0; cycle < MAX_CYCLES; cycle++) {
-				if (stepwise) {
-					System.out.println("Press any key...");
-					System.in.read();
-					System.out.println();
-				}
+			if (halt) break;
+
+			reg[PC_REGISTER]++;
+
+			if (System.nanoTime() > deadline) {
+				cycle++;
+				break;
+			}
+		}
 
-				ir = new Instr(mem[reg[PC_REGISTER]]);
-				executeInstr();
+		if (verbose) {
+			System.out.println("================================================================");
+			System.out.println("HALT");
+			System.out.println("================================================================");
+		}
 
-				if (verbose) {
-					System.out.println("================================================================");
-					System.out.println("CYCLE = " + cycle);
-					System.out.println("================================================================");
-					System.out.println();
+		return halt ? cycle + 1 : cycle;
+	}
 
-					dumpTrace(3, 7);
-					dumpRegisters();
-					dumpMemory(0, load);
+	/**
+	 * Runs on the pre-decoded engine. Every memory word is decoded once into
+	 * flat arrays, so the dispatch loop does no allocation and no enum
+	 * lookups. Stores re-decode the word they write, which keeps
+	 * self-modifying code correct.
+	 *
+	 * If the config asks for it, the code segment is also compiled to JVM
+	 * bytecode by MiniVMJit, and slices run there until the compiled code
+	 * reaches an instruction it leaves to the interpreter.
+	 * @return The number of instructions executed.
+	 */
+	private long runPredecoded(RunConfig config, long deadline) {
+		predecode();
+
+		MiniVMJit.Compiled jit = config.jit
+			? MiniVMJit.compile(mem, mem[START_ADDRESS], load)
+			: null;
+		final int[] jitState = new int[3];
+
+		// Run in slices so the deadline is checked without a clock read per cycle.
+		long executed = 0;
+		while (!halt) {
+			long slice = config.isUnlimited()
+				? DEADLINE_CHECK_INTERVAL
+				: Math.min(DEADLINE_CHECK_INTERVAL, config.maxCycles - executed);
+			if (slice <= 0)
+				break;
+
+			long ran = 0;
+			if (jit != null) {
+				jitState[MiniVMJit.STATE_PC] = reg[PC_REGISTER];
+				jitState[MiniVMJit.STATE_FLAG] = flag ? 1 : 0;
+				ran = jit.run(mem, fpreg, jitState, slice);
+				reg[PC_REGISTER] = jitState[MiniVMJit.STATE_PC];
+				flag = jitState[MiniVMJit.STATE_FLAG] != 0;
+
+				switch (jitState[MiniVMJit.STATE_EXIT_KIND]) {
+					case MiniVMJit.EXIT_HALT:
+						halt = true;
+						break;
+					case MiniVMJit.EXIT_DEOPT:
+						// Stay on the interpreter from here on. The compiled code
+						// wrote memory behind the decoder's back, so decode again.
+						jit = null;
+						predecode();
+						break;
+					default:
+						break;
 				}
+			}
+			// The interpreter also takes over for a slice whose next block
+			// is longer than what is left of the slice.
+			if (!halt && ran == 0)
+				ran = runDecoded((int)slice);
+			executed += ran;
+
+			if (System.nanoTime() > deadline)
+				break;
+		}
+		return executed;
+	}
 
-				if (halt) break;
+	/**
+	 * The dispatch loop of the pre-decoded engine. Starts at the current PC
+	 * and leaves the PC and flag in the machine state.
+	 * A word where a superinstruction starts runs the whole sequence in one
+	 * dispatch, and counts as the cycles of the instructions it stands for.
+	 * @param maxCycles The number of cycles to run before giving up.
+	 * @return The number of instructions executed.
+	 */
+	private int runDecoded(int maxCycles) {
+		final int[] op = decOp;
+		final int[] r1 = decR1;
+		final int[] base = decBase;
+		final int[] addr = decAddr;
+		final int[] cmp = decCmp;
+		final int[] kinds = decKind;
+
+		int pc = reg[PC_REGISTER];
+		boolean f = flag;
+		// Past this point a superinstruction may not fit in the budget, so only single instructions run
+		final int fusedLimit = maxCycles - (MAX_FUSED_LENGTH - 1);
+		int c;
+		for (c = 0; c < maxCycles; c++) {
+			final int kind = c < fusedLimit ? kinds[pc] : op[pc];
+
+			final int r = r1[pc];
+			// The PC lives in pc rather than reg[PC_REGISTER] while this loop runs
+			final int b = base[pc];
+			final int ea = b < 0 ? addr[pc] : addr[pc] + (b == PC_REGISTER ? pc : reg[b]);
+			switch (kind) {
+				case Opcode.CLR:
+					fpreg[r] = 0;
+					break;
+				case Opcode.ADD:
+					fpreg[r] += Float.intBitsToFloat(mem[ea]);
+					break;
+				case Opcode.SUB:
+					fpreg[r] -= Float.intBitsToFloat(mem[ea]);
+					break;
+				case Opcode.MUL:
+					fpreg[r] *= Float.intBitsToFloat(mem[ea]);
+					break;
+				case Opcode.DIV:
+					fpreg[r] /= Float.intBitsToFloat(mem[ea]);
+					break;
+				case Opcode.JMP:
+					if (f)
+						pc = ea - 1; // incremented below, same as executeInstr()
+					break;
+				case Opcode.CMP:
+					f = compare(cmp[pc], fpreg[r], Float.intBitsToFloat(mem[ea]), pc);
+					break;
+				case Opcode.LOD:
+					fpreg[r] = Float.intBitsToFloat(mem[ea]);
+					break;
+				case Opcode.STO:
+					store(ea, fpreg[r]);
+					break;
+				case Opcode.HLT:
+					halt = true;
+					break;
+
+				// Superinstructions only use absolute addresses, so ea is the first one's address
+				case FUSED_LOD_ADD_STO:
+					store(addr[pc + 2], fpreg[r] = Float.intBitsToFloat(mem[ea]) + Float.intBitsToFloat(mem[addr[pc + 1]]));
+					pc += 3;
+					c += 2;
+					continue;
+				case FUSED_LOD_SUB_STO:
+					store(addr[pc + 2], fpreg[r] = Float.intBitsToFloat(mem[ea]) - Float.intBitsToFloat(mem[addr[pc + 1]]));
+					pc += 3;
+					c += 2;
+					continue;
+				case FUSED_LOD_MUL_STO:
+					store(addr[pc + 2], fpreg[r] = Float.intBitsToFloat(mem[ea]) * Float.intBitsToFloat(mem[addr[pc + 1]]));
+					pc += 3;
+					c += 2;
+					continue;
+				case FUSED_LOD_DIV_STO:
+					store(addr[pc + 2], fpreg[r] = Float.intBitsToFloat(mem[ea]) / Float.intBitsToFloat(mem[addr[pc + 1]]));
+					pc += 3;
+					c += 2;
+					continue;
+				case FUSED_LOD_STO:
+					store(addr[pc + 1], fpreg[r] = Float.intBitsToFloat(mem[ea]));
+					pc += 2;
+					c += 1;
+					continue;
+				case FUSED_LOD_CMP_JMP:
+					f = compare(cmp[pc + 1], fpreg[r] = Float.intBitsToFloat(mem[ea]), Float.intBitsToFloat(mem[addr[pc + 1]]), pc + 1);
+					pc = f ? addr[pc + 2] : pc + 3;
+					c += 2;
+					continue;
+				case FUSED_CMP_JMP:
+					f = compare(cmp[pc], fpreg[r], Float.intBitsToFloat(mem[ea]), pc);
+					pc = f ? addr[pc + 1] : pc + 2;
+					c += 1;
+					continue;
+				default:
+					throw new IllegalStateException("Invalid opcode at " + pc);
+			}
 
-				reg[PC_REGISTER]++;
+			if (halt) {
+				c++;
+				break;
 			}
 
-			if (verbose) {
-				System.out.println("================================================================");
-				System.out.println("HALT");
-				System.out.println("================================================================");
+			pc++;
+		}
+
+		reg[PC_REGISTER] = pc;
+		flag = f;
+		return c;
+	}
+
+	/**
+	 * Decodes all of memory into the dec* arrays.
+	 */
+	private void predecode() {
+		if (decOp == null) {
+			decOp = new int[MAX_MEMORY];
+			decR1 = new int[MAX_MEMORY];
+			decBase = new int[MAX_MEMORY];
+			decAddr = new int[MAX_MEMORY];
+			decCmp = new int[MAX_MEMORY];
+			decKind = new int[MAX_MEMORY];
+		}
+		for (int i = 0; i < MAX_MEMORY; i++)
+			decode(i);
+		for (int i = 0; i < MAX_MEMORY; i++)
+			fuse(i);
+	}
+
+	/**
+	 * Writes a word for the pre-decoded engine and decodes it again, which
+	 * keeps self-modifying code correct. The superinstructions that could
+	 * include the word are split back into single instructions; new ones are
+	 * only found by predecode().
+	 * @param ea The address to write.
+	 * @param value The value to write there.
+	 */
+	private void store(int ea, float value) {
+		mem[ea] = Float.floatToIntBits(value);
+		decode(ea);
+		if (ea >= 2) {
+			decKind[ea - 1] = decOp[ea - 1];
+			decKind[ea - 2] = decOp[ea - 2];
+		} else {
+			for (int i = 0; i < ea; i++)
+				decKind[i] = decOp[i];
+		}
+	}
+
+	/**
+	 * Finds the superinstruction that starts at a word, if any: a LOD
+	 * followed by an ADD, SUB, MUL or DIV and a STO, a LOD and a STO, a LOD,
+	 * CMP and JMP, or a CMP and JMP. All of the instructions have to use the
+	 * same register and absolute addresses. Jumps into the middle of a
+	 * sequence still work, since every word keeps its own decoding.
+	 * @param i The address of the word.
+	 */
+	private void fuse(int i) {
+		if (i + 1 >= MAX_MEMORY || decBase[i] >= 0 || decBase[i + 1] >= 0)
+			return;
+		final boolean third = i + 2 < MAX_MEMORY && decBase[i + 2] < 0;
+		final int first = decOp[i];
+		final int second = decOp[i + 1];
+
+		if (first == Opcode.CMP && second == Opcode.JMP) {
+			decKind[i] = FUSED_CMP_JMP;
+			return;
+		}
+		if (first != Opcode.LOD || decR1[i + 1] != decR1[i])
+			return;
+		if (second == Opcode.STO) {
+			decKind[i] = FUSED_LOD_STO;
+		} else if (second == Opcode.CMP && third && decOp[i + 2] == Opcode.JMP) {
+			decKind[i] = FUSED_LOD_CMP_JMP;
+		} else if (third && decOp[i + 2] == Opcode.STO && decR1[i + 2] == decR1[i]) {
+			switch (second) {
+				case Opcode.ADD: decKind[i] = FUSED_LOD_ADD_STO; break;
+				case Opcode.SUB: decKind[i] = FUSED_LOD_SUB_STO; break;
+				case Opcode.MUL: decKind[i] = FUSED_LOD_MUL_STO; break;
+				case Opcode.DIV: decKind[i] = FUSED_LOD_DIV_STO; break;
+				default: break;
 			}
 		}
-		catch (Exception e) {
-			throw new RuntimeException("Fatal exception", e);
+	}
+
+	/**
+	 * Evaluates a CMP for the pre-decoded engine.
+	 * @param pc The address of the CMP, for the error message.
+	 */
+	private static boolean compare(int cmp, float lhs, float rhs, int pc) {
+		switch (cmp) {
+			case Cmp.ALWAYS: return true;
+			case Cmp.EQUAL: return lhs == rhs;
+			case Cmp.LESSER: return lhs < rhs;
+			case Cmp.GREATER: return lhs > rhs;
+			case Cmp.LESSER_OR_EQUAL: return lhs <= rhs;
+			case Cmp.GREATER_OR_EQUAL: return lhs >= rhs;
+			case Cmp.UNEQUAL: return lhs != rhs;
+			default: throw new IllegalStateException("Invalid comparison type at " + pc);
 		}
 	}
 
+	/**
+	 * Decodes a single memory word into the dec* arrays.
+	 * @param i The address of the word to decode.
+	 */
+	private void decode(int i) {
+		final int raw = mem[i];
+		final boolean absolute = (raw >>> 27 & 1) == 0;
+		decOp[i] = raw >>> 28;
+		decR1[i] = raw >>> 20 & 0xF;
+		decBase[i] = absolute ? -1 : raw >>> 16 & 0xF;
+		decAddr[i] = raw & (absolute ? 0xFFFFF : 0xFFFF);
+		decCmp[i] = raw >>> 24 & 0b111;
+		decKind[i] = decOp[i];
+	}
+
     // Mallory: Formatted the switches to work with my java version. The logic is unchanged.
 	private void executeInstr() {
         int dest = 0;
@@ -140,7 +513,8 @@ public class MiniVM {
 			
 			case JMP:
 				if (flag) {
-					reg[PC_REGISTER] = absMemoryLocation(ir);
+					// The PC is incremented after every cycle, so aim one short of the target.
+					reg[PC_REGISTER] = absMemoryLocation(ir) - 1;
 				}
                 break;
 			
@@ -253,6 +627,112 @@ public class MiniVM {
 		}
 		System.out.println();
 	}
+
+	/**
+	 * Returns a word of memory as a float, which is how programs store their variables.
+	 * @param address The address of the word.
+	 */
+	public float readFloat(int address) {
+		return Float.intBitsToFloat(mem[address]);
+	}
+
+	/**
+	 * How a call to execute(RunConfig) should run the program.
+	 */
+	public static class RunConfig {
+		public static final long UNLIMITED = -1;
+
+		// Cycles to run before cutting the program off, or UNLIMITED.
+		public final long maxCycles;
+		// Wall-clock milliseconds to run before cutting the program off, or 0 for no limit.
+		public final long timeLimitMillis;
+		// Print the machine state after every cycle.
+		public final boolean verbose;
+		// Wait for a key press before every cycle.
+		public final boolean stepwise;
+		// Compile the code segment to JVM bytecode. Ignored when tracing.
+		public final boolean jit;
+
+		public RunConfig(long maxCycles, long timeLimitMillis, boolean verbose, boolean stepwise, boolean jit) {
+			if (maxCycles < 0 && maxCycles != UNLIMITED)
+				throw new IllegalArgumentException("maxCycles must be positive or UNLIMITED.");
+			if (timeLimitMillis < 0)
+				throw new IllegalArgumentException("timeLimitMillis must not be negative.");
+			this.maxCycles = maxCycles;
+			this.timeLimitMillis = timeLimitMillis;
+			this.verbose = verbose;
+			this.stepwise = stepwise;
+			this.jit = jit;
+		}
+
+		/**
+		 * @return The historical configuration: MAX_CYCLES cycles, no time limit, no tracing.
+		 */
+		public static RunConfig defaults() {
+			return new RunConfig(MAX_CYCLES, 0, false, false, false);
+		}
+
+		/**
+		 * @return A configuration that runs until the program halts.
+		 */
+		public static RunConfig unlimited() {
+			return new RunConfig(UNLIMITED, 0, false, false, false);
+		}
+
+		public RunConfig withMaxCycles(long maxCycles) {
+			return new RunConfig(maxCycles, timeLimitMillis, verbose, stepwise, jit);
+		}
+
+		public RunConfig withTimeLimit(long timeLimitMillis) {
+			return new RunConfig(maxCycles, timeLimitMillis, verbose, stepwise, jit);
+		}
+
+		public RunConfig withTrace(boolean verbose, boolean stepwise) {
+			return new RunConfig(maxCycles, timeLimitMillis, verbose, stepwise, jit);
+		}
+
+		public RunConfig withJit(boolean jit) {
+			return new RunConfig(maxCycles, timeLimitMillis, verbose, stepwise, jit);
+		}
+
+		public boolean isUnlimited() {
+			return maxCycles == UNLIMITED;
+		}
+	}
+
+	/**
+	 * What a call to execute(RunConfig) did.
+	 */
+	public static class RunResult {
+		// Instructions executed, including the HLT if there was one.
+		public final long cycles;
+		// True if the program executed HLT, false if it was cut off.
+		public final boolean halted;
+		// True if the program was cut off by the time limit rather than the cycle budget.
+		public final boolean timedOut;
+		// Wall-clock time of the run.
+		public final long elapsedNanos;
+
+		public RunResult(long cycles, boolean halted, boolean timedOut, long elapsedNanos) {
+			this.cycles = cycles;
+			this.halted = halted;
+			this.timedOut = timedOut;
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		public double instructionsPerSecond() {
+			return elapsedNanos == 0 ? 0 : cycles * 1e9 / elapsedNanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d cycles, %s, %.3f ms, %.0f instr/s",
+				cycles,
+				halted ? "halted" : timedOut ? "cut off by time limit" : "cut off by cycle budget",
+				elapsedNanos / 1e6,
+				instructionsPerSecond());
+		}
+	}
 }
 
 class Instr {
@@ -0,0 +1,618 @@
+package mainpackage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import mainpackage.Instruction.Cmp;
+import mainpackage.Instruction.Opcode;
+
+/**
+ * @brief Translates the code segment of a loaded MiniVM program into a JVM
+ * method so hot loops run as native JVM code instead of through the
+ * interpreter's switch.
+ *
+ * The generated method keeps the sixteen registers and every memory cell the
+ * code touches in float locals, turns each JMP into a real branch, and
+ * counts cycles per basic block so it can stop at exactly the budget it was
+ * given. Anything it cannot handle (register-displacement addressing, stores
+ * into the code segment, jumps out of the code segment, invalid words) is
+ * compiled as an exit that hands the machine state back to the interpreter
+ * at that instruction.
+ */
+final class MiniVMJit {
+    // Why the compiled code returned, found in state[EXIT_KIND] afterwards.
+    public static final int EXIT_BUDGET = 0;
+    public static final int EXIT_HALT = 1;
+    public static final int EXIT_DEOPT = 2;
+
+    // Layout of the state array shared with the compiled code.
+    public static final int STATE_PC = 0;
+    public static final int STATE_FLAG = 1;
+    public static final int STATE_EXIT_KIND = 2;
+
+    // HotSpot refuses to compile bigger methods, which would leave us slower
+    // than the pre-decoded interpreter.
+    private static final int HUGE_METHOD_LIMIT = 8000;
+
+    private static final int REGISTERS = 16;
+    private static final String CLASS_NAME = "mainpackage/MiniVMJitCode";
+    private static final String RUN_DESCRIPTOR = "([I[F[IJ)J";
+
+    // Local variable slots of the generated method.
+    private static final int L_MEM = 0;
+    private static final int L_FPREG = 1;
+    private static final int L_STATE = 2;
+    private static final int L_BUDGET = 3; // long
+    private static final int L_CYCLES = 5; // long
+    private static final int L_FLAG = 7;
+    private static final int L_EXIT_PC = 8;
+    private static final int L_EXIT_KIND = 9;
+    private static final int L_FIRST_REG = 10;
+    private static final int L_FIRST_CELL = L_FIRST_REG + REGISTERS;
+
+    private final int[] mem;
+    private final int start;
+    private final int end;
+
+    // Memory address -> local slot holding that cell.
+    private final TreeMap<Integer, Integer> cells = new TreeMap<>();
+    // Cells written by the code, which must be copied back to mem on exit.
+    private final TreeMap<Integer, Integer> dirtyCells = new TreeMap<>();
+    // Address of the first instruction of every basic block -> its label.
+    private final TreeMap<Integer, Assembler.Label> blocks = new TreeMap<>();
+
+    private MiniVMJit(int[] mem, int start, int end) {
+        this.mem = mem;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * @brief Compiles the code segment [start, end) of mem.
+     * @param mem The VM's memory. Only read during compilation.
+     * @param start The address of the first instruction.
+     * @param end One past the address of the last instruction.
+     * @return The compiled code, or null if the code segment cannot be compiled profitably.
+     */
+    public static Compiled compile(int[] mem, int start, int end) {
+        if (start < 0 || start >= end || end > mem.length)
+            return null;
+
+        byte[] classFile = new MiniVMJit(mem, start, end).generate();
+        if (classFile == null)
+            return null;
+
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classFile, true);
+            MethodHandle run = lookup.findStatic(lookup.lookupClass(), "run",
+                MethodType.methodType(long.class, int[].class, float[].class, int[].class, long.class));
+            return new Compiled(run);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // The interpreter can always run the program, so a bad translation is not fatal.
+            return null;
+        }
+    }
+
+    /**
+     * @brief A code segment that has been translated into a JVM method.
+     */
+    public static class Compiled {
+        private final MethodHandle run;
+
+        private Compiled(MethodHandle run) {
+            this.run = run;
+        }
+
+        /**
+         * @brief Runs the compiled code.
+         * @param mem The VM's memory.
+         * @param fpreg The VM's floating point registers.
+         * @param state In: the PC to start at and the flag. Out: the PC to resume at, the flag and the exit kind.
+         * @param budget The maximum number of cycles to run.
+         * @return The number of cycles executed.
+         */
+        public long run(int[] mem, float[] fpreg, int[] state, long budget) {
+            try {
+                return (long)run.invokeExact(mem, fpreg, state, budget);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new RuntimeException(t);
+            }
+        }
+    }
+
+    /**
+     * @brief Decides whether the interpreter has to run the instruction at pc.
+     */
+    private boolean needsInterpreter(int pc) {
+        final int raw = mem[pc];
+        final int op = raw >>> 28;
+        final int a = raw & 0xFFFFF;
+
+        if (op > Opcode.HLT || (raw >>> 27 & 1) != 0)
+            return true;
+
+        switch (op) {
+            case Opcode.CLR:
+            case Opcode.HLT:
+            case Opcode.JMP:
+                return false;
+            case Opcode.CMP:
+                final int cmp = raw >>> 24 & 0b111;
+                return cmp > Cmp.UNEQUAL || a >= mem.length;
+            case Opcode.STO:
+                return a >= mem.length || (a >= start && a < end);
+            default:
+                return a >= mem.length;
+        }
+    }
+
+    /**
+     * @brief Returns the local slot of the memory cell at address a.
+     */
+    private int cell(int a) {
+        Integer slot = cells.get(a);
+        if (slot == null) {
+            slot = L_FIRST_CELL + cells.size();
+            cells.put(a, slot);
+        }
+        return slot;
+    }
+
+    /**
+     * @brief Builds the class file, or returns null if the method would be too big.
+     */
+    private byte[] generate() {
+        Assembler asm = new Assembler();
+
+        // Find the basic blocks.
+        blocks.put(start, asm.newLabel());
+        for (int pc = start; pc < end; pc++) {
+            final int op = mem[pc] >>> 28;
+            if (needsInterpreter(pc)) {
+                blocks.putIfAbsent(pc, asm.newLabel());
+                blocks.putIfAbsent(pc + 1, asm.newLabel());
+            } else if (op == Opcode.JMP || op == Opcode.HLT) {
+                final int target = mem[pc] & 0xFFFFF;
+                if (op == Opcode.JMP && target >= start && target < end)
+                    blocks.putIfAbsent(target, asm.newLabel());
+                blocks.putIfAbsent(pc + 1, asm.newLabel());
+            } else if (op != Opcode.CLR && !(op == Opcode.CMP && (mem[pc] >>> 24 & 0b111) == Cmp.ALWAYS)) {
+                final int slot = cell(mem[pc] & 0xFFFFF);
+                if (op == Opcode.STO)
+                    dirtyCells.put(mem[pc] & 0xFFFFF, slot);
+            }
+        }
+        // Running off the end of the code segment hands control back to the interpreter.
+        blocks.putIfAbsent(end, asm.newLabel());
+
+        Assembler.Label epilogue = asm.newLabel();
+
+        // Prologue: copy the machine state into locals, then dispatch on the PC.
+        asm.op(Assembler.LCONST_0).local(Assembler.LSTORE, L_CYCLES);
+        asm.local(Assembler.ALOAD, L_STATE).pushInt(STATE_FLAG).op(Assembler.IALOAD).local(Assembler.ISTORE, L_FLAG);
+        for (int r = 0; r < REGISTERS; r++)
+            asm.local(Assembler.ALOAD, L_FPREG).pushInt(r).op(Assembler.FALOAD).local(Assembler.FSTORE, L_FIRST_REG + r);
+        for (Map.Entry<Integer, Integer> e : cells.entrySet()) {
+            asm.local(Assembler.ALOAD, L_MEM).pushInt(e.getKey()).op(Assembler.IALOAD);
+            asm.invokeStatic("java/lang/Float", "intBitsToFloat", "(I)F").local(Assembler.FSTORE, e.getValue());
+        }
+        Assembler.Label badEntry = asm.newLabel();
+        asm.local(Assembler.ALOAD, L_STATE).pushInt(STATE_PC).op(Assembler.IALOAD);
+        asm.lookupSwitch(blocks, badEntry);
+        asm.bind(badEntry);
+        asm.local(Assembler.ALOAD, L_STATE).pushInt(STATE_PC).op(Assembler.IALOAD);
+        exit(asm, EXIT_DEOPT, epilogue);
+
+        // One block at a time.
+        for (Map.Entry<Integer, Assembler.Label> block : blocks.entrySet()) {
+            final int first = block.getKey();
+            asm.bind(block.getValue());
+
+            if (first == end || needsInterpreter(first)) {
+                asm.pushInt(first);
+                exit(asm, EXIT_DEOPT, epilogue);
+                continue;
+            }
+
+            Integer next = blocks.higherKey(first);
+            final int last = next == null ? end : next;
+
+            // Charge the whole block up front, leaving if it does not fit the budget.
+            Assembler.Label fits = asm.newLabel();
+            asm.local(Assembler.LLOAD, L_CYCLES).pushInt(last - first).op(Assembler.I2L).op(Assembler.LADD);
+            asm.op(Assembler.DUP2).local(Assembler.LLOAD, L_BUDGET).op(Assembler.LCMP).jump(Assembler.IFLE, fits);
+            asm.op(Assembler.POP2).pushInt(first);
+            exit(asm, EXIT_BUDGET, epilogue);
+            asm.bind(fits);
+            asm.local(Assembler.LSTORE, L_CYCLES);
+
+            for (int pc = first; pc < last; pc++)
+                instruction(asm, pc, epilogue);
+        }
+
+        // Epilogue: copy the locals back into the machine state.
+        asm.bind(epilogue);
+        for (Map.Entry<Integer, Integer> e : dirtyCells.entrySet()) {
+            asm.local(Assembler.ALOAD, L_MEM).pushInt(e.getKey()).local(Assembler.FLOAD, e.getValue());
+            asm.invokeStatic("java/lang/Float", "floatToIntBits", "(F)I").op(Assembler.IASTORE);
+        }
+        for (int r = 0; r < REGISTERS; r++)
+            asm.local(Assembler.ALOAD, L_FPREG).pushInt(r).local(Assembler.FLOAD, L_FIRST_REG + r).op(Assembler.FASTORE);
+        asm.local(Assembler.ALOAD, L_STATE).pushInt(STATE_PC).local(Assembler.ILOAD, L_EXIT_PC).op(Assembler.IASTORE);
+        asm.local(Assembler.ALOAD, L_STATE).pushInt(STATE_FLAG).local(Assembler.ILOAD, L_FLAG).op(Assembler.IASTORE);
+        asm.local(Assembler.ALOAD, L_STATE).pushInt(STATE_EXIT_KIND).local(Assembler.ILOAD, L_EXIT_KIND).op(Assembler.IASTORE);
+        asm.local(Assembler.LLOAD, L_CYCLES).op(Assembler.LRETURN);
+
+        byte[] code = asm.finish();
+        if (code.length > HUGE_METHOD_LIMIT)
+            return null;
+        return asm.classFile(CLASS_NAME, "run", RUN_DESCRIPTOR, code, 8, L_FIRST_CELL + cells.size());
+    }
+
+    /**
+     * @brief Emits an exit to the epilogue. Expects the PC to resume at on the stack.
+     */
+    private void exit(Assembler asm, int kind, Assembler.Label epilogue) {
+        asm.local(Assembler.ISTORE, L_EXIT_PC);
+        asm.pushInt(kind).local(Assembler.ISTORE, L_EXIT_KIND);
+        asm.jump(Assembler.GOTO, epilogue);
+    }
+
+    /**
+     * @brief Emits the JVM code for the MiniVM instruction at pc.
+     */
+    private void instruction(Assembler asm, int pc, Assembler.Label epilogue) {
+        final int raw = mem[pc];
+        final int reg = L_FIRST_REG + (raw >>> 20 & 0xF);
+        final int a = raw & 0xFFFFF;
+
+        switch (raw >>> 28) {
+            case Opcode.CLR:
+                asm.op(Assembler.FCONST_0).local(Assembler.FSTORE, reg);
+                break;
+            case Opcode.ADD:
+                asm.local(Assembler.FLOAD, reg).local(Assembler.FLOAD, cell(a)).op(Assembler.FADD).local(Assembler.FSTORE, reg);
+                break;
+            case Opcode.SUB:
+                asm.local(Assembler.FLOAD, reg).local(Assembler.FLOAD, cell(a)).op(Assembler.FSUB).local(Assembler.FSTORE, reg);
+                break;
+            case Opcode.MUL:
+                asm.local(Assembler.FLOAD, reg).local(Assembler.FLOAD, cell(a)).op(Assembler.FMUL).local(Assembler.FSTORE, reg);
+                break;
+            case Opcode.DIV:
+                asm.local(Assembler.FLOAD, reg).local(Assembler.FLOAD, cell(a)).op(Assembler.FDIV).local(Assembler.FSTORE, reg);
+                break;
+            case Opcode.LOD:
+                asm.local(Assembler.FLOAD, cell(a)).local(Assembler.FSTORE, reg);
+                break;
+            case Opcode.STO:
+                asm.local(Assembler.FLOAD, reg).local(Assembler.FSTORE, cell(a));
+                break;
+            case Opcode.CMP:
+                comparison(asm, raw >>> 24 & 0b111, reg, a);
+                break;
+            case Opcode.JMP:
+                Assembler.Label target = a >= start && a < end ? blocks.get(a) : null;
+                if (target != null) {
+                    asm.local(Assembler.ILOAD, L_FLAG).jump(Assembler.IFNE, target);
+                } else {
+                    Assembler.Label notTaken = asm.newLabel();
+                    asm.local(Assembler.ILOAD, L_FLAG).jump(Assembler.IFEQ, notTaken);
+                    asm.pushInt(a);
+                    exit(asm, EXIT_DEOPT, epilogue);
+                    asm.bind(notTaken);
+                }
+                break;
+            case Opcode.HLT:
+                asm.pushInt(pc);
+                exit(asm, EXIT_HALT, epilogue);
+                break;
+            default:
+                throw new IllegalStateException("Invalid opcode at " + pc);
+        }
+    }
+
+    /**
+     * @brief Emits flag = fpreg[reg] cmp mem[a], with the same NaN behaviour as Java's float operators.
+     */
+    private void comparison(Assembler asm, int cmp, int reg, int a) {
+        if (cmp == Cmp.ALWAYS) {
+            asm.op(Assembler.ICONST_1).local(Assembler.ISTORE, L_FLAG);
+            return;
+        }
+
+        int fcmp;
+        int branch;
+        switch (cmp) {
+            case Cmp.EQUAL:            fcmp = Assembler.FCMPL; branch = Assembler.IFEQ; break;
+            case Cmp.LESSER:           fcmp = Assembler.FCMPG; branch = Assembler.IFLT; break;
+            case Cmp.GREATER:          fcmp = Assembler.FCMPL; branch = Assembler.IFGT; break;
+            case Cmp.LESSER_OR_EQUAL:  fcmp = Assembler.FCMPG; branch = Assembler.IFLE; break;
+            case Cmp.GREATER_OR_EQUAL: fcmp = Assembler.FCMPL; branch = Assembler.IFGE; break;
+            case Cmp.UNEQUAL:          fcmp = Assembler.FCMPL; branch = Assembler.IFNE; break;
+            default: throw new IllegalStateException("Invalid comparison type " + cmp);
+        }
+
+        Assembler.Label isTrue = asm.newLabel();
+        Assembler.Label done = asm.newLabel();
+        asm.local(Assembler.FLOAD, reg).local(Assembler.FLOAD, cell(a)).op(fcmp).jump(branch, isTrue);
+        asm.op(Assembler.ICONST_0).jump(Assembler.GOTO, done);
+        asm.bind(isTrue);
+        asm.op(Assembler.ICONST_1);
+        asm.bind(done);
+        asm.local(Assembler.ISTORE, L_FLAG);
+    }
+
+    /**
+     * @brief Just enough of a JVM class file writer for one static method.
+     *
+     * Class files are written as version 49 so the verifier infers types
+     * itself and no StackMapTable has to be computed.
+     */
+    private static class Assembler {
+        static final int ICONST_0 = 0x03, ICONST_1 = 0x04, LCONST_0 = 0x09, FCONST_0 = 0x0B;
+        static final int BIPUSH = 0x10, SIPUSH = 0x11, LDC = 0x12, LDC_W = 0x13;
+        static final int ILOAD = 0x15, LLOAD = 0x16, FLOAD = 0x17, ALOAD = 0x19;
+        static final int IALOAD = 0x2E, FALOAD = 0x30;
+        static final int ISTORE = 0x36, LSTORE = 0x37, FSTORE = 0x38;
+        static final int IASTORE = 0x4F, FASTORE = 0x51;
+        static final int POP2 = 0x58, DUP2 = 0x5C;
+        static final int LADD = 0x61, FADD = 0x62, FSUB = 0x66, FMUL = 0x6A, FDIV = 0x6E;
+        static final int I2L = 0x85, LCMP = 0x94, FCMPL = 0x95, FCMPG = 0x96;
+        static final int IFEQ = 0x99, IFNE = 0x9A, IFLT = 0x9B, IFGE = 0x9C, IFGT = 0x9D, IFLE = 0x9E;
+        static final int GOTO = 0xA7, LOOKUPSWITCH = 0xAB, LRETURN = 0xAD, INVOKESTATIC = 0xB8, WIDE = 0xC4;
+
+        static class Label {
+            int position = -1;
+        }
+
+        // A branch offset that still has to be filled in.
+        private static class Fixup {
+            final int opcodeAt;
+            final int operandAt;
+            final boolean wide;
+            final Label target;
+
+            Fixup(int opcodeAt, int operandAt, boolean wide, Label target) {
+                this.opcodeAt = opcodeAt;
+                this.operandAt = operandAt;
+                this.wide = wide;
+                this.target = target;
+            }
+        }
+
+        private byte[] code = new byte[1024];
+        private int length = 0;
+        private final List<Fixup> fixups = new ArrayList<>();
+
+        private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        private final DataOutputStream poolOut = new DataOutputStream(pool);
+        private final Map<String, Integer> poolIndex = new HashMap<>();
+        private int poolCount = 1;
+
+        Label newLabel() {
+            return new Label();
+        }
+
+        void bind(Label label) {
+            label.position = length;
+        }
+
+        Assembler op(int opcode) {
+            u1(opcode);
+            return this;
+        }
+
+        Assembler local(int opcode, int slot) {
+            if (slot > 0xFF) {
+                u1(WIDE);
+                u1(opcode);
+                u2(slot);
+            } else {
+                u1(opcode);
+                u1(slot);
+            }
+            return this;
+        }
+
+        Assembler pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                u1(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                u1(BIPUSH);
+                u1(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                u1(SIPUSH);
+                u2(value);
+            } else {
+                int index = constant("I" + value, 3, value);
+                if (index > 0xFF) {
+                    u1(LDC_W);
+                    u2(index);
+                } else {
+                    u1(LDC);
+                    u1(index);
+                }
+            }
+            return this;
+        }
+
+        Assembler jump(int opcode, Label target) {
+            fixups.add(new Fixup(length, length + 1, false, target));
+            u1(opcode);
+            u2(0);
+            return this;
+        }
+
+        Assembler invokeStatic(String owner, String name, String descriptor) {
+            int nameAndType = entry("T" + name + descriptor, 12, utf8(name), utf8(descriptor));
+            int method = entry("M" + owner + "." + name + descriptor, 10, classRef(owner), nameAndType);
+            u1(INVOKESTATIC);
+            u2(method);
+            return this;
+        }
+
+        /**
+         * @brief Emits a lookupswitch on the int on top of the stack.
+         */
+        void lookupSwitch(TreeMap<Integer, Label> cases, Label defaultTarget) {
+            final int opcodeAt = length;
+            u1(LOOKUPSWITCH);
+            while (length % 4 != 0)
+                u1(0);
+            fixups.add(new Fixup(opcodeAt, length, true, defaultTarget));
+            u4(0);
+            u4(cases.size());
+            for (Map.Entry<Integer, Label> c : cases.entrySet()) {
+                u4(c.getKey());
+                fixups.add(new Fixup(opcodeAt, length, true, c.getValue()));
+                u4(0);
+            }
+        }
+
+        /**
+         * @brief Resolves all branches and returns the bytecode.
+         */
+        byte[] finish() {
+            for (Fixup f : fixups) {
+                if (f.target.position < 0)
+                    throw new IllegalStateException("Unbound label");
+                final int offset = f.target.position - f.opcodeAt;
+                if (f.wide) {
+                    code[f.operandAt] = (byte)(offset >>> 24);
+                    code[f.operandAt + 1] = (byte)(offset >>> 16);
+                    code[f.operandAt + 2] = (byte)(offset >>> 8);
+                    code[f.operandAt + 3] = (byte)offset;
+                } else {
+                    if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+                        throw new IllegalStateException("Branch out of range");
+                    code[f.operandAt] = (byte)(offset >>> 8);
+                    code[f.operandAt + 1] = (byte)offset;
+                }
+            }
+            byte[] toReturn = new byte[length];
+            System.arraycopy(code, 0, toReturn, 0, length);
+            return toReturn;
+        }
+
+        /**
+         * @brief Wraps bytecode in a class that holds it as its only, public static, method.
+         */
+        byte[] classFile(String className, String methodName, String descriptor, byte[] methodCode, int maxStack, int maxLocals) {
+            int thisClass = classRef(className);
+            int superClass = classRef("java/lang/Object");
+            int name = utf8(methodName);
+            int type = utf8(descriptor);
+            int codeAttribute = utf8("Code");
+
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeInt(0xCAFEBABE);
+                out.writeShort(0);
+                out.writeShort(49);
+                out.writeShort(poolCount);
+                out.write(pool.toByteArray());
+                out.writeShort(0x0011); // ACC_PUBLIC | ACC_FINAL
+                out.writeShort(thisClass);
+                out.writeShort(superClass);
+                out.writeShort(0); // interfaces
+                out.writeShort(0); // fields
+                out.writeShort(1); // methods
+                out.writeShort(0x0009); // ACC_PUBLIC | ACC_STATIC
+                out.writeShort(name);
+                out.writeShort(type);
+                out.writeShort(1); // attributes
+                out.writeShort(codeAttribute);
+                out.writeInt(12 + methodCode.length);
+                out.writeShort(maxStack);
+                out.writeShort(maxLocals);
+                out.writeInt(methodCode.length);
+                out.write(methodCode);
+                out.writeShort(0); // exception table
+                out.writeShort(0); // code attributes
+                out.writeShort(0); // class attributes
+                return bytes.toByteArray();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private int utf8(String s) {
+            Integer index = poolIndex.get("U" + s);
+            if (index != null)
+                return index;
+            try {
+                poolOut.writeByte(1);
+                poolOut.writeUTF(s);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            poolIndex.put("U" + s, poolCount);
+            return poolCount++;
+        }
+
+        private int classRef(String internalName) {
+            return entry("C" + internalName, 7, utf8(internalName));
+        }
+
+        private int constant(String key, int tag, int value) {
+            Integer index = poolIndex.get(key);
+            if (index != null)
+                return index;
+            try {
+                poolOut.writeByte(tag);
+                poolOut.writeInt(value);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            poolIndex.put(key, poolCount);
+            return poolCount++;
+        }
+
+        private int entry(String key, int tag, int... refs) {
+            Integer index = poolIndex.get(key);
+            if (index != null)
+                return index;
+            try {
+                poolOut.writeByte(tag);
+                for (int ref : refs)
+                    poolOut.writeShort(ref);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            poolIndex.put(key, poolCount);
+            return poolCount++;
+        }
+
+        private void u1(int b) {
+            if (length == code.length) {
+                byte[] bigger = new byte[code.length * 2];
+                System.arraycopy(code, 0, bigger, 0, length);
+                code = bigger;
+            }
+            code[length++] = (byte)b;
+        }
+
+        private void u2(int s) {
+            u1(s >>> 8);
+            u1(s);
+        }
+
+        private void u4(int i) {
+            u2(i >>> 16);
+            u2(i);
+        }
+    }
+}
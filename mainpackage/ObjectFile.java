@@ -0,0 +1,52 @@
+package mainpackage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * @brief Reads and writes machine code files, which hold one big-endian int
+ * per memory word and nothing else.
+ * A file is written with a single buffer handed to a FileChannel, and read
+ * by mapping it into memory, so neither side goes through a stream one int
+ * at a time or copies the file into a byte array first.
+ */
+public class ObjectFile {
+    private ObjectFile() {}
+
+    /**
+     * @brief Writes machine code to a file, replacing it if it exists.
+     * @param code The machine code.
+     * @param path The file to write.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void write(IntList code, Path path) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocateDirect(code.size() * Integer.BYTES);
+        bytes.asIntBuffer().put(code.array(), 0, code.size());
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // A channel may write less than asked, though a regular file normally takes it all at once
+            while (bytes.hasRemaining())
+                channel.write(bytes);
+        }
+    }
+
+    /**
+     * @brief Maps a machine code file into memory.
+     * The file can be closed and the mapping still read; it stays valid
+     * until it is garbage collected.
+     * @param path The file to read.
+     * @param maxWords The most words to map; anything after them is left out.
+     * @return The words of the file. A trailing partial word is left out.
+     * @throws IOException If the file cannot be read.
+     */
+    public static IntBuffer map(Path path, int maxWords) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long bytes = Math.min(channel.size(), (long)maxWords * Integer.BYTES);
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, bytes).asIntBuffer();
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package mainpackage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * @brief Compiles many source files at once, one pipeline per file.
+ * Files are compiled on a work-stealing ForkJoinPool. Each one gets its own
+ * SourceStream, Parser, SymbolTable and CodeGen, so nothing is shared but
+ * the options. Finished machine code goes through a bounded queue to a
+ * single writer thread, so a slow disk holds the compilers back instead of
+ * letting compiled programs pile up in memory.
+ *
+ * java mainpackage.ParallelCompiler [options] <file_or_directory>...
+ * Directories are searched for .myc files, including subdirectories.
+ * -j <threads> // default: one per processor
+ * -d <dest_dir> // default: each binary goes next to its source file
+ * -f bin|text
+ * -O0 | -O1 | -O2
+ * -singlereg
+ * These mean the same as for Compiler. The exit status is
+ * Compiler.EXIT_OK if every file compiled, or the EXIT_ constant of the
+ * most serious failure.
+ */
+public class ParallelCompiler {
+    private static final String SOURCE_EXTENSION = ".myc";
+    // Compiled programs that can wait for the writer, per compiling thread
+    private static final int QUEUED_PER_THREAD = 2;
+
+    private final Compiler.BatchOptions template;
+    private final int threads;
+    private final Path destDir;
+
+    private final AtomicInteger compiled = new AtomicInteger();
+    private final AtomicInteger compileErrors = new AtomicInteger();
+    private final AtomicInteger ioErrors = new AtomicInteger();
+    private final AtomicLong instructions = new AtomicLong();
+    private final AtomicLong compileNanos = new AtomicLong();
+    // Failure messages, in no particular order
+    private final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * @brief Constructs a ParallelCompiler.
+     * @param template The options every file is compiled with. Its source and destination are ignored.
+     * @param threads The number of files to compile at the same time.
+     * @param destDir The directory to write the binaries to, or null to write each next to its source file.
+     */
+    ParallelCompiler(Compiler.BatchOptions template, int threads, Path destDir) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be at least 1.");
+        this.template = template;
+        this.threads = threads;
+        this.destDir = destDir;
+    }
+
+    public static void main(String[] args) {
+        Compiler.BatchOptions template = new Compiler.BatchOptions();
+        int threads = Runtime.getRuntime().availableProcessors();
+        Path destDir = null;
+        List<Path> inputs = new ArrayList<>();
+
+        try {
+            int i = 0;
+            while (i < args.length) {
+                String option = args[i++];
+                switch (option) {
+                    case "-j":
+                        String count = value(args, i++, option);
+                        try {
+                            threads = Integer.parseInt(count);
+                        } catch (NumberFormatException e) {
+                            threads = 0;
+                        }
+                        if (threads < 1)
+                            throw new IllegalArgumentException("Invalid thread count: " + count);
+                        break;
+                    case "-d": destDir = Paths.get(value(args, i++, option)); break;
+                    case "-f":
+                        String format = value(args, i++, option);
+                        if (!format.equals("bin") && !format.equals("text"))
+                            throw new IllegalArgumentException("Invalid format: " + format);
+                        template.textFormat = format.equals("text");
+                        break;
+                    case "-O0": template.optimizationLevel = 0; break;
+                    case "-O1": template.optimizationLevel = 1; break;
+                    case "-O2": template.optimizationLevel = 2; break;
+                    case "-singlereg": template.singleRegister = true; break;
+                    default:
+                        if (option.startsWith("-"))
+                            throw new IllegalArgumentException("Invalid option: " + option);
+                        inputs.add(Paths.get(option));
+                        break;
+                }
+            }
+            if (inputs.isEmpty())
+                throw new IllegalArgumentException("No source files given.");
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: ParallelCompiler [-j <threads>] [-d <dest_dir>] [-f bin|text] [-O0|-O1|-O2] [-singlereg] <file_or_directory>...");
+            System.exit(Compiler.EXIT_USAGE_ERROR);
+        }
+
+        System.exit(new ParallelCompiler(template, threads, destDir).compileAll(inputs));
+    }
+
+    private static String value(String[] args, int i, String option) {
+        if (i >= args.length)
+            throw new IllegalArgumentException("Missing value for " + option);
+        return args[i];
+    }
+
+    /**
+     * @brief Compiles every source file under the given files and directories, then prints a report.
+     * @param inputs Source files, and directories to search for them.
+     * @return The exit status, one of Compiler's EXIT_ constants.
+     */
+    public int compileAll(List<Path> inputs) {
+        final long start = System.nanoTime();
+
+        // Every source file, with where its binary goes
+        List<Path> sources = new ArrayList<>();
+        List<Path> dests = new ArrayList<>();
+        for (Path input : inputs) {
+            if (!Files.isDirectory(input)) {
+                sources.add(input);
+                dests.add(destFor(input, input.getFileName()));
+                continue;
+            }
+            try (Stream<Path> walk = Files.walk(input)) {
+                for (Path source : walk.filter(p -> p.toString().endsWith(SOURCE_EXTENSION) && Files.isRegularFile(p))
+                        .sorted().collect(Collectors.toList())) {
+                    sources.add(source);
+                    dests.add(destFor(source, input.relativize(source)));
+                }
+            } catch (IOException e) {
+                fail(input.toString(), e);
+            }
+        }
+
+        BlockingQueue<Output> queue = new ArrayBlockingQueue<>(threads * QUEUED_PER_THREAD);
+        Thread writer = new Thread(() -> writeAll(queue), "ParallelCompiler writer");
+        writer.start();
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(new CompileRange(sources, dests, queue, 0, sources.size()));
+        } finally {
+            pool.shutdown();
+            // No more outputs are coming; let the writer finish the queue.
+            // This must happen even if compiling failed, or the writer waits forever.
+            put(queue, Output.END);
+        }
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                writer.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        for (String failure : failures)
+            System.err.print(failure);
+        System.out.printf("Compiled %d of %d files (%d compile errors, %d I/O errors), %d instructions, %.3f ms (%.3f ms of compiling on %d threads)\n",
+            compiled.get(), sources.size(), compileErrors.get(), ioErrors.get(), instructions.get(),
+            (System.nanoTime() - start) / 1e6, compileNanos.get() / 1e6, threads);
+
+        if (ioErrors.get() > 0)
+            return Compiler.EXIT_IO_ERROR;
+        if (compileErrors.get() > 0)
+            return Compiler.EXIT_COMPILE_ERROR;
+        return Compiler.EXIT_OK;
+    }
+
+    /**
+     * @brief Returns where the binary of a source file goes.
+     * @param source The source file.
+     * @param relative The source file's path under the destination directory.
+     */
+    private Path destFor(Path source, Path relative) {
+        Path base = destDir == null ? source : destDir.resolve(relative);
+        String name = base.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return base.resolveSibling((dot > 0 ? name.substring(0, dot) : name) + ".bin");
+    }
+
+    /**
+     * @brief Compiles one file and hands its code to the writer.
+     */
+    private void compileOne(Path source, Path dest, BlockingQueue<Output> queue) {
+        Compiler.BatchOptions options = template.forFile(source.toString(), dest.toString());
+        final long start = System.nanoTime();
+        try {
+            IntList code = Compiler.compile(options, new Compiler.Timer(false));
+            compileNanos.addAndGet(System.nanoTime() - start);
+            put(queue, new Output(options, code));
+        } catch (IOException e) {
+            fail(options.sourceFile, e);
+        } catch (RuntimeException e) {
+            // Scanner and parse errors, and anything else one bad input makes
+            // the compiler throw, such as an atom file jumping to an undefined label
+            compileNanos.addAndGet(System.nanoTime() - start);
+            compileErrors.incrementAndGet();
+            failures.add(Compiler.describeFailure(options.sourceFile, e));
+        }
+    }
+
+    /**
+     * @brief Takes compiled programs off the queue and writes them, until Output.END.
+     */
+    private void writeAll(BlockingQueue<Output> queue) {
+        while (true) {
+            Output output;
+            try {
+                output = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (output == Output.END)
+                return;
+
+            try {
+                Path dest = Paths.get(output.options.binaryDest);
+                if (dest.getParent() != null)
+                    Files.createDirectories(dest.getParent());
+                if (output.options.textFormat)
+                    Compiler.writeText(output.code, output.options.binaryDest);
+                else
+                    Compiler.writeBinary(output.code, output.options.binaryDest);
+                compiled.incrementAndGet();
+                instructions.addAndGet(output.code.size());
+            } catch (IOException e) {
+                fail(output.options.binaryDest, e);
+            }
+        }
+    }
+
+    private void fail(String file, IOException e) {
+        ioErrors.incrementAndGet();
+        failures.add(Compiler.describeFailure(file, e));
+    }
+
+    /**
+     * @brief Puts an output on the queue, letting the pool add a thread while this one waits.
+     */
+    private static void put(BlockingQueue<Output> queue, Output output) {
+        try {
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                private boolean done = false;
+
+                public boolean block() throws InterruptedException {
+                    if (!done) {
+                        queue.put(output);
+                        done = true;
+                    }
+                    return true;
+                }
+
+                public boolean isReleasable() {
+                    return done || (done = queue.offer(output));
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while queueing " + output.options.binaryDest, e);
+        }
+    }
+
+    /**
+     * @brief Compiles a range of the source files, splitting it so idle threads can steal half.
+     */
+    private class CompileRange extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Path> sources;
+        private final List<Path> dests;
+        private final BlockingQueue<Output> queue;
+        private final int from;
+        private final int to;
+
+        CompileRange(List<Path> sources, List<Path> dests, BlockingQueue<Output> queue, int from, int to) {
+            this.sources = sources;
+            this.dests = dests;
+            this.queue = queue;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                compileOne(sources.get(from), dests.get(from), queue);
+            } else if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new CompileRange(sources, dests, queue, from, mid),
+                    new CompileRange(sources, dests, queue, mid, to));
+            }
+        }
+    }
+
+    /**
+     * @brief A compiled program waiting to be written.
+     */
+    private static class Output {
+        // Tells the writer to stop
+        static final Output END = new Output(null, null);
+
+        final Compiler.BatchOptions options;
+        final IntList code;
+
+        Output(Compiler.BatchOptions options, IntList code) {
+            this.options = options;
+            this.code = code;
+        }
+    }
+}
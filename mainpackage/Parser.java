@@ -7,12 +7,10 @@ package mainpackage;
  * @date 10/23/2024
  */
 
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Stack;
+import java.util.Arrays;
 import java.util.function.Consumer;
 
-import mainpackage.Token.Type;
+import mainpackage.Atom.Operand;
 
 /**
  * @brief Parses tokens from the Scanner output into Atoms
@@ -23,9 +21,9 @@ public class Parser {
 
     // Consumer to handle atoms
     private final Consumer<Atom> output;
-    
-    // The most recently consumed token.
-    private Token token;
+
+    // Interns the variable, temporary and label names of the atoms.
+    private final SymbolTable symbols;
 
     // Counter for generating temporary variable names.
     private int nextTempVarNum;
@@ -33,8 +31,13 @@ public class Parser {
     // Counter for generating label names.
     private int nextLabelNum;
 
-    // Stack to hold captured output for deferred handling.
-    private Stack<List<Atom>> capturedOutput = new Stack<List<Atom>>();
+    // Buffer capturing output for deferred handling, or null when output goes straight out.
+    // Each capture keeps the one it interrupted in SpliceBuffer.enclosing.
+    private SpliceBuffer capturedOutput = null;
+
+    // Values of the symbols parsed so far, for the semantic actions
+    private Object[] values = new Object[64];
+    private int valuesSize = 0;
 
     /**
      * @brief Constructs a Parser object.
@@ -42,35 +45,85 @@ public class Parser {
      * @param output The Consumer object to accept outputs.
      */
     public Parser(Scanner input, Consumer<Atom> output) {
+        this(input, output, new SymbolTable());
+    }
+
+    /**
+     * @brief Constructs a Parser object that interns names into an existing table.
+     * @param input The Scanner object providing tokens.
+     * @param output The Consumer object to accept outputs.
+     * @param symbols The table to intern variable, temporary and label names in.
+     */
+    public Parser(Scanner input, Consumer<Atom> output, SymbolTable symbols) {
         this.input = input;
         this.output = output;
+        this.symbols = symbols;
         nextTempVarNum = 0;
         nextLabelNum = 0;
     }
+
+    /**
+     * @brief Returns the table the names of the atoms are interned in, which CodeGen needs.
+     */
+    public SymbolTable getSymbolTable() {
+        return symbols;
+    }
     
     /**
      * @brief Starts parsing the input.
+     * Parsing is driven by the LL(1) table in Grammar: the nonterminal on top
+     * of an explicit parse stack is replaced by the right hand side the table
+     * predicts for the next token, terminals are matched against the input,
+     * and semantic actions build the atoms from the values on a second stack.
+     * Nesting depth is bounded by memory, not by the thread's stack.
      * @throws ParseException if the input is invalid.
      */
     public void parse() {
-        stmt();
+        int[] stack = new int[64];
+        int size = 0;
+        stack[size++] = Grammar.STMT;
+        valuesSize = 0;
+
+        while (size > 0) {
+            final int symbol = stack[--size];
+            if (symbol >= Grammar.ACTION) {
+                perform(symbol);
+            } else if (symbol >= Grammar.NONTERMINAL) {
+                final int production = Grammar.predict(symbol, input.peekType());
+                if (production < 0)
+                    throw new ParseException(Grammar.error(symbol));
+                final int[] rhs = Grammar.rhs(production);
+                if (size + rhs.length > stack.length)
+                    stack = Arrays.copyOf(stack, Math.max(stack.length * 2, size + rhs.length));
+                // Pushed in reverse so the first symbol is expanded first
+                for (int k = rhs.length - 1; k >= 0; k--)
+                    stack[size++] = rhs[k];
+            } else {
+                if (input.peekType() != symbol)
+                    throw new ParseException("Expected not present. Expected = " + Token.tokenTypeToString(symbol));
+                input.advance();
+            }
+        }
+
         if (input.hasNext())
             throw new ParseException("Syntax error: unexpected tokens at end of input: " + input.peek());
     }
 
     /**
-     * @brief Diverts output into a list to be handled later.
+     * @brief Diverts output into a buffer to be handled later.
      */
     private void startCapturingOutput() {
-        capturedOutput.push(new LinkedList<>());
+        capturedOutput = new SpliceBuffer(capturedOutput);
     }
 
     /**
-     * @brief Returns the captured output and sends future output to 'output' again.
-     * @return list of atoms that were captured
+     * @brief Returns the captured output and sends future output to where it went before.
+     * @return buffer of atoms that were captured
      */
-    private List<Atom> stopCapturingOutput() {
-        return capturedOutput.pop();
+    private SpliceBuffer stopCapturingOutput() {
+        SpliceBuffer captured = capturedOutput;
+        capturedOutput = captured.enclosing;
+        return captured;
     }
 
     /**
@@ -78,27 +131,31 @@ public class Parser {
      * @param atom The considered atom
      */
     private void output(Atom atom) {
-        if (!capturedOutput.isEmpty())
-            capturedOutput.peek().add(atom);
+        if (capturedOutput != null)
+            capturedOutput.add(atom);
         else
             output.accept(atom);
     }
 
     /**
-     * @brief Sends a list of atoms to the output
-     * @param atoms The list of atoms to be sent
+     * @brief Sends captured atoms to the output, or moves them into the
+     * current capture without copying them
+     * @param atoms The captured atoms to be sent. The buffer is left empty
      */
-    private void output(List<Atom> atoms) {
-        for (Atom a : atoms)
-            output(a);
+    private void output(SpliceBuffer atoms) {
+        if (capturedOutput != null)
+            capturedOutput.append(atoms);
+        else
+            atoms.drainTo(output);
     }
 
     /**
-     * @brief Generates a new temporary variable name.
-     * @return A unique temporary variable name.
+     * @brief Generates a new temporary variable.
+     * @return A unique temporary variable.
      */
-    private String tempVar() {
-        return "t" + nextTempVarNum++;
+    private Operand tempVar() {
+        String name = "t" + nextTempVarNum++;
+        return Operand.variable(symbols, symbols.internTemporary(name));
     }
 
     /**
@@ -110,439 +167,197 @@ public class Parser {
     }
 
     /**
-     * @brief Checks to see if the next token matches any terminal provided and if so, sets the 'token' field to the next token.
-     * @param terminal The Token.Type to accept.
-     * @return True if the next token was of type 'terminal', else false.
+     * @brief Returns the text of the most recently consumed token.
      */
-    private boolean accept(int... terminals) {
-        if (!input.hasNext())
-            return false;
-
-        for (int t : terminals)
-            if (input.peek().type == t) {
-                token = input.next();
-                return true;
-            }
-
-        return false;
+    private String tokenValue() {
+        return input.lastValue();
     }
 
     /**
-     * @brief Checks to see if the next token matches the terminal and if so, sets the 'token' field to the next token, else throws.
-     * @param terminal The Token.Type to expect.
-     * @return The token that was consumed.
-     * @throws ParseException if the next token is not of expected type
+     * @brief Returns the most recently consumed token as an operand, using
+     * its type to tell constants from variables.
      */
-    private Token expect(int terminal) {
-        if (!accept(terminal))
-            throw new ParseException("Expected not present. Expected = " + Token.tokenTypeToString(terminal));
-        return token;
+    private Operand tokenOperand() {
+        return Operand.fromToken(symbols, input.lastType(), input.lastValue());
     }
 
-    private Token expect(int... terminals) {
-        if (accept(terminals))
-            return token;
-        else {
-            StringBuilder msg = new StringBuilder();
-            msg.append("Expected not present. Expected = {");
-            for (int i = 0; i < terminals.length; i++)
-                msg.append(Token.tokenTypeToString(terminals[i])).append(", ");
-            if (terminals.length > 0)
-                msg.delete(msg.length() - 2, msg.length());
-            msg.append("}");
-            throw new ParseException(msg.toString());
-        }
+    /**
+     * @brief Returns an LBL atom for a label.
+     */
+    private Atom label(String label) {
+        return new Atom(Atom.Opcode.LBL, null, null, null, null, Operand.labelDefinition(symbols, label));
     }
 
     /**
-     * @brief For follow sets. Does what accept does but minus the consuming of the token and does not set 'token' field.
-     * @param terminals The Token.Types to peek for.
-     * @return True if the next token is of any of the types provided, else false.
+     * @brief Returns a JMP atom to a label.
      */
-    private boolean peek(int... terminals) {
-        if (!input.hasNext())
-            return false;
-
-        for (int t : terminals)
-            if (input.peek().type == t)
-                return true;
-
-        return false;
+    private Atom jump(String label) {
+        return new Atom(Atom.Opcode.JMP, null, null, null, null, Operand.labelUse(symbols, label));
     }
 
     /**
-     * @brief Parses a statement.
-     * @throws ParseException if the input is invalid.
+     * @brief Performs a semantic action of the grammar, working on the value stack.
+     * Each action stands for a step of the recursive descent Parser this one
+     * replaced, and makes the same atoms, temporaries and labels in the same order.
+     * @param action The action, one of the Grammar action constants.
      */
-    private void stmt() {
-        if (accept(Type.INT, Type.FLOAT)) {
-            String variable = expect(Type.IDENTIFIER).value;
-            expect(Type.EQUAL);
-            String value = expr();
-            output(new Atom(Atom.Opcode.MOV, value, null, variable));
-            expect(Type.SEMICOLON);
-            stmt();
-        } else if (accept(Type.IDENTIFIER, Type.INT_LITERAL, Type.FLOAT_LITERAL, Type.OPEN_P)) {
-            String value;
-            if (token.type == Type.OPEN_P) {
-                value = expr();
-                expect(Token.Type.CLOSE_P);
+    private void perform(int action) {
+        switch (action) {
+            case Grammar.PUSH_OPERAND:
+                push(tokenOperand());
+                break;
+            case Grammar.PUSH_NAME:
+                push(tokenValue());
+                break;
+            case Grammar.PUSH_OPCODE:
+                push(Atom.Opcode.arithToOpcode(input.lastType()));
+                break;
+            case Grammar.PUSH_CMP:
+                push(Atom.Opcode.compToCmp(input.lastType()));
+                break;
+            case Grammar.PUSH_NULL:
+                push(null);
+                break;
+            case Grammar.POP:
+                pop();
+                break;
+            case Grammar.DECLARE: {
+                Operand value = (Operand) pop();
+                String variable = (String) pop();
+                output(new Atom(Atom.Opcode.MOV, value, null, Operand.variable(symbols, variable)));
+                break;
             }
-            else
-                value = token.value;
-
-            Arith arith;
-            
-            arith = factors();
-            if (arith != null) {
-                String newValue = tempVar();
-                output(new Atom(arith.operator, value, arith.rhs, newValue));
-                value = newValue;
+            case Grammar.APPLY_ARITH: {
+                // Applies the operation of a FACTORS or TERMS to the value before it
+                Arith arith = (Arith) pop();
+                if (arith != null) {
+                    Operand newValue = tempVar();
+                    output(new Atom(arith.operator, (Operand) peek(0), arith.rhs, newValue));
+                    values[valuesSize - 1] = newValue;
+                }
+                break;
             }
-
-            arith = terms();
-            if (arith != null) {
-                String newValue = tempVar();
-                output(new Atom(arith.operator, value, arith.rhs, newValue));
-                value = newValue;
+            case Grammar.MAKE_ARITH: {
+                Operand value = (Operand) pop();
+                Atom.Opcode opcode = (Atom.Opcode) pop();
+                push(new Arith(opcode, value));
+                break;
             }
-
-            String assignsRHS = assigns();
-            if (assignsRHS != null)
-                output(new Atom(Atom.Opcode.MOV, assignsRHS, null, value));
-
-            expect(Type.SEMICOLON);
-            stmt();
-        } else if (accept(Type.IF)) {
-            String avoidBlock = newLabel();
-            
-            expect(Type.OPEN_P);
-            String lhs = expr();
-            String cmp = cmpOp();
-            String rhs = expr();
-            expect(Type.CLOSE_P);
-            output(new Atom(Atom.Opcode.TST, lhs, rhs, null, Atom.Opcode.compNumToOpposite(cmp), avoidBlock));
-            block();
-            startCapturingOutput();
-            boolean elsePresent = _else();
-            List<Atom> elseAtoms = stopCapturingOutput();
-            String avoidElse = null;
-            if (elsePresent) {
-                avoidElse = newLabel();
-                output(new Atom(Atom.Opcode.JMP, null, null, null, null, avoidElse));
+            case Grammar.LAST_TOKEN:
+                values[valuesSize - 1] = tokenOperand();
+                break;
+            case Grammar.ASSIGN_TO: {
+                Operand assignRHS = (Operand) pop();
+                if (assignRHS != null) {
+                    Operand target = (Operand) peek(0);
+                    if (target.type != Operand.VARIABLE)
+                        throw new ParseException("Cannot assign to " + target + ", which is not a variable");
+                    output(new Atom(Atom.Opcode.MOV, assignRHS, null, target));
+                }
+                break;
+            }
+            case Grammar.IF_LABEL:
+                push(newLabel());
+                break;
+            case Grammar.TEST: {
+                Operand rhs = (Operand) pop();
+                int cmp = (Integer) pop();
+                Operand lhs = (Operand) pop();
+                output(test(lhs, cmp, rhs, (String) peek(0)));
+                break;
+            }
+            case Grammar.CAPTURE:
+                startCapturingOutput();
+                break;
+            case Grammar.END_CAPTURE:
+                push(stopCapturingOutput());
+                break;
+            case Grammar.ELSE_PRESENT:
+                push(Boolean.TRUE);
+                break;
+            case Grammar.NO_ELSE:
+                push(Boolean.FALSE);
+                break;
+            case Grammar.END_IF: {
+                boolean elsePresent = (Boolean) pop();
+                SpliceBuffer elseAtoms = stopCapturingOutput();
+                String avoidBlock = (String) pop();
+                String avoidElse = null;
+                if (elsePresent) {
+                    avoidElse = newLabel();
+                    output(jump(avoidElse));
+                }
+                output(label(avoidBlock));
+                output(elseAtoms);
+                if (elsePresent)
+                    output(label(avoidElse));
+                break;
+            }
+            case Grammar.FOR_LABELS:
+                push(newLabel());
+                push(newLabel());
+                break;
+            case Grammar.FOR_TEST: {
+                SpliceBuffer increment = (SpliceBuffer) pop();
+                SpliceBuffer cmpPrep = (SpliceBuffer) pop();
+                Operand rhs = (Operand) pop();
+                int cmp = (Integer) pop();
+                Operand lhs = (Operand) pop();
+                output(label((String) peek(1)));
+                output(cmpPrep);
+                output(test(lhs, cmp, rhs, (String) peek(0)));
+                push(increment);
+                break;
+            }
+            case Grammar.FOR_END: {
+                output((SpliceBuffer) pop());
+                String exit = (String) pop();
+                String loop = (String) pop();
+                output(jump(loop));
+                output(label(exit));
+                break;
+            }
+            case Grammar.WHILE_LABELS: {
+                String loop = newLabel();
+                push(loop);
+                push(newLabel());
+                output(label(loop));
+                break;
+            }
+            case Grammar.WHILE_END: {
+                String exit = (String) pop();
+                String loop = (String) pop();
+                output(jump(loop));
+                output(label(exit));
+                break;
             }
-            output(new Atom(Atom.Opcode.LBL, null, null, null, null, avoidBlock));
-            output(elseAtoms);
-            if (elsePresent)
-                output(new Atom(Atom.Opcode.LBL, null, null, null, null, avoidElse));
-            stmt();
-        } else if (accept(Type.FOR)) {
-            String loop = newLabel();
-            String exit = newLabel();
-
-            expect(Type.OPEN_P);
-            pre();
-            startCapturingOutput();
-            String lhs = expr();
-            String cmp = cmpOp();
-            String rhs = expr();
-            List<Atom> cmpPrep = stopCapturingOutput();
-            expect(Type.SEMICOLON);
-            startCapturingOutput();
-            expr();
-            List<Atom> increment = stopCapturingOutput();
-            expect(Type.CLOSE_P);
-            output(new Atom(Atom.Opcode.LBL, null, null, null, null, loop));
-            output(cmpPrep);
-            output(new Atom(Atom.Opcode.TST, lhs, rhs, null, Atom.Opcode.compNumToOpposite(cmp), exit));
-            block();
-            output(increment);
-            output(new Atom(Atom.Opcode.JMP, null, null, null, null, loop));
-            output(new Atom(Atom.Opcode.LBL, null, null, null, null, exit));
-            stmt();
-        } else if (accept(Type.WHILE)) {
-            String loop = newLabel();
-            String exit = newLabel();
-
-            output(new Atom(Atom.Opcode.LBL, null, null, null, null, loop));
-            expect(Type.OPEN_P);
-            String lhs = expr();
-            String cmp = cmpOp();
-            String rhs = expr();
-            expect(Type.CLOSE_P);
-            output(new Atom(Atom.Opcode.TST, lhs, rhs, null, Atom.Opcode.compNumToOpposite(cmp), exit));
-            block();
-            output(new Atom(Atom.Opcode.JMP, null, null, null, null, loop));
-            output(new Atom(Atom.Opcode.LBL, null, null, null, null, exit));
-            stmt();
-        } else {
-            if (!input.hasNext() || peek(Token.Type.CLOSE_B))
-                return;
-            else
-                throw new ParseException();
+            default:
+                throw new IllegalStateException("Unknown grammar action " + action);
         }
     }
 
-    // Returns the cmp number of the operator parsed.
-    private String cmpOp() {
-        return Atom.Opcode.compToNumber(
-            expect(Token.Type.DOUBLE_EQUAL, Token.Type.LESS, Token.Type.MORE, Token.Type.LEQ, Token.Type.GEQ, Token.Type.NEQ));
-    }
-
     /**
-     * @brief Parses a block.
+     * @brief Returns a TST atom that jumps to a label when a comparison is false.
      */
-    private void block() {
-        expect(Type.OPEN_B);
-        stmt();
-        expect(Type.CLOSE_B);
+    private Atom test(Operand lhs, int cmp, Operand rhs, String label) {
+        return new Atom(Atom.Opcode.TST, lhs, rhs, null, Operand.cmp(Atom.Opcode.oppositeCmp(cmp)), Operand.labelUse(symbols, label));
     }
 
-    /**
-     * @brief Parses an else block.
-     * @return True if an else is present, false if not.
-     * @throws ParseException if the input is invalid.
-     */
-    private boolean _else() {
-        if (accept(Type.ELSE)) {
-            block();
-            return true;
-        } else if (!input.hasNext() || peek(Type.INT, Type.FLOAT, Type.IDENTIFIER,
-        Type.INT_LITERAL, Type.FLOAT_LITERAL, Type.OPEN_P, Type.IF, Type.FOR,
-        Type.WHILE, Type.CLOSE_B)) {
-            return false;
-        } else {
-            throw new ParseException();
-        }
+    private void push(Object value) {
+        if (valuesSize == values.length)
+            values = Arrays.copyOf(values, valuesSize * 2);
+        values[valuesSize++] = value;
     }
-    
-    /**
-     * @brief Parses an initialization in a for loop
-     * @throws ParseException if the input is invalid.  
-     */
-    private void pre() {
-        Token type;
-        if (accept(Type.INT)) {
-            type = token;
-        } else if (accept(Type.FLOAT)) {
-            type = token;
-        } else {
-            throw new ParseException("Syntax error: expected type");
-        }
-    
-        String variable = expect(Type.IDENTIFIER).value;
-        expect(Type.EQUAL);
-        String value = expr();
-        output(new Atom(Atom.Opcode.MOV, value, null, variable));
-        expect(Type.SEMICOLON);
-     }
-
-     /**
-      * @brief Parses an increment operation.
-      * @throws ParseException if the input is invalid.
-      */
-     private void inc_op() {
-        if (!accept(Type.DOUBLE_PLUS, Type.DOUBLE_MINUS))
-            throw new ParseException("Syntax error: expected increment operator");
-     }
-
-     /**
-      * @brief Parses an increment operation.
-      * @throws ParseException if the input is invalid.
-      */
-     private void inc() {
-        if (accept(Type.IDENTIFIER))
-            inc_op();
-        else
-            throw new ParseException("Syntax error: expected identifier");
-     }
-
-     /**
-      * @brief Parses an expression and returns the value that contains the result of this expression.
-      * @return The value that contains the result of this expression.
-      * @throws ParseException if the input is invalid.
-      */
-     private String expr() {
-        String value;
-        if (accept(Type.OPEN_P)) {
-            value = expr();
-            expect(Type.CLOSE_P);
-        } else if (accept(Type.IDENTIFIER, Type.INT_LITERAL, Type.FLOAT_LITERAL))
-            value = token.value;
-        else
-            throw new ParseException();
-
-        Arith arith = factors();
-        if (arith != null) {
-            String newVal = tempVar();
-            output(new Atom(arith.operator, value, arith.rhs, newVal));
-            value = newVal;
-        }
-
-        arith = terms();
-        if (arith != null) {
-            String newVal = tempVar();
-            output(new Atom(arith.operator, value, arith.rhs, newVal));
-            value = newVal;
-        }
-
-        String assignRHS = assigns();
-        if (assignRHS != null)
-            output(new Atom(Atom.Opcode.MOV, assignRHS, null, value));
 
+    private Object pop() {
+        Object value = values[--valuesSize];
+        values[valuesSize] = null;
         return value;
     }
 
-    /**
-     * @brief Parses an assignment operation.
-     * @return The value that contains the result of this assignment.
-     */
-    private String assigns() {
-        if (!accept(Type.EQUAL))
-            return null;
-
-        String value = assign();
-
-        String assignRHS = assigns();
-        if (assignRHS != null)
-            output(new Atom(Atom.Opcode.MOV, assignRHS, null, value));
-            
-        return value;
-    }
-
-    /**
-     * @brief Parses an assignment operation.
-     * Handles the case where the assignment is part of a larger expression.
-     * @return The value that contains the result of this assignment.
-     * @throws ParseException if the input is invalid.
-     */
-    private String assign() {
-        String value;
-        if (accept(Type.OPEN_P)) {
-            value = expr();
-            expect(Type.CLOSE_P);
-        } else if (accept(Type.IDENTIFIER, Type.INT_LITERAL, Type.FLOAT_LITERAL))
-            value = token.value;
-        else
-            throw new ParseException();
-
-        Arith arith = factors();
-        if (arith != null) {
-            String newValue = tempVar();
-            output(new Atom(arith.operator, value, arith.rhs, newValue));
-            value = newValue;
-        }
-
-        arith = terms();
-        if (arith != null) {
-            String newValue = tempVar();
-            output(new Atom(arith.operator, value, arith.rhs, newValue));
-            value = newValue;
-        }
-
-        return value;
-    }
-
-    /**
-     * @brief Parses a term.
-     * @return An arith object with operation details, if found
-     */
-    private Arith terms() {
-        if (!accept(Type.PLUS, Type.MINUS))
-            return null;
-            
-        Atom.Opcode opcode = Atom.Opcode.arithToOpcode(token);
-        String value = term();
-
-        Arith arith = terms();
-        if (arith != null) {
-            String newValue = tempVar();
-            output(new Atom(arith.operator, value, arith.rhs, newValue));
-            value = newValue;
-        }
-
-        return new Arith(opcode, value);
-    }
-    
-    /**
-     * @brief Parses a term.
-     * @return The corresponding temporary variable name.
-     * @throws ParseException if the input is invalid.
-     */
-    private String term() {
-        String value;
-        if (accept(Type.OPEN_P)) {
-            value = expr();
-            expect(Type.CLOSE_P);
-        } else if (accept(Type.IDENTIFIER, Type.INT_LITERAL, Type.FLOAT_LITERAL))
-            value = token.value;
-        else
-            throw new ParseException();
-
-        Arith arith = factors();
-        if (arith != null) {
-            String newValue = tempVar();
-            output(new Atom(arith.operator, value, arith.rhs, newValue));
-            value = newValue;
-        }
-
-        return token.value;
-    }
-
-    /**
-     * @brief Parses a factor.
-     * @return An arith object with operation details, if found
-     */
-    private Arith factors() {
-        if (accept(Type.MULT, Type.DIV)) {
-            Atom.Opcode opcode = Atom.Opcode.arithToOpcode(token);
-            String value = factor();
-            
-            Arith arith = factors();
-            if (arith != null) {
-                String newVal = tempVar();
-                output(new Atom(arith.operator, value, arith.rhs, newVal));
-                value = newVal;
-            }
-
-            return new Arith(opcode, value);
-        }
-        else
-            return null;
-    }
-
-    /**
-     * @brief Parses a factor.
-     * @return The corresponding temporary variable name.
-     * @throws ParseException if the input is invalid.
-     */
-    private String factor() {
-        if (accept(Type.OPEN_P)) {
-            String toReturn = expr();
-            expect(Type.CLOSE_P);
-            return toReturn;
-        } else if (accept(Type.MINUS))
-            return value();
-        else if (!accept(Type.IDENTIFIER, Type.INT_LITERAL, Type.FLOAT_LITERAL))
-            throw new ParseException();
-        return token.value;
-    }
-
-    /**
-     * @brief Parses a value.
-     * @return the value of the token.
-     * @throws ParseException if the input is invalid.
-     */
-    private String value() {
-        if (accept(Type.OPEN_P)) {
-            String toReturn = expr();
-            expect(Type.OPEN_P);
-            return toReturn;
-        }
-        if (accept(Type.IDENTIFIER, Type.INT_LITERAL, Type.FLOAT_LITERAL))
-            return token.value;
-        
-        throw new ParseException();
+    // Returns a value without popping it, 0 being the top of the stack
+    private Object peek(int depth) {
+        return values[valuesSize - 1 - depth];
     }
 
     /**
@@ -573,10 +388,10 @@ public class Parser {
          * @param msg The message to be displayed.
          */
         public ParseException(String msg) {
-            super(String.format("%s. Scanner Pos = %s. Recently Consumed Token = %s. Next Token = %s.", msg, input.getPos(), token, input.hasNext() ? input.peek() : "END OF INPUT"));
+            super(String.format("%s. Scanner Pos = %s. Recently Consumed Token = %s. Next Token = %s.", msg, input.getPos(), input.lastToken(), input.hasNext() ? input.peek() : "END OF INPUT"));
             this.msg = msg;
             this.scannerPos = input.getPos();
-            this.recentlyConsumedToken = token;
+            this.recentlyConsumedToken = input.lastToken();
             this.nextToken = input.hasNext() ? input.peek() : null;
         }
     }
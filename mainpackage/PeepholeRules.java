@@ -0,0 +1,112 @@
+package mainpackage;
+
+import static mainpackage.Instruction.aOf;
+import static mainpackage.Instruction.opcodeOf;
+import static mainpackage.Instruction.rOf;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import mainpackage.Instruction.Opcode;
+import mainpackage.LocalOptimization.Rule;
+import mainpackage.LocalOptimization.Window;
+
+/**
+ * @brief The peephole rules LocalOptimization runs by default.
+ * Every rule keeps the registers, memory and flag that later instructions
+ * see, on every path into the instructions it changes.
+ */
+public final class PeepholeRules {
+    private PeepholeRules() {}
+
+    /**
+     * @brief (STO r, a) (LOD r, a): the register already holds the value, so the LOD goes.
+     */
+    public static final Rule STORE_LOAD = new Rule() {
+        public String name() { return "store-load"; }
+        public int window() { return 2; }
+        public boolean apply(Window w) {
+            if (!isPair(w, Opcode.STO, Opcode.LOD) || w.isJumpTarget(1))
+                return false;
+            w.remove(1);
+            return true;
+        }
+    };
+
+    /**
+     * @brief (LOD r, a) (STO r, a): memory already holds the value, so the STO goes.
+     */
+    public static final Rule LOAD_STORE = new Rule() {
+        public String name() { return "load-store"; }
+        public int window() { return 2; }
+        public boolean apply(Window w) {
+            if (!isPair(w, Opcode.LOD, Opcode.STO) || w.isJumpTarget(1))
+                return false;
+            w.remove(1);
+            return true;
+        }
+    };
+
+    /**
+     * @brief (LOD r, a) followed by a LOD or CLR of the same register: the first load is never used.
+     */
+    public static final Rule DEAD_LOAD = new Rule() {
+        public String name() { return "dead-load"; }
+        public int window() { return 2; }
+        public boolean apply(Window w) {
+            int first = w.get(0);
+            int second = w.get(1);
+            if (opcodeOf(first) != Opcode.LOD || rOf(first) != rOf(second)
+                    || (opcodeOf(second) != Opcode.LOD && opcodeOf(second) != Opcode.CLR))
+                return false;
+            w.remove(0);
+            return true;
+        }
+    };
+
+    /**
+     * @brief A CMP followed by another CMP or a HLT: no JMP ever reads its flag.
+     */
+    public static final Rule DEAD_COMPARE = new Rule() {
+        public String name() { return "dead-compare"; }
+        public int window() { return 2; }
+        public boolean apply(Window w) {
+            int next = opcodeOf(w.get(1));
+            if (opcodeOf(w.get(0)) != Opcode.CMP || (next != Opcode.CMP && next != Opcode.HLT))
+                return false;
+            w.remove(0);
+            return true;
+        }
+    };
+
+    /**
+     * @brief A JMP to the instruction right after it goes there whether it is taken or not.
+     * The CMP before it stays, since code after it may count on the flag being set.
+     */
+    public static final Rule JUMP_TO_NEXT = new Rule() {
+        public String name() { return "jump-to-next"; }
+        public int window() { return 2; }
+        public boolean apply(Window w) {
+            int jump = w.get(0);
+            // Anything between the JMP and the next instruction has been removed
+            if (opcodeOf(jump) != Opcode.JMP || aOf(jump) <= w.address(0) || aOf(jump) > w.address(1))
+                return false;
+            w.remove(0);
+            return true;
+        }
+    };
+
+    /**
+     * @brief The rules LocalOptimization uses unless it is given others.
+     */
+    public static final List<Rule> DEFAULT = Collections.unmodifiableList(Arrays.asList(
+        STORE_LOAD, LOAD_STORE, DEAD_LOAD, DEAD_COMPARE, JUMP_TO_NEXT));
+
+    private static boolean isPair(Window w, int firstOpcode, int secondOpcode) {
+        int first = w.get(0);
+        int second = w.get(1);
+        return opcodeOf(first) == firstOpcode && opcodeOf(second) == secondOpcode
+            && rOf(first) == rOf(second) && aOf(first) == aOf(second);
+    }
+}
@@ -0,0 +1,147 @@
+package mainpackage;
+
+import java.util.Arrays;
+
+import mainpackage.Atom.Operand;
+
+/**
+ * @brief Picks the variables that CodeGen can keep in a register instead of memory.
+ * MiniVM instructions take their left side from a register and their right
+ * side from memory, and there is no register to register move. So a value
+ * can only live in a register if it is written once and then read once, in
+ * the same basic block, as the operand that gets loaded into the register:
+ * the left side of an ADD, SUB, MUL, DIV, MOV or TST, or either side of an
+ * ADD or MUL, which can be swapped. These are exactly the temporaries the
+ * Parser makes for expressions. Program variables always stay in memory,
+ * where their final values are expected.
+ * Registers are then given out by a linear scan over the atoms. A value
+ * takes over the register of the operand it is computed from, or a free one.
+ * When none are free it stays in memory.
+ */
+final class RegisterAllocator {
+    // Register 0 is left to CodeGen for atoms that work on memory only
+    static final int FIRST_REGISTER = 1;
+    static final int REGISTER_COUNT = 16;
+
+    private RegisterAllocator() {}
+
+    /**
+     * @brief Allocates registers for the variables of a program.
+     * @param program The program
+     * @return The register of each symbol id, or -1 for ids that stay in memory
+     */
+    static int[] allocate(AtomBuffer program) {
+        final int n = program.size();
+        final SymbolTable names = program.names();
+        final int ids = names.size();
+
+        // Count the writes and reads of every id and remember where they are
+        int[] writes = new int[ids];
+        int[] reads = new int[ids];
+        int[] readAt = new int[ids];
+        int[] writtenAt = new int[ids];
+        int[] block = new int[n];
+        int blocks = 0;
+        for (int i = 0; i < n; i++) {
+            Atom.Opcode opcode = program.opcode(i);
+            if (opcode == Atom.Opcode.LBL)
+                blocks++;
+            block[i] = blocks;
+            if (opcode == Atom.Opcode.JMP || opcode == Atom.Opcode.TST)
+                blocks++;
+
+            for (int o = 0; o < 2; o++) {
+                if (program.kind(i, o) == Operand.VARIABLE) {
+                    int id = program.id(i, o);
+                    reads[id]++;
+                    readAt[id] = i;
+                }
+            }
+            int result = result(program, i);
+            if (result >= 0) {
+                writes[result]++;
+                writtenAt[result] = i;
+            }
+        }
+
+        // Find the ids that could live in a register
+        boolean[] candidate = new boolean[ids];
+        for (int id = 0; id < ids; id++) {
+            candidate[id] = names.isTemporary(id) && writes[id] == 1 && reads[id] == 1
+                && writtenAt[id] < readAt[id] && block[writtenAt[id]] == block[readAt[id]];
+        }
+        for (int i = 0; i < n; i++) {
+            boolean lhsInRegister = program.kind(i, 0) == Operand.VARIABLE && candidate[program.id(i, 0)];
+            switch (program.opcode(i)) {
+                case ADD:
+                case MUL:
+                    // Only one side can come from a register
+                    if (lhsInRegister)
+                        disqualify(candidate, program, i, 1);
+                    break;
+                case NEG:
+                    // NEG reads its operand from memory three times
+                    disqualify(candidate, program, i, 0);
+                    break;
+                default:
+                    disqualify(candidate, program, i, 1);
+                    break;
+            }
+        }
+
+        // Linear scan: a register is taken from the write of a value to its read
+        int[] registerOf = new int[ids];
+        Arrays.fill(registerOf, -1);
+        boolean[] busy = new boolean[REGISTER_COUNT];
+        for (int i = 0; i < n; i++) {
+            // The register of the operand read from a register is free after this atom
+            int freed = -1;
+            for (int o = 0; o < 2; o++) {
+                if (program.kind(i, o) == Operand.VARIABLE && registerOf[program.id(i, o)] >= 0) {
+                    freed = registerOf[program.id(i, o)];
+                    busy[freed] = false;
+                }
+            }
+
+            int result = result(program, i);
+            if (result < 0 || !candidate[result])
+                continue;
+            // The result is computed in the register of its operand, if it has one
+            int register = freed >= 0 ? freed : freeRegister(busy);
+            if (register >= 0) {
+                registerOf[result] = register;
+                busy[register] = true;
+            }
+        }
+        return registerOf;
+    }
+
+    /**
+     * @brief Returns the id of the variable an atom writes, or -1 if it writes none
+     */
+    private static int result(AtomBuffer program, int i) {
+        switch (program.opcode(i)) {
+            case ADD:
+            case SUB:
+            case MUL:
+            case DIV:
+            case NEG:
+            case MOV:
+                return program.kind(i, 2) == Operand.VARIABLE ? program.id(i, 2) : -1;
+            default:
+                return -1;
+        }
+    }
+
+    private static void disqualify(boolean[] candidate, AtomBuffer program, int i, int slot) {
+        if (program.kind(i, slot) == Operand.VARIABLE)
+            candidate[program.id(i, slot)] = false;
+    }
+
+    private static int freeRegister(boolean[] busy) {
+        for (int r = FIRST_REGISTER; r < REGISTER_COUNT; r++)
+            if (!busy[r])
+                return r;
+        return -1;
+    }
+}
@@ -0,0 +1,944 @@
+package mainpackage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import mainpackage.Atom.Operand;
+
+/**
+ * @brief Optimizes a list of atoms using static single assignment form.
+ * The atoms are split into basic blocks at LBL, JMP and TST, phis are placed
+ * on the dominance frontiers of the variables that live across blocks, and
+ * every read is numbered with the value it sees. On that form this class does
+ * - constant propagation and folding, including TSTs with a known outcome,
+ * - copy propagation of the MOVs into temporaries that the Parser emits,
+ * - common subexpression elimination over the dominator tree,
+ * - dead store elimination.
+ * Leaving SSA needs no copies: atoms are only rewritten to read a variable
+ * or a constant that holds the very same value at that point, so each
+ * version still lives in its own variable.
+ * Temporaries (see SymbolTable.internTemporary()) may disappear, but every
+ * other variable ends the program with the same value as before.
+ */
+public class SSAOptimization {
+    // Rounds to run at most; each round only runs if the last one removed something
+    private static final int MAX_ROUNDS = 8;
+
+    private SSAOptimization() {}
+
+    /**
+     * @brief Optimizes a program.
+     * @param input The atoms of the program. This function does not change this list.
+     * @param names The table the atoms' names were interned in. New atoms are interned in it too.
+     * @return A new list of atoms that computes the same variables.
+     */
+    public static List<Atom> optimize(List<Atom> input, SymbolTable names) {
+        List<Atom> atoms = GlobalOptimization.optimize(input);
+        for (int round = 0; round < MAX_ROUNDS; round++) {
+            int before = atoms.size();
+
+            Form form = Form.build(atoms, names, true);
+            if (form == null)
+                return atoms;
+            form.resolve();
+            Atom[] rewritten = form.rewrite();
+            coalesce(rewritten, form.blockStart, form.blockCount, names);
+            atoms = compact(rewritten);
+
+            Form versions = Form.build(atoms, names, false);
+            if (versions == null)
+                return atoms;
+            atoms = compact(versions.eliminateDeadStores());
+
+            atoms = GlobalOptimization.optimize(atoms);
+            if (atoms.size() == before)
+                break;
+        }
+        return atoms;
+    }
+
+    /**
+     * @brief Turns (op ..., t) ... (MOV, t, , y) into (op ..., y) inside a block,
+     * when the MOV is the only read of the temporary t and y is not touched in between.
+     */
+    private static void coalesce(Atom[] atoms, int[] blockStart, int blockCount, SymbolTable names) {
+        int[] reads = new int[names.size()];
+        for (Atom atom : atoms)
+            if (atom != null)
+                for (int o = 0; o < 2; o++)
+                    if (isVariable(atom.getOperand(o)))
+                        reads[atom.getOperand(o).id]++;
+
+        // Where in the current block each temporary was last written, and the last atom that touched each variable
+        int[] writtenAt = new int[names.size()];
+        int[] touchedAt = new int[names.size()];
+        Arrays.fill(writtenAt, -1);
+        Arrays.fill(touchedAt, -1);
+        for (int b = 0; b < blockCount; b++) {
+            for (int i = blockStart[b]; i < blockStart[b + 1]; i++) {
+                Atom atom = atoms[i];
+                if (atom == null)
+                    continue;
+                Operand result = resultOf(atom);
+
+                if (atom.opcode == Atom.Opcode.MOV && isVariable(atom.getOperand(0))) {
+                    int t = atom.getOperand(0).id;
+                    int y = result.id;
+                    int def = writtenAt[t];
+                    if (def >= blockStart[b] && names.isTemporary(t) && reads[t] == 1 && t != y
+                            && touchedAt[y] <= def) {
+                        atoms[def] = withResult(atoms[def], Operand.variable(names, y));
+                        atoms[i] = null;
+                        writtenAt[y] = def;
+                        touchedAt[y] = i;
+                        continue;
+                    }
+                }
+
+                for (int o = 0; o < 2; o++)
+                    if (isVariable(atom.getOperand(o)))
+                        touchedAt[atom.getOperand(o).id] = i;
+                if (result != null) {
+                    writtenAt[result.id] = i;
+                    touchedAt[result.id] = i;
+                }
+            }
+        }
+    }
+
+    private static List<Atom> compact(Atom[] atoms) {
+        List<Atom> list = new ArrayList<>(atoms.length);
+        for (Atom atom : atoms)
+            if (atom != null)
+                list.add(atom);
+        return list;
+    }
+
+    private static boolean isVariable(Operand op) {
+        return op != null && op.type == Operand.VARIABLE;
+    }
+
+    /**
+     * @brief Returns the variable an atom writes, or null if it writes none
+     */
+    private static Operand resultOf(Atom atom) {
+        switch (atom.opcode) {
+            case ADD:
+            case SUB:
+            case MUL:
+            case DIV:
+            case NEG:
+            case MOV:
+                return atom.getOperand(2);
+            default:
+                return null;
+        }
+    }
+
+    private static Atom withResult(Atom atom, Operand result) {
+        return new Atom(atom.opcode, atom.getOperand(0), atom.getOperand(1), result);
+    }
+
+    /**
+     * @brief The SSA form of a list of atoms: its blocks, dominator tree,
+     * phis, and the value every read and write of a variable refers to.
+     */
+    private static final class Form {
+        // Kinds of values
+        private static final int CONSTANT = 0;
+        private static final int COMPUTED = 1;
+        private static final int PHI = 2;
+        // What a program variable holds when the program starts, which is not known
+        private static final int ENTRY = 3;
+
+        private final Atom[] atoms;
+        private final SymbolTable names;
+        // Whether equal computations share a value (CSE, folding, MOVs share their source's value)
+        private final boolean numbering;
+
+        // Blocks. Block blockCount is the (empty) end of the program
+        private int blockCount;
+        private int[] blockStart;
+        private int[] succ0;
+        private int[] succ1;
+        // Where each block appears in its successors' predecessor lists
+        private int[] succ0Slot;
+        private int[] succ1Slot;
+        private int[] predStart;
+        private int[] preds;
+        private int[] rpoNumber;
+        private int[] idom;
+        // Enter (b) and leave (~b) events of a preorder walk of the dominator tree
+        private int[] walk;
+
+        // Variables with phis in each block, and the phi values, in the same order
+        private IntList[] phiVars;
+        private IntList[] phiValues;
+
+        // Values, in order of creation
+        private int valueCount = 0;
+        private int[] kind = new int[256];
+        private int[] opcode = new int[256];
+        private int[] argA = new int[256]; // first operand, or where a phi's arguments start in phiArgs
+        private int[] argB = new int[256]; // second operand, or a phi's number of arguments
+        private int[] home = new int[256]; // variable a computation or phi is written to, -1 for constants
+        private int[] definedBy = new int[256]; // atom that computes a value, -1 for constants and phis
+        private int[] forward; // value a value turned out to be equal to, see resolve()
+        private final IntList phiArgs = new IntList();
+        private final HashMap<Integer, Integer> constants = new HashMap<>();
+        private final HashMap<Long, Integer> available = new HashMap<>();
+
+        // The value each atom reads as its operands 0 and 1, and the value it writes
+        private int[] useValue;
+        private int[] defValue;
+        // The value of each program variable at the end, -1 for temporaries or if the end is never reached
+        private int[] exitValue;
+        // The value each variable starts the program with: an ENTRY value for
+        // program variables the program writes, and 0 for the others
+        private int[] entryValue;
+
+        private Form(Atom[] atoms, SymbolTable names, boolean numbering) {
+            this.atoms = atoms;
+            this.names = names;
+            this.numbering = numbering;
+        }
+
+        /**
+         * @brief Builds the SSA form of a program.
+         * @return The form, or null if the program jumps to a label it does not define
+         */
+        static Form build(List<Atom> list, SymbolTable names, boolean numbering) {
+            Form form = new Form(list.toArray(new Atom[0]), names, numbering);
+            if (!form.buildBlocks())
+                return null;
+            form.buildDominators();
+            form.placePhis();
+            form.rename();
+            return form;
+        }
+
+        private boolean buildBlocks() {
+            final int n = atoms.length;
+            // Block 0 is an empty block before the program, so that the start of
+            // the program has a predecessor to give phis their initial values even
+            // when the first atom is a LBL that is jumped to
+            IntList starts = new IntList();
+            starts.add(0);
+            int[] labelBlock = new int[names.size()];
+            Arrays.fill(labelBlock, -1);
+            for (int i = 0; i < n; i++) {
+                Atom.Opcode op = atoms[i].opcode;
+                if (i == 0 || op == Atom.Opcode.LBL
+                        || atoms[i - 1].opcode == Atom.Opcode.JMP || atoms[i - 1].opcode == Atom.Opcode.TST) {
+                    if (i == 0 || starts.get(starts.size() - 1) != i)
+                        starts.add(i);
+                }
+                if (op == Atom.Opcode.LBL && labelBlock[atoms[i].getOperand(4).id] < 0)
+                    labelBlock[atoms[i].getOperand(4).id] = starts.size() - 1;
+            }
+            blockCount = starts.size();
+            blockStart = new int[blockCount + 2];
+            for (int b = 0; b < blockCount; b++)
+                blockStart[b] = starts.get(b);
+            blockStart[blockCount] = n;
+            blockStart[blockCount + 1] = n;
+
+            // Successors; the end of the program has none
+            succ0 = new int[blockCount + 1];
+            succ1 = new int[blockCount + 1];
+            Arrays.fill(succ0, -1);
+            Arrays.fill(succ1, -1);
+            for (int b = 0; b < blockCount; b++) {
+                if (blockStart[b] == blockStart[b + 1]) {
+                    succ0[b] = b + 1;
+                    continue;
+                }
+                Atom last = atoms[blockStart[b + 1] - 1];
+                int target = -1;
+                if (last.opcode == Atom.Opcode.JMP || last.opcode == Atom.Opcode.TST) {
+                    target = labelBlock[last.getOperand(4).id];
+                    if (target < 0)
+                        return false;
+                }
+                if (last.opcode == Atom.Opcode.JMP)
+                    succ0[b] = target;
+                else {
+                    succ0[b] = b + 1;
+                    if (last.opcode == Atom.Opcode.TST && target != b + 1)
+                        succ1[b] = target;
+                }
+            }
+
+            // Reverse postorder from the first block, by an iterative depth first search
+            rpoNumber = new int[blockCount + 1];
+            Arrays.fill(rpoNumber, -1);
+            int[] order = new int[blockCount + 1];
+            int ordered = blockCount + 1;
+            int[] stack = new int[blockCount + 1];
+            int[] nextSucc = new int[blockCount + 1];
+            boolean[] seen = new boolean[blockCount + 1];
+            int depth = 0;
+            stack[depth++] = 0;
+            seen[0] = true;
+            while (depth > 0) {
+                int b = stack[depth - 1];
+                int s = nextSucc[b] == 0 ? succ0[b] : nextSucc[b] == 1 ? succ1[b] : -2;
+                nextSucc[b]++;
+                if (s == -2) {
+                    order[--ordered] = b;
+                    depth--;
+                }
+                else if (s >= 0 && !seen[s]) {
+                    seen[s] = true;
+                    stack[depth++] = s;
+                }
+            }
+            for (int i = ordered; i < order.length; i++)
+                rpoNumber[order[i]] = i - ordered;
+
+            // Predecessors of reachable blocks, from reachable blocks only
+            predStart = new int[blockCount + 2];
+            for (int b = 0; b <= blockCount; b++) {
+                if (rpoNumber[b] < 0)
+                    continue;
+                if (succ0[b] >= 0) predStart[succ0[b] + 1]++;
+                if (succ1[b] >= 0) predStart[succ1[b] + 1]++;
+            }
+            for (int b = 0; b <= blockCount; b++)
+                predStart[b + 1] += predStart[b];
+            preds = new int[predStart[blockCount + 1]];
+            int[] fill = Arrays.copyOf(predStart, blockCount + 1);
+            succ0Slot = new int[blockCount + 1];
+            succ1Slot = new int[blockCount + 1];
+            for (int b = 0; b <= blockCount; b++) {
+                if (rpoNumber[b] < 0)
+                    continue;
+                if (succ0[b] >= 0) {
+                    succ0Slot[b] = fill[succ0[b]] - predStart[succ0[b]];
+                    preds[fill[succ0[b]]++] = b;
+                }
+                if (succ1[b] >= 0) {
+                    succ1Slot[b] = fill[succ1[b]] - predStart[succ1[b]];
+                    preds[fill[succ1[b]]++] = b;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @brief Finds immediate dominators (Cooper, Harvey and Kennedy) and the walk of the dominator tree.
+         */
+        private void buildDominators() {
+            int reachable = 0;
+            for (int b = 0; b <= blockCount; b++)
+                if (rpoNumber[b] >= 0)
+                    reachable++;
+            int[] rpo = new int[reachable];
+            for (int b = 0; b <= blockCount; b++)
+                if (rpoNumber[b] >= 0)
+                    rpo[rpoNumber[b]] = b;
+
+            idom = new int[blockCount + 1];
+            Arrays.fill(idom, -1);
+            idom[0] = 0;
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (int r = 1; r < reachable; r++) {
+                    int b = rpo[r];
+                    int newIdom = -1;
+                    for (int p = predStart[b]; p < predStart[b + 1]; p++) {
+                        int pred = preds[p];
+                        if (idom[pred] < 0)
+                            continue;
+                        newIdom = newIdom < 0 ? pred : intersect(pred, newIdom);
+                    }
+                    if (idom[b] != newIdom) {
+                        idom[b] = newIdom;
+                        changed = true;
+                    }
+                }
+            }
+
+            // Children of each block in the dominator tree
+            int[] childStart = new int[blockCount + 2];
+            for (int b = 1; b <= blockCount; b++)
+                if (rpoNumber[b] > 0)
+                    childStart[idom[b] + 1]++;
+            for (int b = 0; b <= blockCount; b++)
+                childStart[b + 1] += childStart[b];
+            int[] children = new int[childStart[blockCount + 1]];
+            int[] fill = Arrays.copyOf(childStart, blockCount + 1);
+            for (int b = 1; b <= blockCount; b++)
+                if (rpoNumber[b] > 0)
+                    children[fill[idom[b]]++] = b;
+
+            walk = new int[reachable * 2];
+            int events = 0;
+            int[] stack = new int[reachable * 2];
+            int depth = 0;
+            stack[depth++] = 0;
+            while (depth > 0) {
+                int b = stack[--depth];
+                walk[events++] = b;
+                if (b < 0)
+                    continue;
+                stack[depth++] = ~b;
+                for (int c = childStart[b + 1] - 1; c >= childStart[b]; c--)
+                    stack[depth++] = children[c];
+            }
+        }
+
+        private int intersect(int a, int b) {
+            while (a != b) {
+                while (rpoNumber[a] > rpoNumber[b])
+                    a = idom[a];
+                while (rpoNumber[b] > rpoNumber[a])
+                    b = idom[b];
+            }
+            return a;
+        }
+
+        /**
+         * @brief Places phis on the iterated dominance frontiers of the blocks
+         * that write each variable, for variables that are read in a block
+         * before being written in it (semi-pruned SSA).
+         */
+        private void placePhis() {
+            final int vars = names.size();
+
+            // Dominance frontiers
+            IntList[] frontier = new IntList[blockCount + 1];
+            for (int b = 0; b <= blockCount; b++) {
+                if (rpoNumber[b] < 0 || predStart[b + 1] - predStart[b] < 2)
+                    continue;
+                for (int p = predStart[b]; p < predStart[b + 1]; p++) {
+                    for (int runner = preds[p]; runner != idom[b]; runner = idom[runner]) {
+                        if (frontier[runner] == null)
+                            frontier[runner] = new IntList(4);
+                        IntList f = frontier[runner];
+                        if (f.size() == 0 || f.get(f.size() - 1) != b)
+                            f.add(b);
+                    }
+                }
+            }
+
+            // Variables that live across blocks, and the blocks that write each variable
+            boolean[] global = new boolean[vars];
+            int[] writtenInBlock = new int[vars];
+            Arrays.fill(writtenInBlock, -1);
+            IntList[] writers = new IntList[vars];
+            for (int b = 0; b < blockCount; b++) {
+                if (rpoNumber[b] < 0)
+                    continue;
+                for (int i = blockStart[b]; i < blockStart[b + 1]; i++) {
+                    Atom atom = atoms[i];
+                    for (int o = 0; o < 2; o++)
+                        if (isVariable(atom.getOperand(o)) && writtenInBlock[atom.getOperand(o).id] != b)
+                            global[atom.getOperand(o).id] = true;
+                    Operand result = resultOf(atom);
+                    if (result != null && writtenInBlock[result.id] != b) {
+                        writtenInBlock[result.id] = b;
+                        if (writers[result.id] == null)
+                            writers[result.id] = new IntList(4);
+                        writers[result.id].add(b);
+                    }
+                }
+            }
+            exitValue = new int[vars];
+            Arrays.fill(exitValue, -1);
+            if (rpoNumber[blockCount] >= 0)
+                for (int v = 0; v < vars; v++)
+                    if (writers[v] != null && !names.isTemporary(v))
+                        global[v] = true;
+
+            phiVars = new IntList[blockCount + 1];
+            phiValues = new IntList[blockCount + 1];
+            int[] hasPhi = new int[blockCount + 1];
+            int[] queued = new int[blockCount + 1];
+            IntList work = new IntList();
+            for (int v = 0; v < vars; v++) {
+                if (!global[v] || writers[v] == null)
+                    continue;
+                work.truncate(0);
+                for (int k = 0; k < writers[v].size(); k++) {
+                    work.add(writers[v].get(k));
+                    queued[writers[v].get(k)] = v + 1;
+                }
+                while (work.size() > 0) {
+                    int b = work.get(work.size() - 1);
+                    work.truncate(work.size() - 1);
+                    if (frontier[b] == null)
+                        continue;
+                    for (int k = 0; k < frontier[b].size(); k++) {
+                        int d = frontier[b].get(k);
+                        if (hasPhi[d] == v + 1)
+                            continue;
+                        hasPhi[d] = v + 1;
+                        if (phiVars[d] == null)
+                            phiVars[d] = new IntList(4);
+                        phiVars[d].add(v);
+                        if (queued[d] != v + 1) {
+                            queued[d] = v + 1;
+                            work.add(d);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * @brief Walks the dominator tree giving every write a value and every read the value it sees.
+         */
+        private void rename() {
+            final int n = atoms.length;
+            final int vars = names.size();
+            useValue = new int[n * 2];
+            defValue = new int[n];
+            Arrays.fill(useValue, -1);
+            Arrays.fill(defValue, -1);
+
+            // Variables start out as 0, since MiniVM clears its memory. A program
+            // variable the program writes must not, though: writing 0 to it
+            // would look like it already holds the value, and if that write
+            // were the only mention of it, CodeGen would leave it out of memory
+            // altogether. Temporaries and variables that are only read are
+            // never written before being read, so they can.
+            boolean[] written = new boolean[vars];
+            for (Atom atom : atoms) {
+                Operand result = resultOf(atom);
+                if (result != null)
+                    written[result.id] = true;
+            }
+            int zero = constant(0f);
+            entryValue = new int[vars];
+            for (int v = 0; v < vars; v++)
+                entryValue[v] = written[v] && !names.isTemporary(v) ? newValue(ENTRY, -1, 0, 0, v, -1) : zero;
+            int[] current = entryValue.clone();
+            IntList undo = new IntList();
+            IntList marks = new IntList();
+            ArrayList<Long> availableUndo = new ArrayList<>();
+            IntList availableMarks = new IntList();
+
+            for (int e = 0; e < walk.length; e++) {
+                int b = walk[e];
+                if (b < 0) {
+                    // Leaving a block: forget what it wrote and computed
+                    int mark = marks.get(marks.size() - 1);
+                    marks.truncate(marks.size() - 1);
+                    while (undo.size() > mark) {
+                        current[undo.get(undo.size() - 2)] = undo.get(undo.size() - 1);
+                        undo.truncate(undo.size() - 2);
+                    }
+                    int availableMark = availableMarks.get(availableMarks.size() - 1);
+                    availableMarks.truncate(availableMarks.size() - 1);
+                    while (availableUndo.size() > availableMark)
+                        available.remove(availableUndo.remove(availableUndo.size() - 1));
+                    continue;
+                }
+                marks.add(undo.size());
+                availableMarks.add(availableUndo.size());
+
+                if (phiVars[b] != null) {
+                    makePhis(b);
+                    for (int k = 0; k < phiVars[b].size(); k++) {
+                        int v = phiVars[b].get(k);
+                        undo.add(v);
+                        undo.add(current[v]);
+                        current[v] = phiValues[b].get(k);
+                    }
+                }
+
+                for (int i = blockStart[b]; i < blockStart[b + 1]; i++) {
+                    Atom atom = atoms[i];
+                    switch (atom.opcode) {
+                        case ADD:
+                        case SUB:
+                        case MUL:
+                        case DIV:
+                        case NEG:
+                        case MOV: {
+                            int lhs = read(atom.getOperand(0), current);
+                            int rhs = atom.opcode == Atom.Opcode.NEG || atom.opcode == Atom.Opcode.MOV
+                                ? -1 : read(atom.getOperand(1), current);
+                            useValue[2 * i] = lhs;
+                            useValue[2 * i + 1] = rhs;
+                            int result = atom.getOperand(2).id;
+                            int value = compute(atom.opcode, lhs, rhs, result, i, availableUndo);
+                            defValue[i] = value;
+                            undo.add(result);
+                            undo.add(current[result]);
+                            current[result] = value;
+                            break;
+                        }
+                        case TST:
+                            useValue[2 * i] = read(atom.getOperand(0), current);
+                            useValue[2 * i + 1] = read(atom.getOperand(1), current);
+                            break;
+                        default:
+                            break;
+                    }
+                }
+
+                if (b == blockCount) {
+                    // The end of the program reads every program variable
+                    for (int v = 0; v < vars; v++)
+                        if (!names.isTemporary(v))
+                            exitValue[v] = current[v];
+                }
+
+                // Give the successors' phis the values this block ends with
+                fillPhis(b, succ0[b], succ0Slot[b], current);
+                fillPhis(b, succ1[b], succ1Slot[b], current);
+            }
+        }
+
+        private void fillPhis(int b, int succ, int slot, int[] current) {
+            if (succ < 0 || phiVars[succ] == null)
+                return;
+            makePhis(succ);
+            for (int k = 0; k < phiVars[succ].size(); k++) {
+                int phi = phiValues[succ].get(k);
+                phiArgs.set(argA[phi] + slot, current[phiVars[succ].get(k)]);
+            }
+        }
+
+        /**
+         * @brief Makes the phi values of a block, the first time either it or a predecessor is visited.
+         */
+        private void makePhis(int b) {
+            if (phiValues[b] != null)
+                return;
+            phiValues[b] = new IntList(phiVars[b].size());
+            int count = predStart[b + 1] - predStart[b];
+            for (int k = 0; k < phiVars[b].size(); k++) {
+                phiValues[b].add(newValue(PHI, -1, phiArgs.size(), count, phiVars[b].get(k), -1));
+                for (int a = 0; a < count; a++)
+                    phiArgs.add(-1);
+            }
+        }
+
+        private int read(Operand op, int[] current) {
+            if (op.type == Operand.CONSTANT)
+                return constant(op.getConstant());
+            return current[op.id];
+        }
+
+        /**
+         * @brief Returns the value an atom writes, sharing an earlier value when numbering.
+         */
+        private int compute(Atom.Opcode op, int lhs, int rhs, int result, int atom, ArrayList<Long> availableUndo) {
+            if (!numbering)
+                return newValue(COMPUTED, op.ordinal(), lhs, rhs, result, atom);
+            if (op == Atom.Opcode.MOV)
+                return lhs;
+
+            if (kind[lhs] == CONSTANT && (rhs < 0 || kind[rhs] == CONSTANT))
+                return constant(ConstantFolding.fold(op, constantOf(lhs), rhs < 0 ? 0f : constantOf(rhs)));
+
+            if (rhs < 0)
+                rhs = 0;
+            else if ((op == Atom.Opcode.ADD || op == Atom.Opcode.MUL) && lhs > rhs) {
+                int swap = lhs;
+                lhs = rhs;
+                rhs = swap;
+            }
+            // Multiplying by an odd constant keeps keys distinct and spreads them over the HashMap
+            long key = ((long) op.ordinal() << 60 | (long) lhs << 30 | rhs) * 0x9E3779B97F4A7C15L;
+            Integer existing = available.get(key);
+            if (existing != null)
+                return existing;
+            int value = newValue(COMPUTED, op.ordinal(), lhs, rhs, result, atom);
+            available.put(key, value);
+            availableUndo.add(key);
+            return value;
+        }
+
+        private int constant(float c) {
+            int bits = Float.floatToIntBits(c);
+            Integer value = constants.get(bits);
+            if (value == null) {
+                value = newValue(CONSTANT, -1, bits, 0, -1, -1);
+                constants.put(bits, value);
+            }
+            return value;
+        }
+
+        private float constantOf(int value) {
+            return Float.intBitsToFloat(argA[value]);
+        }
+
+        private int newValue(int k, int op, int a, int b, int variable, int atom) {
+            if (valueCount == kind.length) {
+                int length = kind.length * 2;
+                kind = Arrays.copyOf(kind, length);
+                opcode = Arrays.copyOf(opcode, length);
+                argA = Arrays.copyOf(argA, length);
+                argB = Arrays.copyOf(argB, length);
+                home = Arrays.copyOf(home, length);
+                definedBy = Arrays.copyOf(definedBy, length);
+            }
+            kind[valueCount] = k;
+            opcode[valueCount] = op;
+            argA[valueCount] = a;
+            argB[valueCount] = b;
+            home[valueCount] = variable;
+            definedBy[valueCount] = atom;
+            return valueCount++;
+        }
+
+        /**
+         * @brief Finds values that are equal to others: phis whose arguments
+         * are all the same value, and computations whose operands turned out
+         * to be constants. Repeats until nothing changes.
+         */
+        void resolve() {
+            forward = new int[valueCount];
+            for (int v = 0; v < valueCount; v++)
+                forward[v] = v;
+
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                final int count = valueCount;
+                for (int v = 0; v < count; v++) {
+                    if (forward[v] != v)
+                        continue;
+                    if (kind[v] == PHI) {
+                        int same = -1;
+                        boolean unique = true;
+                        for (int a = 0; a < argB[v]; a++) {
+                            int arg = phiArgs.get(argA[v] + a);
+                            if (arg < 0)
+                                continue;
+                            arg = find(arg);
+                            if (arg == v)
+                                continue;
+                            if (same < 0)
+                                same = arg;
+                            else if (same != arg)
+                                unique = false;
+                        }
+                        if (unique && same >= 0) {
+                            forward[v] = same;
+                            changed = true;
+                        }
+                    }
+                    else if (kind[v] == COMPUTED) {
+                        int lhs = find(argA[v]);
+                        int rhs = find(argB[v]);
+                        Atom.Opcode op = Atom.Opcode.values()[opcode[v]];
+                        boolean unary = op == Atom.Opcode.NEG;
+                        if (kind[lhs] == CONSTANT && (unary || kind[rhs] == CONSTANT)) {
+                            int c = constant(ConstantFolding.fold(op, constantOf(lhs), unary ? 0f : constantOf(rhs)));
+                            growForward();
+                            forward[v] = c;
+                            changed = true;
+                        }
+                    }
+                }
+            }
+        }
+
+        private void growForward() {
+            if (forward.length < valueCount) {
+                int old = forward.length;
+                forward = Arrays.copyOf(forward, Math.max(valueCount, old * 2));
+                for (int v = old; v < forward.length; v++)
+                    forward[v] = v;
+            }
+        }
+
+        private int find(int v) {
+            int root = v;
+            while (forward[root] != root)
+                root = forward[root];
+            while (forward[v] != root) {
+                int next = forward[v];
+                forward[v] = root;
+                v = next;
+            }
+            return root;
+        }
+
+        /**
+         * @brief Walks the dominator tree again and rewrites each atom using the values found.
+         * @return The new atoms, indexed like the old ones, with null for removed atoms
+         */
+        Atom[] rewrite() {
+            final int vars = names.size();
+            Atom[] out = atoms.clone();
+            growForward();
+            int[] current = new int[vars];
+            for (int v = 0; v < vars; v++)
+                current[v] = find(entryValue[v]);
+            IntList undo = new IntList();
+            IntList marks = new IntList();
+
+            for (int e = 0; e < walk.length; e++) {
+                int b = walk[e];
+                if (b < 0) {
+                    int mark = marks.get(marks.size() - 1);
+                    marks.truncate(marks.size() - 1);
+                    while (undo.size() > mark) {
+                        current[undo.get(undo.size() - 2)] = undo.get(undo.size() - 1);
+                        undo.truncate(undo.size() - 2);
+                    }
+                    continue;
+                }
+                marks.add(undo.size());
+
+                if (phiVars[b] != null) {
+                    for (int k = 0; k < phiVars[b].size(); k++) {
+                        int v = phiVars[b].get(k);
+                        undo.add(v);
+                        undo.add(current[v]);
+                        current[v] = find(phiValues[b].get(k));
+                    }
+                }
+
+                for (int i = blockStart[b]; i < blockStart[b + 1]; i++) {
+                    Atom atom = atoms[i];
+                    switch (atom.opcode) {
+                        case ADD:
+                        case SUB:
+                        case MUL:
+                        case DIV:
+                        case NEG:
+                        case MOV: {
+                            int result = atom.getOperand(2).id;
+                            int value = find(defValue[i]);
+                            out[i] = rewriteComputation(atom, i, value, current);
+                            undo.add(result);
+                            undo.add(current[result]);
+                            current[result] = value;
+                            break;
+                        }
+                        case TST: {
+                            Operand lhs = operand(atom.getOperand(0), useValue[2 * i], current);
+                            Operand rhs = operand(atom.getOperand(1), useValue[2 * i + 1], current);
+                            int lhsValue = find(useValue[2 * i]);
+                            int rhsValue = find(useValue[2 * i + 1]);
+                            if (kind[lhsValue] == CONSTANT && kind[rhsValue] == CONSTANT) {
+                                if (ConstantFolding.compare(atom.getOperand(3).getCmp(), constantOf(lhsValue), constantOf(rhsValue)))
+                                    out[i] = new Atom(Atom.Opcode.JMP, null, null, null, null, atom.getOperand(4));
+                                else
+                                    out[i] = null;
+                            }
+                            else if (!unchanged(atom, lhs, rhs))
+                                out[i] = new Atom(Atom.Opcode.TST, lhs, rhs, null, atom.getOperand(3), atom.getOperand(4));
+                            break;
+                        }
+                        default:
+                            break;
+                    }
+                }
+            }
+            return out;
+        }
+
+        private Atom rewriteComputation(Atom atom, int i, int value, int[] current) {
+            int result = atom.getOperand(2).id;
+
+            // The variable already holds the value
+            if (current[result] == value)
+                return null;
+
+            // The value is a constant
+            if (kind[value] == CONSTANT)
+                return new Atom(Atom.Opcode.MOV, Operand.constant(constantOf(value)), null, atom.getOperand(2));
+
+            // The value was computed before and is still in a variable
+            if (atom.opcode != Atom.Opcode.MOV && definedBy[value] != i && home[value] >= 0
+                    && home[value] != result && current[home[value]] == value)
+                return new Atom(Atom.Opcode.MOV, Operand.variable(names, home[value]), null, atom.getOperand(2));
+
+            Operand lhs = operand(atom.getOperand(0), useValue[2 * i], current);
+            Operand rhs = atom.getOperand(1) == null ? null : operand(atom.getOperand(1), useValue[2 * i + 1], current);
+            if (unchanged(atom, lhs, rhs))
+                return atom;
+            return new Atom(atom.opcode, lhs, rhs, atom.getOperand(2));
+        }
+
+        private static boolean unchanged(Atom atom, Operand lhs, Operand rhs) {
+            return sameOperand(lhs, atom.getOperand(0)) && (rhs == null || sameOperand(rhs, atom.getOperand(1)));
+        }
+
+        // Whether two value operands read the same variable or are the same constant
+        private static boolean sameOperand(Operand a, Operand b) {
+            if (a.type != b.type)
+                return false;
+            if (a.type == Operand.CONSTANT)
+                return Float.floatToIntBits(a.getConstant()) == Float.floatToIntBits(b.getConstant());
+            return a.id == b.id;
+        }
+
+        /**
+         * @brief Returns what a read should be rewritten to: a constant, the variable
+         * a temporary was copied from if that still holds the value, or the operand itself.
+         */
+        private Operand operand(Operand op, int value, int[] current) {
+            value = find(value);
+            if (kind[value] == CONSTANT)
+                return Operand.constant(constantOf(value));
+            if (op.type == Operand.VARIABLE && names.isTemporary(op.id)) {
+                int holder = home[value];
+                if (holder >= 0 && holder != op.id && current[holder] == value)
+                    return Operand.variable(names, holder);
+            }
+            return op;
+        }
+
+        /**
+         * @brief Removes the atoms whose results are never read and are not a program variable's final value.
+         * @return The atoms, indexed like the old ones, with null for removed atoms
+         */
+        Atom[] eliminateDeadStores() {
+            Atom[] out = atoms.clone();
+            // A program that never ends leaves nothing to compare, so keep everything
+            if (rpoNumber[blockCount] < 0)
+                return out;
+
+            int[] uses = new int[valueCount];
+            for (int i = 0; i < atoms.length; i++)
+                for (int k = 0; k < 2; k++)
+                    if (useValue[2 * i + k] >= 0)
+                        uses[useValue[2 * i + k]]++;
+            for (int v = 0; v < valueCount; v++)
+                if (kind[v] == PHI)
+                    for (int a = 0; a < argB[v]; a++)
+                        if (phiArgs.get(argA[v] + a) >= 0)
+                            uses[phiArgs.get(argA[v] + a)]++;
+            for (int v = 0; v < exitValue.length; v++)
+                if (exitValue[v] >= 0)
+                    uses[exitValue[v]]++;
+
+            IntList dead = new IntList();
+            for (int v = 0; v < valueCount; v++)
+                if (uses[v] == 0 && (kind[v] == COMPUTED || kind[v] == PHI))
+                    dead.add(v);
+            while (dead.size() > 0) {
+                int v = dead.get(dead.size() - 1);
+                dead.truncate(dead.size() - 1);
+                if (kind[v] == PHI) {
+                    for (int a = 0; a < argB[v]; a++)
+                        release(phiArgs.get(argA[v] + a), uses, dead);
+                }
+                else if (kind[v] == COMPUTED && out[definedBy[v]] != null) {
+                    int i = definedBy[v];
+                    out[i] = null;
+                    release(useValue[2 * i], uses, dead);
+                    release(useValue[2 * i + 1], uses, dead);
+                }
+            }
+            return out;
+        }
+
+        private void release(int value, int[] uses, IntList dead) {
+            if (value >= 0 && --uses[value] == 0 && (kind[value] == COMPUTED || kind[value] == PHI))
+                dead.add(value);
+        }
+    }
+}
@@ -7,11 +7,11 @@ package mainpackage;
  * @date 09/27/2024
  */
 
-import java.io.IOException;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
 public class Scanner implements Iterator<Token> {
+    // The source code stream, or null in compact mode.
     private final SourceStream input;
     /**
      * @brief The next token to be returned by next(), or null if end of input was
@@ -19,6 +19,13 @@ public class Scanner implements Iterator<Token> {
      * if there is a token available.
      */
     private Token next;
+    // The most recently consumed token.
+    private Token last;
+
+    // Compact mode: the already scanned tokens, or null when streaming.
+    private final TokenBuffer tokens;
+    // Compact mode: the index of the next token to be consumed.
+    private int cursor;
 
     /**
      * @brief Constructs a Scanner instance and prepares the first token to be
@@ -31,11 +38,24 @@ public class Scanner implements Iterator<Token> {
             throw new NullPointerException();
         
         this.input = input;
-        try {
-            next = tokenize(input);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        this.tokens = null;
+        next = tokenize(input);
+    }
+
+    /**
+     * @brief Constructs a Scanner instance in compact mode, which hands out
+     * tokens that were already scanned into a TokenBuffer. peekType(),
+     * advance() and lastValue() then work without allocating.
+     * @param tokens The scanned tokens.
+     * @throws NullPointerException If tokens is null.
+     */
+    public Scanner(TokenBuffer tokens) throws NullPointerException {
+        if (tokens == null)
+            throw new NullPointerException();
+
+        this.input = null;
+        this.tokens = tokens;
+        cursor = 0;
     }
     
     /**
@@ -44,7 +64,7 @@ public class Scanner implements Iterator<Token> {
      */
     @Override
     public boolean hasNext() {
-        return next != null;
+        return tokens != null ? cursor < tokens.size() : next != null;
     }
     
     /**
@@ -54,94 +74,161 @@ public class Scanner implements Iterator<Token> {
      */
     @Override
     public Token next() throws NoSuchElementException {
-        if (next == null)
+        if (!hasNext())
             throw new NoSuchElementException();
 
+        if (tokens != null)
+            return last = tokens.token(cursor++);
+
         Token toReturn = next;
-        try {
-            next = tokenize(input);
-        }
-        catch (IOException e) {
-            next = null;
-            e.printStackTrace();
-        }
+        next = tokenize(input);
 
-        return toReturn;
+        return last = toReturn;
     }
 
     public Token peek() throws NoSuchElementException {
-        if (next == null)
+        if (!hasNext())
             throw new NoSuchElementException();
-        return next;
+        return tokens != null ? tokens.token(cursor) : next;
+    }
+
+    /**
+     * @brief Returns the type of the next token without consuming it.
+     * @returns The type of the next token, or Token.Type.INVALID at the end of input.
+     */
+    public int peekType() {
+        if (tokens != null)
+            return cursor < tokens.size() ? tokens.type(cursor) : Token.Type.INVALID;
+        return next != null ? next.type : Token.Type.INVALID;
+    }
+
+    /**
+     * @brief Consumes the next token. Unlike next(), this does not build a
+     * Token object in compact mode.
+     * @returns The type of the consumed token.
+     * @throws NoSuchElementException If there are no more tokens in the source code stream.
+     */
+    public int advance() throws NoSuchElementException {
+        if (tokens == null)
+            return next().type;
+
+        if (cursor >= tokens.size())
+            throw new NoSuchElementException();
+        last = null;
+        return tokens.type(cursor++);
+    }
+
+    /**
+     * @brief Returns the type of the most recently consumed token.
+     * @returns The type, or Token.Type.INVALID if no token was consumed yet.
+     */
+    public int lastType() {
+        if (tokens != null)
+            return cursor > 0 ? tokens.type(cursor - 1) : Token.Type.INVALID;
+        return last != null ? last.type : Token.Type.INVALID;
+    }
+
+    /**
+     * @brief Returns the text of the most recently consumed token.
+     * @returns The text, or null if no token was consumed yet.
+     */
+    public String lastValue() {
+        if (tokens != null)
+            return cursor > 0 ? tokens.text(cursor - 1) : null;
+        return last != null ? last.value : null;
+    }
+
+    /**
+     * @brief Returns the most recently consumed token.
+     * @returns The token, or null if no token was consumed yet.
+     */
+    public Token lastToken() {
+        if (tokens != null && last == null && cursor > 0)
+            last = tokens.token(cursor - 1);
+        return last;
     }
 
     /**
      * @brief Reads input until a valid token is built or the end of input is reached.
      * @returns The token, or null when there are no more valid tokens in the source code stream.
-     * @throws IOException If there is an error reading the source code stream.
     */
-    private static Token tokenize(SourceStream code) throws IOException {
+    private static Token tokenize(SourceStream code) {
+        eatWhitespace(code);
+        if (!code.hasNext()) return null; // end of input
+
+        final int start = code.position();
+        final int type = scanToken(code);
+        final Token token = new Token(new String(code.buffer(), start, code.position() - start), type);
+        eatWhitespace(code);
+        return token;
+    }
+
+    /**
+     * @brief Runs the FSM over the characters of the source starting at the
+     * stream's position and moves the stream past the longest token found there.
+     * Walks the source array directly instead of going through peek()/next().
+     * @param code The source, positioned on the first character of a token.
+     * @returns The type of the token.
+     * @throws ScannerException If the characters do not form a valid token.
+     */
+    static int scanToken(SourceStream code) {
+        final char[] buffer = code.buffer();
+        final int end = code.limit();
+        final int start = code.position();
+
         // begin at the starting state
         int currentState = FSM.State.START;
-        StringBuilder tokenValue = new StringBuilder();
+        int pos = start;
 
-        eatWhitespace(code);
-        if (!code.hasNext()) return null; // end of input
+        while (pos < end) {
+            char peek = buffer[pos];
 
-        while (code.hasNext()) {
-            char peek = code.peek();
-
-            // whitespace = end of token. Submit if in accepting state, otherwise, raise an error.
-            if (Character.isWhitespace(peek)) {
-                if (FSM.finalState(currentState) != FSM.State.INVALID) {
-                    eatWhitespace(code);
-                    return new Token(tokenValue.toString(), FSM.finalState(currentState));
-                } else {
-                    tokenValue.append(code.next());
-                    throw new ScannerException("Unidentified token: " + tokenValue.toString(), code.getPos());
-                }
-            }
-            
-            // otherwise, the token has not ended.
-            int nextState = FSM.nextState(currentState, peek);
+            // whitespace = end of token, same as a character without a transition.
+            int nextState = Character.isWhitespace(peek)
+                ? FSM.State.INVALID
+                : FSM.nextState(currentState, peek);
 
             // there is not a transition given by the next character
             if (nextState == FSM.State.INVALID) {
-                // if the current state is a final state, return the token
+                // if the current state is a final state, the token ends here
                 if (FSM.finalState(currentState) != FSM.State.INVALID)
-                    return new Token(tokenValue.toString(), FSM.finalState(currentState));
-                else {
-                    // On invalid transition and non-accepting state throw.
-                    tokenValue.append(code.next());
-                    throw new ScannerException("Unidentified token: " + tokenValue.toString(), code.getPos());
-                }
+                    break;
+
+                // On invalid transition and non-accepting state throw.
+                code.seek(pos + 1);
+                throw new ScannerException("Unidentified token: " + new String(buffer, start, pos + 1 - start), code.getPos());
             }
+
             // continue building the token otherwise.
-            else {
-                tokenValue.append(code.next());
-                currentState = nextState;
-            }
+            currentState = nextState;
+            pos++;
         }
 
-        // no more input - check if the current state is a final state and handle the result appropriately
-        if (FSM.finalState(currentState) != FSM.State.INVALID)
-            return new Token(tokenValue.toString(), FSM.finalState(currentState));
+        code.seek(pos);
+
         // end of input, there were characters that were not part of a valid token
-        String pos = code.getPos();
-        throw new ScannerException("There are characters that are not part of a valid token: '" +
-                tokenValue.toString() + "' at (c, r) = " + pos + ".", pos);
+        if (FSM.finalState(currentState) == FSM.State.INVALID) {
+            String at = code.getPos();
+            throw new ScannerException("There are characters that are not part of a valid token: '" +
+                    new String(buffer, start, pos - start) + "' at (c, r) = " + at + ".", at);
+        }
+
+        return FSM.finalState(currentState);
     }
 
     public String getPos() {
+        // A streaming scanner has already read the token after the next one.
+        if (tokens != null)
+            return tokens.getPos(cursor + 1);
         return String.format("(%d, %d)", input.getRow(), input.getColumn());
     }
 
-    private static void eatWhitespace(SourceStream code) throws IOException {
-        try {
-            while (code.hasNext() && Character.isWhitespace(code.peek())) code.next();
-        } catch (NoSuchElementException e) {
-            throw new RuntimeException(e);
-        }
+    private static void eatWhitespace(SourceStream code) {
+        final char[] buffer = code.buffer();
+        final int end = code.limit();
+        int pos = code.position();
+        while (pos < end && Character.isWhitespace(buffer[pos])) pos++;
+        code.seek(pos);
     }
 
     public static class ScannerException extends RuntimeException {
@@ -7,52 +7,95 @@ package mainpackage;
  * @date 09/27/24
  */
 
-import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.NoSuchElementException;
 
+/**
+ * The whole source is held in a char array, so the Scanner can walk it by
+ * index. Rows and columns are only worked out when someone asks for them.
+ */
 public class SourceStream implements Closeable {
-    // The source code reader.
+    // The source code reader, or null if the source did not come from one.
     private final Reader reader;
-    // If there is a next character to read.
-    private boolean hasNext;
-    // The next character to read.
-    private char next;
-    // The column of the character that is to be read next.
-    private int column;
-    // The row of the character that is to be read next.
-    private int row;
+    // The source code.
+    private final char[] buffer;
+    // The number of characters of buffer that hold source code.
+    private final int length;
+    // The index of the character that is to be read next.
+    private int position;
+
+    // The last position that rows and columns were worked out for, and its row and column.
+    private int countedPosition;
+    private int countedRow;
+    private int countedColumn;
 
     /**
-     * Constructs a SourceStream from a Reader.
+     * Constructs a SourceStream from a Reader. The reader is read to its end.
      * @param reader
      * @throws IOException
      */
     public SourceStream(Reader reader) throws IOException {
         this.reader = reader;
-        
-        int temp = reader.read();
-        hasNext = temp != -1;
-        next = (char)temp;
 
-        column = 1;
-        row = 1;
+        char[] chars = new char[8192];
+        int count = 0;
+        int read;
+        while ((read = reader.read(chars, count, chars.length - count)) != -1) {
+            count += read;
+            if (count == chars.length) {
+                char[] bigger = new char[chars.length * 2];
+                System.arraycopy(chars, 0, bigger, 0, count);
+                chars = bigger;
+            }
+        }
+
+        this.buffer = chars;
+        this.length = count;
+        resetCount();
+    }
+
+    /**
+     * Constructs a SourceStream over the first length characters of a char array.
+     * The array is used as is, not copied.
+     * @param buffer The source code.
+     * @param length The number of characters of buffer that hold source code.
+     */
+    public SourceStream(char[] buffer, int length) {
+        if (length < 0 || length > buffer.length)
+            throw new IllegalArgumentException("Length out of range.");
+        this.reader = null;
+        this.buffer = buffer;
+        this.length = length;
+        resetCount();
     }
 
     /**
-     * Builds a SourceStream from the contents of a file.
+     * Builds a SourceStream from the contents of a file. The file is memory
+     * mapped and decoded in one go.
      * @param fileName The name of the file to read.
      * @return The SourceStream built for the file.
      * @throws FileNotFoundException If the file does not exist.
      * @throws IOException If there is an error reading the file
      */
     public static SourceStream fromFile(String fileName) throws FileNotFoundException, IOException {
-        return new SourceStream(new BufferedReader(new FileReader(fileName)));
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CharBuffer chars = Charset.defaultCharset().decode(bytes);
+            return new SourceStream(chars.array(), chars.limit());
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(fileName);
+        }
     }
 
     /**
@@ -70,7 +113,7 @@ public class SourceStream implements Closeable {
      * @return True if there is another character to read, false otherwise.
      */
     public boolean hasNext() {
-        return hasNext;
+        return position < length;
     }
 
     /**
@@ -80,22 +123,10 @@ public class SourceStream implements Closeable {
      * @throws IOException If there is an error reading the source code stream.
      */
     public char next() throws NoSuchElementException, IOException {
-        if (!hasNext)
+        if (position >= length)
             throw new NoSuchElementException();
 
-        char toReturn = next;
-        int temp = reader.read();
-        hasNext = temp != -1;
-        next = (char)temp;
-        
-        if (toReturn == '\n') {
-            row++;
-            column = 1;
-        }
-        else
-            column++;
-
-        return toReturn;
+        return buffer[position++];
     }
 
     /**
@@ -105,10 +136,10 @@ public class SourceStream implements Closeable {
      * @throws IOException If there is an error reading the source code stream.
      */
     public char peek() throws NoSuchElementException, IOException {
-        if (!hasNext)
+        if (position >= length)
             throw new NoSuchElementException();
 
-        return next;
+        return buffer[position];
     }
 
     /**
@@ -116,7 +147,43 @@ public class SourceStream implements Closeable {
      * @throws IOException If there is an error closing the SourceStream.
      */
     public void close() throws IOException {
-        reader.close();
+        if (reader != null)
+            reader.close();
+    }
+
+    /**
+     * Gets the source code. Only the first limit() characters are valid.
+     * Used by the Scanner to walk the source by index.
+     * @return The array holding the source code.
+     */
+    char[] buffer() {
+        return buffer;
+    }
+
+    /**
+     * Gets the number of characters of source code.
+     * @return The index one past the last character.
+     */
+    int limit() {
+        return length;
+    }
+
+    /**
+     * Gets the index of the character that is to be read next.
+     * @return The index of the character that is to be read next.
+     */
+    int position() {
+        return position;
+    }
+
+    /**
+     * Moves to another character.
+     * @param position The index of the character that is to be read next.
+     */
+    void seek(int position) {
+        if (position < 0 || position > length)
+            throw new IllegalArgumentException("Position out of range.");
+        this.position = position;
     }
 
     /**
@@ -124,7 +191,8 @@ public class SourceStream implements Closeable {
      * @return The row of the character that is to be read next.
      */
     public int getRow() {
-        return row;
+        countTo(position);
+        return countedRow;
     }
 
     /**
@@ -132,10 +200,46 @@ public class SourceStream implements Closeable {
      * @return The column of the character that is to be read next.
      */
     public int getColumn() {
-        return column;
+        countTo(position);
+        return countedColumn;
     }
 
     public String getPos() {
-        return "(" + getRow() + ", " + getColumn() + ")";
+        return getPos(position);
+    }
+
+    /**
+     * Gets the (row, column) of any character of the source.
+     * @param offset The index of the character.
+     * @return The position formatted like getPos().
+     */
+    public String getPos(int offset) {
+        countTo(offset);
+        return "(" + countedRow + ", " + countedColumn + ")";
+    }
+
+    /**
+     * Works out the row and column of offset, continuing from the last offset
+     * worked out if that is behind it.
+     */
+    private void countTo(int offset) {
+        if (offset < countedPosition)
+            resetCount();
+
+        for (int i = countedPosition; i < offset; i++) {
+            if (buffer[i] == '\n') {
+                countedRow++;
+                countedColumn = 1;
+            }
+            else
+                countedColumn++;
+        }
+        countedPosition = offset;
+    }
+
+    private void resetCount() {
+        countedPosition = 0;
+        countedRow = 1;
+        countedColumn = 1;
     }
 }
@@ -0,0 +1,82 @@
+package mainpackage;
+
+import java.util.function.Consumer;
+
+/**
+ * @brief A sequence of atoms that can be moved onto the end of another in O(1).
+ * The atoms are kept in a linked list of array segments. Moving a sequence
+ * links its segments in instead of copying its atoms, so the Parser can
+ * capture a for loop's condition and increment, or an else block, and emit
+ * them later without copying them again at every level of nesting.
+ */
+final class SpliceBuffer {
+    private static final int FIRST_SEGMENT = 8;
+    private static final int MAX_SEGMENT = 1024;
+
+    // The buffer output goes to when this one is done, for nested captures
+    final SpliceBuffer enclosing;
+
+    private Segment head = null;
+    private Segment tail = null;
+
+    /**
+     * @brief Constructs an empty SpliceBuffer.
+     * @param enclosing The buffer that was capturing before this one, or null.
+     */
+    SpliceBuffer(SpliceBuffer enclosing) {
+        this.enclosing = enclosing;
+    }
+
+    /**
+     * @brief Appends an atom.
+     */
+    void add(Atom atom) {
+        if (tail == null || tail.size == tail.atoms.length) {
+            Segment segment = new Segment(tail == null ? FIRST_SEGMENT : Math.min(tail.atoms.length * 2, MAX_SEGMENT));
+            if (tail == null)
+                head = segment;
+            else
+                tail.next = segment;
+            tail = segment;
+        }
+        tail.atoms[tail.size++] = atom;
+    }
+
+    /**
+     * @brief Moves every atom of another buffer onto the end of this one, leaving the other empty.
+     * @param other The buffer to take the atoms of.
+     */
+    void append(SpliceBuffer other) {
+        if (other.head == null)
+            return;
+        if (tail == null)
+            head = other.head;
+        else
+            tail.next = other.head;
+        tail = other.tail;
+        other.head = null;
+        other.tail = null;
+    }
+
+    /**
+     * @brief Passes every atom to a Consumer in order, leaving this buffer empty.
+     * @param output The Consumer to pass the atoms to.
+     */
+    void drainTo(Consumer<Atom> output) {
+        for (Segment segment = head; segment != null; segment = segment.next)
+            for (int i = 0; i < segment.size; i++)
+                output.accept(segment.atoms[i]);
+        head = null;
+        tail = null;
+    }
+
+    private static final class Segment {
+        final Atom[] atoms;
+        int size = 0;
+        Segment next = null;
+
+        Segment(int capacity) {
+            atoms = new Atom[capacity];
+        }
+    }
+}
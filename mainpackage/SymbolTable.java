@@ -0,0 +1,96 @@
+package mainpackage;
+
+import java.util.HashMap;
+
+/**
+ * @brief Gives every identifier, temporary and label name of a compilation a
+ * dense integer id, starting at 0.
+ * The Parser interns each name once when it creates an Atom, the Atom's
+ * operands carry the id, and CodeGen indexes arrays by it instead of hashing
+ * the name again.
+ */
+public class SymbolTable {
+    // Name -> id
+    private final HashMap<String, Integer> ids = new HashMap<>();
+    // id -> name
+    private String[] names = new String[64];
+    // The number of names interned so far.
+    private int size = 0;
+    // Whether each id is a temporary made by the compiler rather than a variable of the program.
+    private boolean[] temporary = new boolean[64];
+
+    /**
+     * @brief Returns the id of a name, giving it the next free id if it is new.
+     * @param name The name to intern.
+     * @return The id of the name.
+     */
+    public int intern(String name) {
+        Integer id = ids.get(name);
+        if (id != null)
+            return id;
+
+        if (size == names.length) {
+            String[] bigger = new String[names.length * 2];
+            System.arraycopy(names, 0, bigger, 0, size);
+            names = bigger;
+            boolean[] biggerTemporary = new boolean[names.length];
+            System.arraycopy(temporary, 0, biggerTemporary, 0, size);
+            temporary = biggerTemporary;
+        }
+        names[size] = name;
+        ids.put(name, size);
+        return size++;
+    }
+
+    /**
+     * @brief Interns a name that the compiler made up to hold an intermediate
+     * value. Optimizations may drop or rename temporaries, but must keep the
+     * final value of every other variable, since that is what a program
+     * leaves behind in memory.
+     * @param name The name to intern.
+     * @return The id of the name.
+     */
+    public int internTemporary(String name) {
+        int id = intern(name);
+        temporary[id] = true;
+        return id;
+    }
+
+    /**
+     * @brief Returns whether an id was interned with internTemporary().
+     * @param id The id of the name.
+     */
+    public boolean isTemporary(int id) {
+        if (id < 0 || id >= size)
+            throw new IndexOutOfBoundsException("Symbol " + id + " of " + size);
+        return temporary[id];
+    }
+
+    /**
+     * @brief Returns the id of a name without interning it.
+     * @param name The name to look up.
+     * @return The id of the name, or -1 if it was never interned.
+     */
+    public int lookup(String name) {
+        Integer id = ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @brief Returns the name with the given id.
+     * @param id The id of the name.
+     * @return The name.
+     */
+    public String name(int id) {
+        if (id < 0 || id >= size)
+            throw new IndexOutOfBoundsException("Symbol " + id + " of " + size);
+        return names[id];
+    }
+
+    /**
+     * @brief Returns the number of names interned, which is one more than the largest id.
+     */
+    public int size() {
+        return size;
+    }
+}
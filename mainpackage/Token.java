@@ -27,6 +27,18 @@ public class Token {
         "IDENTIFIER"
     };
 
+    // The source text of the token classes whose text is always the same,
+    // null where the text varies (literals and identifiers)
+    private static final String[] fixedTexts = new String[] {
+        null, null, null, null, null, null, null, null, null, null,
+        null, null, null, null, null, null, null,
+        "(", ")", "{", "}", "<", "<=", ">",
+        ">=", "!=", ";", "*", "/", null,
+        null, "=", "==", "-", "--",
+        "+", "++", "else", "int", "if", "while", "float", "for",
+        null
+    };
+
     /**
      * Constructs a Token with a value and a type.
      * @param value The value of the token.
@@ -54,6 +66,15 @@ public class Token {
     public static String tokenTypeToString(int type) {
         return typeNames[type];
     }
+
+    /**
+     * Gets the source text shared by every token of a type.
+     * @param type The token type as an integer.
+     * @returns The text of every token of this type, or null if it differs per token.
+     */
+    public static String fixedText(int type) {
+        return fixedTexts[type];
+    }
     
         /**
          * The token types.
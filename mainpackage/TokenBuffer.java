@@ -0,0 +1,184 @@
+package mainpackage;
+
+/**
+ * @brief A compact list of all the tokens of a source file.
+ * Stores tokens as (type, start, length) in primitive arrays over the
+ * SourceStream's buffer instead of as Token objects. The text of a token is
+ * only turned into a String when asked for: punctuation and keywords share
+ * Token.fixedText(), and identifiers and literals are interned so each
+ * distinct spelling is allocated once.
+ */
+public class TokenBuffer {
+    // The source the tokens point into.
+    private final SourceStream source;
+    // Parallel arrays, one entry per token.
+    private int[] types = new int[256];
+    private int[] starts = new int[256];
+    private int[] lengths = new int[256];
+    // The number of tokens.
+    private int count = 0;
+
+    // Open addressing table of interned identifier and literal texts.
+    private String[] interned = new String[64];
+    private int internedCount = 0;
+
+    private TokenBuffer(SourceStream source) {
+        this.source = source;
+    }
+
+    /**
+     * Scans the rest of a SourceStream into a TokenBuffer.
+     * @param source The source code to tokenize.
+     * @return The tokens of the source.
+     * @throws Scanner.ScannerException If the source contains an invalid token.
+     */
+    public static TokenBuffer tokenize(SourceStream source) {
+        TokenBuffer tokens = new TokenBuffer(source);
+        final char[] buffer = source.buffer();
+        final int end = source.limit();
+
+        while (true) {
+            int pos = source.position();
+            while (pos < end && Character.isWhitespace(buffer[pos])) pos++;
+            source.seek(pos);
+            if (pos == end)
+                break;
+
+            final int type = Scanner.scanToken(source);
+            tokens.add(type, pos, source.position() - pos);
+        }
+        return tokens;
+    }
+
+    private void add(int type, int start, int length) {
+        if (count == types.length) {
+            types = grow(types);
+            starts = grow(starts);
+            lengths = grow(lengths);
+        }
+        types[count] = type;
+        starts[count] = start;
+        lengths[count] = length;
+        count++;
+    }
+
+    private static int[] grow(int[] array) {
+        int[] bigger = new int[array.length * 2];
+        System.arraycopy(array, 0, bigger, 0, array.length);
+        return bigger;
+    }
+
+    /**
+     * @return The number of tokens.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @param index The index of the token.
+     * @return The type of the token.
+     */
+    public int type(int index) {
+        checkIndex(index);
+        return types[index];
+    }
+
+    /**
+     * @param index The index of the token.
+     * @return The offset in the source of the first character of the token.
+     */
+    public int start(int index) {
+        checkIndex(index);
+        return starts[index];
+    }
+
+    /**
+     * @param index The index of the token.
+     * @return The number of characters in the token.
+     */
+    public int length(int index) {
+        checkIndex(index);
+        return lengths[index];
+    }
+
+    /**
+     * Gets the source text of a token without allocating, if possible.
+     * @param index The index of the token.
+     * @return The text of the token.
+     */
+    public String text(int index) {
+        checkIndex(index);
+        String fixed = Token.fixedText(types[index]);
+        return fixed != null ? fixed : intern(starts[index], lengths[index]);
+    }
+
+    /**
+     * Builds a Token object for a token, for callers that want the Iterator view.
+     * @param index The index of the token.
+     * @return The token.
+     */
+    public Token token(int index) {
+        return new Token(text(index), type(index));
+    }
+
+    /**
+     * Gets the (row, column) of a token, in the format of SourceStream.getPos().
+     * @param index The index of the token, or size() for the end of the source.
+     * @return The position of the token.
+     */
+    public String getPos(int index) {
+        return source.getPos(index < count ? starts[index] : source.limit());
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= count)
+            throw new IndexOutOfBoundsException("Token " + index + " of " + count);
+    }
+
+    /**
+     * Returns the one String instance for the given characters of the source.
+     */
+    private String intern(int start, int length) {
+        final char[] buffer = source.buffer();
+
+        int hash = 0;
+        for (int i = start; i < start + length; i++)
+            hash = 31 * hash + buffer[i];
+
+        int mask = interned.length - 1;
+        int slot = hash & mask;
+        for (String s = interned[slot]; s != null; s = interned[slot = (slot + 1) & mask])
+            if (s.hashCode() == hash && matches(s, buffer, start, length))
+                return s;
+
+        String s = new String(buffer, start, length);
+        interned[slot] = s;
+        if (++internedCount * 2 > interned.length)
+            rehash();
+        return s;
+    }
+
+    private static boolean matches(String s, char[] buffer, int start, int length) {
+        if (s.length() != length)
+            return false;
+        for (int i = 0; i < length; i++)
+            if (s.charAt(i) != buffer[start + i])
+                return false;
+        return true;
+    }
+
+    private void rehash() {
+        String[] old = interned;
+        interned = new String[old.length * 2];
+        int mask = interned.length - 1;
+        for (String s : old) {
+            if (s == null)
+                continue;
+            int slot = s.hashCode() & mask;
+            while (interned[slot] != null)
+                slot = (slot + 1) & mask;
+            interned[slot] = s;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package mainpackage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * @brief Differential test of MiniVMJit.
+ * Compiles random programs, the same ones SSAOptimizationTest uses, and runs
+ * each on MiniVM with and without the JIT: once to completion and once with
+ * a cycle budget that cuts it off part way. Both runs must stop the same
+ * way after the same number of cycles and leave the same memory.
+ *
+ * Run from the repository root with
+ *   javac -d out mainpackage/*.java test/mainpackage/*.java
+ *   java -cp out mainpackage.MiniVMJitTest [programs] [seed]
+ * It exits with status 1 if any run differs.
+ */
+public class MiniVMJitTest {
+    private static final long MAX_CYCLES = 10_000_000;
+
+    public static void main(String[] args) throws Exception {
+        final int programs = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+        final long seed = args.length > 1 ? Long.parseLong(args[1]) : 0;
+
+        int failures = 0;
+        for (int i = 0; i < programs; i++) {
+            Random random = new Random(seed + i);
+            int[] code = compile(new SSAOptimizationTest.Generator(random).program());
+            String name = "program " + i + " of seed " + seed;
+
+            MiniVM.RunConfig config = MiniVM.RunConfig.unlimited().withMaxCycles(MAX_CYCLES);
+            long cycles = new MiniVM(code).execute(config).cycles;
+            if (!check(name, code, config)
+                || !check(name + " cut off", code, config.withMaxCycles(1 + random.nextInt((int) cycles))))
+                failures++;
+        }
+
+        System.out.println((programs - failures) + " of " + programs + " programs passed.");
+        if (failures > 0)
+            System.exit(1);
+    }
+
+    private static int[] compile(String source) throws Exception {
+        SymbolTable names = new SymbolTable();
+        List<Atom> atoms = new ArrayList<>();
+        new Parser(new Scanner(SourceStream.fromString(source)), atoms::add, names).parse();
+        IntList code = new IntList();
+        new CodeGen(atoms, names, code).generate();
+        return code.toArray();
+    }
+
+    /**
+     * @brief Runs a binary with and without the JIT and compares the results.
+     * @return Whether they agree. If not, the difference is printed.
+     */
+    private static boolean check(String name, int[] code, MiniVM.RunConfig config) {
+        MiniVM interpreted = new MiniVM(code);
+        MiniVM.RunResult interpretedResult = interpreted.execute(config);
+        MiniVM compiled = new MiniVM(code);
+        MiniVM.RunResult compiledResult = compiled.execute(config.withJit(true));
+
+        String difference = null;
+        if (interpretedResult.halted != compiledResult.halted || interpretedResult.cycles != compiledResult.cycles)
+            difference = "interpreted run " + describe(interpretedResult) + ", JIT run " + describe(compiledResult);
+        for (int address = 0; address < code.length && difference == null; address++) {
+            float expected = interpreted.readFloat(address);
+            float actual = compiled.readFloat(address);
+            if (Float.floatToRawIntBits(expected) != Float.floatToRawIntBits(actual))
+                difference = "word " + address + " is " + expected + " interpreted, " + actual + " with the JIT";
+        }
+        if (difference == null)
+            return true;
+
+        System.out.println("FAIL " + name + ": " + difference);
+        return false;
+    }
+
+    private static String describe(MiniVM.RunResult result) {
+        return (result.halted ? "halted" : "stopped") + " after " + result.cycles + " cycles";
+    }
+}
@@ -0,0 +1,250 @@
+package mainpackage;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * @brief Checks that MiniVM's pre-decoded engine does what the traced engine does.
+ * Each binary is run with tracing, which uses the Instr-based engine, and
+ * without. Both runs must stop the same way after the same number
+ * of cycles and leave the same memory. The binaries are hand-assembled
+ * cases and random programs compiled by CodeGen with and without register
+ * allocation, and each is run to completion and with every cycle budget up
+ * to MAX_LIMIT, so budgets that end inside a superinstruction are covered.
+ *
+ * Run from the repository root with
+ *   javac -d out mainpackage/*.java test/mainpackage/*.java
+ *   java -cp out mainpackage.MiniVMTest [programs] [seed]
+ * It exits with status 1 if any binary differs.
+ */
+public class MiniVMTest {
+    // Words of memory compared after each run if the binary is shorter, which covers every case's data
+    private static final int COMPARED_WORDS = 64;
+    // The largest cycle budget tried
+    private static final int MAX_LIMIT = 3000;
+
+    private static final int PC = 1;
+
+    private static final int[][] CASES = {
+        // A PC-relative load reads the word three after it, 42.0, and stores it at 7
+        {
+            1,
+            op(Instruction.Opcode.CLR, 0, 0),
+            relative(Instruction.Opcode.LOD, 0, PC, 3),
+            op(Instruction.Opcode.STO, 0, 7),
+            op(Instruction.Opcode.HLT, 0, 0),
+            Float.floatToRawIntBits(42f),
+        },
+        // The same after a jump, so the PC has moved since the run started
+        {
+            1,
+            op(Instruction.Opcode.JMP, 0, 3),
+            Float.floatToRawIntBits(1f),
+            op(Instruction.Opcode.CLR, 0, 0),
+            relative(Instruction.Opcode.ADD, 0, PC, 3),
+            relative(Instruction.Opcode.STO, 0, PC, 3),
+            op(Instruction.Opcode.HLT, 0, 0),
+            Float.floatToRawIntBits(2.5f),
+        },
+        // Rewrites the middle of the superinstruction LOD, ADD, STO at 5 to a
+        // SUB before running it, so 23 gets 9.0 instead of 11.0
+        {
+            9,
+            0,
+            op(Instruction.Opcode.CLR, 2, 0),
+            op(Instruction.Opcode.CLR, 2, 0),
+            op(Instruction.Opcode.CLR, 2, 0),
+            op(Instruction.Opcode.LOD, 0, 22),
+            op(Instruction.Opcode.ADD, 0, 21),
+            op(Instruction.Opcode.STO, 0, 23),
+            op(Instruction.Opcode.HLT, 0, 0),
+            op(Instruction.Opcode.LOD, 1, 20),
+            op(Instruction.Opcode.STO, 1, 6),
+            compare(Instruction.Cmp.ALWAYS, 0, 0),
+            op(Instruction.Opcode.JMP, 0, 2),
+            0, 0, 0, 0, 0, 0, 0,
+            op(Instruction.Opcode.SUB, 0, 21),
+            Float.floatToRawIntBits(1f),
+            Float.floatToRawIntBits(10f),
+            0,
+        },
+        // The STO of a superinstruction writes a HLT over the instruction right after it
+        {
+            2,
+            0,
+            op(Instruction.Opcode.LOD, 0, 8),
+            op(Instruction.Opcode.ADD, 0, 9),
+            op(Instruction.Opcode.STO, 0, 5),
+            op(Instruction.Opcode.STO, 0, 10),
+            op(Instruction.Opcode.HLT, 0, 0),
+            0,
+            op(Instruction.Opcode.HLT, 0, 0),
+            Float.floatToRawIntBits(0f),
+            0,
+        },
+        // A loop whose body overwrites the CMP of its own LOD, CMP, JMP test
+        // with a CLR, so the second time round the JMP goes on the flag of
+        // the CMP that closes the loop, and 0.0 is stored at 17
+        {
+            2,
+            0,
+            op(Instruction.Opcode.LOD, 0, 14),
+            compare(Instruction.Cmp.EQUAL, 0, 15),
+            op(Instruction.Opcode.JMP, 0, 10),
+            op(Instruction.Opcode.LOD, 1, 16),
+            op(Instruction.Opcode.STO, 1, 3),
+            compare(Instruction.Cmp.ALWAYS, 0, 15),
+            op(Instruction.Opcode.JMP, 0, 2),
+            op(Instruction.Opcode.HLT, 0, 0),
+            op(Instruction.Opcode.STO, 0, 17),
+            op(Instruction.Opcode.HLT, 0, 0),
+            0,
+            0,
+            Float.floatToRawIntBits(3f),
+            Float.floatToRawIntBits(0f),
+            op(Instruction.Opcode.CLR, 0, 0),
+            Float.floatToRawIntBits(-1f),
+        },
+    };
+
+    public static void main(String[] args) throws Exception {
+        final int programs = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        final long seed = args.length > 1 ? Long.parseLong(args[1]) : 0;
+
+        int failures = 0;
+        for (int i = 0; i < CASES.length; i++)
+            if (!check("case " + i, CASES[i]))
+                failures++;
+        for (int i = 0; i < programs; i++) {
+            String source = new SSAOptimizationTest.Generator(new Random(seed + i)).program();
+            for (boolean allocateRegisters : new boolean[] {false, true})
+                if (!check("program " + i + " of seed " + seed + (allocateRegisters ? "" : " in one register"), compile(source, allocateRegisters)))
+                    failures++;
+        }
+
+        final int binaries = CASES.length + 2 * programs;
+        System.out.println((binaries - failures) + " of " + binaries + " binaries passed.");
+        if (failures > 0)
+            System.exit(1);
+    }
+
+    private static int[] compile(String source, boolean allocateRegisters) throws Exception {
+        SymbolTable names = new SymbolTable();
+        List<Atom> atoms = new ArrayList<>();
+        new Parser(new Scanner(SourceStream.fromString(source)), atoms::add, names).parse();
+        IntList code = new IntList();
+        new CodeGen(atoms, names, code, allocateRegisters).generate();
+        return code.toArray();
+    }
+
+    /**
+     * @brief Runs a binary on both engines to completion and with every budget up to MAX_LIMIT.
+     * @return Whether they always agree. If not, the first difference is printed.
+     */
+    private static boolean check(String name, int[] binary) {
+        if (!check(name, binary, MiniVM.RunConfig.unlimited()))
+            return false;
+
+        // Once the traced engine halts within a budget, larger ones run the same
+        Run traced = null;
+        for (int limit = 1; limit <= MAX_LIMIT; limit++) {
+            MiniVM.RunConfig config = MiniVM.RunConfig.unlimited().withMaxCycles(limit);
+            if (traced == null || !traced.result.halted)
+                traced = Run.traced(binary, config);
+            if (!check(name + " with a budget of " + limit, traced, Run.predecoded(binary, config)))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean check(String name, int[] binary, MiniVM.RunConfig config) {
+        return check(name, Run.traced(binary, config), Run.predecoded(binary, config));
+    }
+
+    /**
+     * @brief Compares a traced run of a binary with a pre-decoded one.
+     * @return Whether they agree. If not, the difference is printed.
+     */
+    private static boolean check(String name, Run traced, Run predecoded) {
+        String difference = null;
+        if (traced.result.halted != predecoded.result.halted || traced.result.cycles != predecoded.result.cycles)
+            difference = "traced run " + describe(traced.result) + ", pre-decoded run " + describe(predecoded.result);
+        for (int address = 0; address < Math.max(traced.length, COMPARED_WORDS) && difference == null; address++) {
+            float expected = traced.vm.readFloat(address);
+            float actual = predecoded.vm.readFloat(address);
+            if (Float.floatToRawIntBits(expected) != Float.floatToRawIntBits(actual))
+                difference = "word " + address + " is " + expected + " traced, " + actual + " pre-decoded";
+        }
+        if (difference == null)
+            return true;
+
+        System.out.println("FAIL " + name + ": " + difference);
+        return false;
+    }
+
+    private static String describe(MiniVM.RunResult result) {
+        return (result.halted ? "halted" : "stopped") + " after " + result.cycles + " cycles";
+    }
+
+    /**
+     * @brief A binary run once on MiniVM.
+     */
+    private static class Run {
+        final MiniVM vm;
+        final MiniVM.RunResult result;
+        final int length;
+
+        private Run(MiniVM vm, MiniVM.RunResult result, int length) {
+            this.vm = vm;
+            this.result = result;
+            this.length = length;
+        }
+
+        /**
+         * @brief Runs on the Instr-based engine. Stepping is the cheapest way
+         * to get there, since verbose tracing dumps memory every cycle, so
+         * System.in is replaced by endless keypresses and System.out thrown away.
+         */
+        static Run traced(int[] binary, MiniVM.RunConfig config) {
+            MiniVM vm = new MiniVM(binary);
+            InputStream in = System.in;
+            PrintStream out = System.out;
+            System.setIn(new InputStream() {
+                @Override
+                public int read() {
+                    return '\n';
+                }
+            });
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            try {
+                return new Run(vm, vm.execute(config.withTrace(false, true)), binary.length);
+            }
+            finally {
+                System.setIn(in);
+                System.setOut(out);
+            }
+        }
+
+        static Run predecoded(int[] binary, MiniVM.RunConfig config) {
+            MiniVM vm = new MiniVM(binary);
+            return new Run(vm, vm.execute(config), binary.length);
+        }
+    }
+
+    private static int op(int opcode, int r, int address) {
+        return Instruction.create(opcode, 0, r, address);
+    }
+
+    private static int compare(int cmp, int r, int address) {
+        return Instruction.create(Instruction.Opcode.CMP, cmp, r, address);
+    }
+
+    // An instruction addressing base register + displacement
+    private static int relative(int opcode, int r, int base, int displacement) {
+        return Instruction.create(opcode, 0, r, base << 16 | displacement) | 1 << 27;
+    }
+}
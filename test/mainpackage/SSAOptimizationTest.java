@@ -0,0 +1,230 @@
+package mainpackage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * @brief Differential test of SSAOptimization.
+ * Compiles programs with and without the optimizer, runs both on MiniVM and
+ * checks that every program variable the unoptimized program writes is
+ * still in memory afterwards and holds the same bits. A variable that is
+ * only written in code that never runs, or only read (the Parser reads the
+ * last token of a term, which can be a parenthesis), may be dropped, since
+ * it would hold 0 anyway. Besides a few hand-written cases it generates
+ * random programs of assignments, arithmetic, ifs and bounded for loops.
+ *
+ * Run from the repository root with
+ *   javac -d out mainpackage/*.java test/mainpackage/*.java
+ *   java -cp out mainpackage.SSAOptimizationTest [programs] [seed]
+ * It exits with status 1 if any program differs.
+ */
+public class SSAOptimizationTest {
+    private static final long MAX_CYCLES = 10_000_000;
+
+    private static final String[] CASES = {
+        // Writing 0 to a variable does not make it disappear from memory
+        "int u = 7;\nu = 0;\n",
+        "float x = 0;\nif (x == 0) { x = 0; }\n",
+        "int a = 5;\nint b = a;\na = 0;\nb = 0;\n",
+        // Zero initialisations before loops are kept
+        "int n = 0;\nint i = 0;\nwhile (i < 3) { n = n + 2; i = i + 1; }\n",
+        "float s = 0;\nfor (int k = 0; k < 4; k = k + 1) { s = s + k * 2; }\n",
+    };
+
+    private static final String[] VARIABLES = {"a", "b", "c", "d", "e"};
+    private static final String[] OPERATORS = {"+", "-", "*", "/"};
+    private static final String[] COMPARISONS = {"<", ">", "<=", ">=", "==", "!="};
+
+    public static void main(String[] args) throws Exception {
+        final int programs = args.length > 0 ? Integer.parseInt(args[0]) : 1500;
+        final long seed = args.length > 1 ? Long.parseLong(args[1]) : 0;
+
+        int failures = 0;
+        for (int i = 0; i < CASES.length; i++)
+            if (!check("case " + i, CASES[i]))
+                failures++;
+        for (int i = 0; i < programs; i++)
+            if (!check("program " + i + " of seed " + seed, new Generator(new Random(seed + i)).program()))
+                failures++;
+
+        System.out.println((CASES.length + programs - failures) + " of " + (CASES.length + programs) + " programs passed.");
+        if (failures > 0)
+            System.exit(1);
+    }
+
+    /**
+     * @brief Compiles a program with and without SSAOptimization and compares what they leave in memory.
+     * @return Whether they agree. If not, the program and the difference are printed.
+     */
+    private static boolean check(String name, String source) throws Exception {
+        SymbolTable names = new SymbolTable();
+        List<Atom> atoms = new ArrayList<>();
+        new Parser(new Scanner(SourceStream.fromString(source)), atoms::add, names).parse();
+        List<Atom> optimized = SSAOptimization.optimize(atoms, names);
+
+        Run before = new Run(atoms, names);
+        Run after = new Run(optimized, names);
+        boolean[] written = writtenVariables(atoms, names);
+        String difference = null;
+        if (!before.halted || !after.halted)
+            difference = "did not halt: " + before.halted + " before, " + after.halted + " after";
+        for (int id = 0; id < names.size() && difference == null; id++) {
+            if (names.isTemporary(id) || before.address(id) < 0)
+                continue;
+            if (after.address(id) < 0) {
+                if (written[id] || Float.floatToRawIntBits(before.value(id)) != 0)
+                    difference = names.name(id) + " is no longer in memory";
+            }
+            else if (Float.floatToRawIntBits(before.value(id)) != Float.floatToRawIntBits(after.value(id)))
+                difference = names.name(id) + " = " + before.value(id) + " before, " + after.value(id) + " after";
+        }
+        if (difference == null)
+            return true;
+
+        System.out.println("FAIL " + name + ": " + difference);
+        System.out.print(source);
+        System.out.println("optimized: " + optimized);
+        return false;
+    }
+
+    /**
+     * @brief Interprets atoms to find which variables a run of them writes.
+     * @return For each id, whether an atom that writes it is executed.
+     */
+    private static boolean[] writtenVariables(List<Atom> atoms, SymbolTable names) {
+        int[] labels = new int[names.size()];
+        for (int i = 0; i < atoms.size(); i++)
+            if (atoms.get(i).opcode == Atom.Opcode.LBL)
+                labels[atoms.get(i).getOperand(4).id] = i;
+
+        float[] values = new float[names.size()];
+        boolean[] written = new boolean[names.size()];
+        int i = 0;
+        for (long cycles = 0; i < atoms.size() && cycles < MAX_CYCLES; cycles++) {
+            Atom atom = atoms.get(i++);
+            switch (atom.opcode) {
+                case ADD:
+                case SUB:
+                case MUL:
+                case DIV:
+                case NEG:
+                case MOV: {
+                    float lhs = valueOf(atom.getOperand(0), values);
+                    float rhs = atom.getOperand(1) == null ? 0f : valueOf(atom.getOperand(1), values);
+                    int result = atom.getOperand(2).id;
+                    values[result] = atom.opcode == Atom.Opcode.MOV ? lhs : ConstantFolding.fold(atom.opcode, lhs, rhs);
+                    written[result] = true;
+                    break;
+                }
+                case TST:
+                    if (ConstantFolding.compare(atom.getOperand(3).getCmp(), valueOf(atom.getOperand(0), values), valueOf(atom.getOperand(1), values)))
+                        i = labels[atom.getOperand(4).id];
+                    break;
+                case JMP:
+                    i = labels[atom.getOperand(4).id];
+                    break;
+                default:
+                    break;
+            }
+        }
+        return written;
+    }
+
+    private static float valueOf(Atom.Operand op, float[] values) {
+        return op.type == Atom.Operand.CONSTANT ? op.getConstant() : values[op.id];
+    }
+
+    /**
+     * @brief A program compiled by CodeGen and run to completion on MiniVM.
+     */
+    private static class Run {
+        final CodeGen.Symbols symbols;
+        final MiniVM vm;
+        final boolean halted;
+
+        Run(List<Atom> atoms, SymbolTable names) {
+            IntList code = new IntList();
+            CodeGen gen = new CodeGen(atoms, names, code);
+            gen.generate();
+            symbols = gen.getSymbols();
+            vm = new MiniVM(code.toArray());
+            halted = vm.execute(MiniVM.RunConfig.unlimited().withMaxCycles(MAX_CYCLES)).halted;
+        }
+
+        int address(int id) {
+            return id < symbols.variableAddresses.length ? symbols.variableAddresses[id] : -1;
+        }
+
+        float value(int id) {
+            return vm.readFloat(address(id));
+        }
+    }
+
+    /**
+     * @brief Makes random programs over the variables a to e. Loop counters
+     * get their own names, made of letters since identifiers cannot hold digits.
+     */
+    static class Generator {
+        private final Random random;
+        private int loops = 0;
+
+        Generator(Random random) {
+            this.random = random;
+        }
+
+        String program() {
+            StringBuilder sb = new StringBuilder();
+            for (String v : VARIABLES)
+                sb.append("float ").append(v).append(" = ").append(random.nextInt(6)).append(";\n");
+            statements(sb, 0, 3 + random.nextInt(10));
+            return sb.append('\n').toString();
+        }
+
+        private void statements(StringBuilder sb, int depth, int count) {
+            for (int i = 0; i < count; i++) {
+                final double k = random.nextDouble();
+                if (depth < 3 && k < 0.15) {
+                    sb.append("if (").append(condition()).append(") { ");
+                    statements(sb, depth + 1, 1 + random.nextInt(3));
+                    sb.append("} else { ");
+                    statements(sb, depth + 1, 1 + random.nextInt(3));
+                    sb.append("} ");
+                } else if (depth < 3 && k < 0.25) {
+                    sb.append("if (").append(condition()).append(") { ");
+                    statements(sb, depth + 1, 1 + random.nextInt(3));
+                    sb.append("} ");
+                } else if (depth < 2 && k < 0.35) {
+                    String counter = counterName(++loops);
+                    sb.append("for (int ").append(counter).append(" = 0; ").append(counter).append(" < ").append(1 + random.nextInt(4))
+                        .append("; ").append(counter).append(" = ").append(counter).append(" + 1) { ");
+                    statements(sb, depth + 1, 1 + random.nextInt(3));
+                    sb.append("} ");
+                } else {
+                    sb.append(VARIABLES[random.nextInt(VARIABLES.length)]).append(" = ").append(expression(0)).append("; ");
+                }
+            }
+        }
+
+        private String expression(int depth) {
+            final double k = random.nextDouble();
+            if (depth > 2 || k < 0.35)
+                return random.nextBoolean() ? VARIABLES[random.nextInt(VARIABLES.length)] : String.valueOf(random.nextInt(10));
+            if (k < 0.45)
+                return "(" + expression(depth + 1) + ")";
+            return expression(depth + 1) + " " + OPERATORS[random.nextInt(OPERATORS.length)] + " " + expression(depth + 1);
+        }
+
+        private String condition() {
+            return expression(1) + " " + COMPARISONS[random.nextInt(COMPARISONS.length)] + " " + expression(1);
+        }
+
+        // k followed by the digits of n spelled as letters, a for 0 to j for 9
+        private static String counterName(int n) {
+            StringBuilder sb = new StringBuilder("k");
+            for (char c : Integer.toString(n).toCharArray())
+                sb.append((char) ('a' + c - '0'));
+            return sb.toString();
+        }
+    }
+}